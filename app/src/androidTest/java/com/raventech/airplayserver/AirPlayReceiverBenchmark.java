@@ -0,0 +1,93 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import android.os.Process;
+
+import com.raventech.airplayserver.audio.NullAudioSink;
+
+/**
+ * Measures what each additional receiver costs while it's idle, i.e. heap,
+ * threads and CPU time per receiver. The receivers play to {@link NullAudioSink}s,
+ * so only the receiver itself is measured, not the device's audio output.
+ */
+public class AirPlayReceiverBenchmark extends TestCase {
+	private static final Logger LOG = Logger.getLogger(AirPlayReceiverBenchmark.class.getName());
+
+	private static final int RECEIVERS = 8;
+
+	/**
+	 * Time the process is left idle to measure its CPU time, with the first
+	 * receiver only and with all of them
+	 */
+	private static final long IDLE_MILLIS = 10000;
+
+	/**
+	 * Returns the CPU time the process spends per second while idle
+	 */
+	private static double idleCpuMillisPerSecond() throws InterruptedException {
+		final long cpuMillis = Process.getElapsedCpuTime();
+		Thread.sleep(IDLE_MILLIS);
+		return (Process.getElapsedCpuTime() - cpuMillis) * 1000.0 / IDLE_MILLIS;
+	}
+
+	/**
+	 * Returns the heap in use after a garbage collection
+	 */
+	private static long usedHeapBytes() {
+		final Runtime runtime = Runtime.getRuntime();
+		for(int i=0; i < 3; ++i)
+			runtime.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public void testReceiverFootprint() throws Exception {
+		final AirPlayServer server = AirPlayServer.getIstance();
+		final List<AirPlayReceiver> receivers = new ArrayList<AirPlayReceiver>();
+		try {
+			/* The first receiver also creates the resources the server shares
+			 * between all receivers, so it isn't measured
+			 */
+			receivers.add(server.createReceiver("Benchmark", 0, NullAudioSink.FACTORY));
+			final double idleCpu = idleCpuMillisPerSecond();
+
+			final long heapBytes = usedHeapBytes();
+			final int threads = Thread.activeCount();
+			final long cpuMillis = Process.getElapsedCpuTime();
+			for(int r=1; r <= RECEIVERS; ++r)
+				receivers.add(server.createReceiver("Benchmark " + r, 0, NullAudioSink.FACTORY));
+			final long createCpuMillis = Process.getElapsedCpuTime() - cpuMillis;
+			final long receiverHeapBytes = (usedHeapBytes() - heapBytes) / RECEIVERS;
+			final double receiverThreads = (double)(Thread.activeCount() - threads) / RECEIVERS;
+			final double receiverIdleCpu = (idleCpuMillisPerSecond() - idleCpu) / RECEIVERS;
+
+			LOG.info("Per receiver: " + receiverHeapBytes / 1024 + " kB heap, " + receiverThreads + " threads, " + (double)createCpuMillis / RECEIVERS + " ms CPU to create, " + receiverIdleCpu + " ms CPU per second while idle (" + RECEIVERS + " receivers)");
+			assertTrue(server.getReceivers().containsAll(receivers));
+		}
+		finally {
+			for(final AirPlayReceiver receiver: receivers)
+				server.destroyReceiver(receiver);
+		}
+	}
+}
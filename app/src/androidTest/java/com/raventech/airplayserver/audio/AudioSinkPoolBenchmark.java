@@ -0,0 +1,119 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import com.raventech.airplayserver.network.raop.handlers.RaopRtpAudioL16StreamInformationProvider;
+
+/**
+ * Measures the stream-start latency on the device's audio output, i.e. the time
+ * from creating a stream's queue until its sink plays, with and without an
+ * {@link AudioSinkPool}. Streams are set up back-to-back, as a sender does when
+ * it sends TEARDOWN and ANNOUNCE on a track change.
+ */
+public class AudioSinkPoolBenchmark extends TestCase {
+	private static final Logger LOG = Logger.getLogger(AudioSinkPoolBenchmark.class.getName());
+
+	private static final int STREAMS = 10;
+
+	private static final long START_TIMEOUT_NANOS = 2000000000L;
+
+	/**
+	 * Remembers the last sink it handed out
+	 */
+	private static final class RecordingSinkFactory implements AudioSinkFactory {
+		private final AudioSinkFactory audioSinkFactory;
+		private volatile AudioSink lastSink;
+
+		RecordingSinkFactory(final AudioSinkFactory audioSinkFactory) {
+			this.audioSinkFactory = audioSinkFactory;
+		}
+
+		@Override
+		public AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) throws IOException {
+			lastSink = audioSinkFactory.createAudioSink(streamInfoProvider, bufferSizeInBytes);
+			return lastSink;
+		}
+	}
+
+	/**
+	 * Starts a stream and returns the nanoseconds until its sink's playback position advanced
+	 */
+	private static long startStream(final AudioSinkFactory audioSinkFactory) throws Exception {
+		final RaopRtpAudioL16StreamInformationProvider stream = new RaopRtpAudioL16StreamInformationProvider("L16/44100/2", null);
+		final RecordingSinkFactory sinkFactory = new RecordingSinkFactory(audioSinkFactory);
+
+		final long startNanos = System.nanoTime();
+		final AudioOutputQueue queue = new AudioOutputQueue(stream, sinkFactory, new PlayoutSettings(), new AudioMemoryBudget());
+		try {
+			final AudioSink sink = sinkFactory.lastSink;
+			final long startPosition = sink.getPlaybackPosition();
+
+			queue.setFrameTime(0, queue.getNowNtpTime());
+			queue.startAudioProcessing();
+			final ByteBuffer silence = ByteBuffer.allocate(4 * stream.getFramesPerPacket()).order(stream.getByteOrder());
+			for(int p=0; p < 8; ++p)
+				queue.enqueue((long)p * stream.getFramesPerPacket(), silence);
+
+			while (sink.getPlaybackPosition() <= startPosition) {
+				assertTrue("Audio output didn't start", System.nanoTime() - startNanos < START_TIMEOUT_NANOS);
+				Thread.sleep(1);
+			}
+			return System.nanoTime() - startNanos;
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	private static double medianMillis(final long[] nanos, final int from) {
+		final long[] sorted = Arrays.copyOfRange(nanos, from, nanos.length);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2] * 1e-6;
+	}
+
+	public void testStreamStartLatency() throws Exception {
+		final long[] unpooledNanos = new long[STREAMS];
+		for(int s=0; s < STREAMS; ++s)
+			unpooledNanos[s] = startStream(AudioTrackAudioSink.FACTORY);
+
+		final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+		final AudioSinkPool pool = new AudioSinkPool(AudioTrackAudioSink.FACTORY, executorService);
+		final long[] pooledNanos = new long[STREAMS];
+		try {
+			for(int s=0; s < STREAMS; ++s)
+				pooledNanos[s] = startStream(pool);
+		}
+		finally {
+			pool.close();
+			executorService.shutdownNow();
+		}
+
+		/* The pool's first stream creates the sink, like every unpooled one */
+		LOG.info("Stream start latency without pool " + medianMillis(unpooledNanos, 1) + " ms, with pool " + medianMillis(pooledNanos, 1) + " ms (median of " + (STREAMS - 1) + " streams), pool hit rate " + pool.getHitRate());
+		assertEquals(STREAMS - 1, pool.getHits());
+	}
+}
@@ -0,0 +1,250 @@
+package com.raventech.airplayserver;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import com.raventech.airplayserver.audio.AudioSinkFactory;
+import com.raventech.airplayserver.audio.AudioSinkPool;
+import com.raventech.airplayserver.audio.PlayoutSettings;
+import com.raventech.airplayserver.network.raop.RaopRtspPipelineFactory;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+
+/**
+ * A single AirPlay speaker hosted by an {@link AirPlayServer}.
+ * <p>
+ * Each receiver has its own name, hardware address, RTSP port, mDNS
+ * registration, audio output and playout settings. The thread pools, the
+ * mDNS responders and the audio memory budget belong to the server and
+ * are shared by all its receivers. Created by
+ * {@link AirPlayServer#createReceiver(String, int, AudioSinkFactory)}.
+ */
+public class AirPlayReceiver {
+
+	private static final Logger LOG = Logger.getLogger(AirPlayReceiver.class.getName());
+
+	private final AirPlayServer server;
+
+	/**
+	 * Name shown to the senders
+	 */
+	private final String name;
+
+	/**
+	 * Hardware address identifying the receiver, part of its service name
+	 * and of its responses to the senders' challenges
+	 */
+	private final byte[] hardwareAddress;
+
+	/**
+	 * The RTSP port requested, or zero for any free port
+	 */
+	private final int requestedRtspPort;
+
+	/**
+	 * The RTSP port bound, once started
+	 */
+	private int rtspPort = 0;
+
+	/**
+	 * Creates the audio output device of each stream
+	 */
+	private final AudioSinkFactory audioSinkFactory;
+
+	/**
+	 * Keeps the audio outputs of ended streams warm for the next stream
+	 */
+	private final AudioSinkPool audioSinkPool;
+
+	/**
+	 * Playout tunables, copied by each new connection
+	 */
+	private final PlayoutSettings playoutSettings;
+
+	/**
+	 * The RTSP server channel and all open RTSP connections
+	 */
+	private final ChannelGroup channelGroup = new DefaultChannelGroup();
+
+	/**
+	 * The services registered with the server's mDNS responders,
+	 * one per responder
+	 */
+	private final List<ServiceInfo> serviceInfos = new java.util.LinkedList<ServiceInfo>();
+	private final List<JmDNS> serviceJmDNSInstances = new java.util.LinkedList<JmDNS>();
+
+	private boolean started = false;
+
+	private boolean closed = false;
+
+	AirPlayReceiver(final AirPlayServer server, final String name, final byte[] hardwareAddress, final int rtspPort, final AudioSinkFactory audioSinkFactory, final PlayoutSettings playoutSettings) {
+		this.server = server;
+		this.name = name;
+		this.hardwareAddress = hardwareAddress.clone();
+		this.requestedRtspPort = rtspPort;
+		this.audioSinkFactory = audioSinkFactory;
+		this.audioSinkPool = new AudioSinkPool(audioSinkFactory, server.getTimingExecutorService());
+		this.playoutSettings = playoutSettings;
+	}
+
+	/**
+	 * Binds the RTSP port and publishes the receiver via mDNS
+	 *
+	 * @throws IOException if the RTSP port can't be bound
+	 */
+	synchronized void start() throws IOException {
+		if (started || closed)
+			return;
+		started = true;
+
+		/* Create the RTSP server. The channel factory is shared by all receivers */
+		final ServerBootstrap rtspBootstrap = new ServerBootstrap(server.getRtspChannelFactory());
+		rtspBootstrap.setPipelineFactory(new RaopRtspPipelineFactory(this));
+		rtspBootstrap.setOption("reuseAddress", true);
+		rtspBootstrap.setOption("child.tcpNoDelay", true);
+		rtspBootstrap.setOption("child.keepAlive", true);
+
+		final Channel rtspChannel;
+		try {
+			rtspChannel = rtspBootstrap.bind(new InetSocketAddress(Inet4Address.getByName("0.0.0.0"), requestedRtspPort));
+		}
+		catch (final UnknownHostException e) {
+			throw new IOException("Failed to bind RTSP service of receiver '" + name + "' on port " + requestedRtspPort, e);
+		}
+		catch (final ChannelException e) {
+			throw new IOException("Failed to bind RTSP service of receiver '" + name + "' on port " + requestedRtspPort, e);
+		}
+		channelGroup.add(rtspChannel);
+		rtspPort = ((InetSocketAddress)rtspChannel.getLocalAddress()).getPort();
+
+		LOG.info("Launched RTSP service of receiver '" + name + "' on port " + rtspPort);
+
+		/* Publish RAOP service on every mDNS responder */
+		for(final JmDNS jmDNS: server.getJmDNSInstances()) {
+			try {
+				final ServiceInfo airTunesServiceInfo = ServiceInfo.create(
+					AirPlayServer.AIR_TUNES_SERVICE_TYPE,
+					getHardwareAddressString() + "@" + name,
+					rtspPort,
+					0 /* weight */, 0 /* priority */,
+					AirPlayServer.AIRTUNES_SERVICE_PROPERTIES
+				);
+				jmDNS.registerService(airTunesServiceInfo);
+				serviceInfos.add(airTunesServiceInfo);
+				serviceJmDNSInstances.add(jmDNS);
+				LOG.info("Registered AirTunes service '" + airTunesServiceInfo.getName() + "' on " + jmDNS.getInterface());
+			}
+			catch (final Throwable e) {
+				LOG.log(Level.SEVERE, "Failed to publish service of receiver '" + name + "'", e);
+			}
+		}
+	}
+
+	/**
+	 * Withdraws the receiver's mDNS registration, and closes its RTSP port
+	 * and all its connections, which stops their streams. The shared
+	 * resources stay with the server.
+	 */
+	public void close() {
+		synchronized(this) {
+			if (closed)
+				return;
+			closed = true;
+
+			for(int i=0; i < serviceInfos.size(); ++i) {
+				try {
+					serviceJmDNSInstances.get(i).unregisterService(serviceInfos.get(i));
+				}
+				catch (final Throwable e) {
+					LOG.log(Level.WARNING, "Failed to unregister service of receiver '" + name + "'", e);
+				}
+			}
+			serviceInfos.clear();
+			serviceJmDNSInstances.clear();
+		}
+
+		channelGroup.close().awaitUninterruptibly();
+		audioSinkPool.close();
+		LOG.info("Closed receiver '" + name + "'");
+	}
+
+	public AirPlayServer getServer() {
+		return server;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public byte[] getHardwareAddress() {
+		return hardwareAddress.clone();
+	}
+
+	public String getHardwareAddressString() {
+		final StringBuilder s = new StringBuilder();
+		for(final byte b: hardwareAddress) {
+			final String h = Integer.toHexString(0x100 | b);
+			s.append(h.substring(h.length() - 2, h.length()).toUpperCase());
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Returns the RTSP port, which is only known once the receiver is started
+	 *
+	 * @return RTSP port
+	 */
+	public synchronized int getRtspPort() {
+		return rtspPort;
+	}
+
+	public AudioSinkFactory getAudioSinkFactory() {
+		return audioSinkFactory;
+	}
+
+	/**
+	 * Returns the pool the streams take their audio output from. Its
+	 * keep-warm time controls how long the output of an ended stream
+	 * stays ready for the next one
+	 *
+	 * @return audio sink pool
+	 */
+	public AudioSinkPool getAudioSinkPool() {
+		return audioSinkPool;
+	}
+
+	/**
+	 * Returns the receiver's playout settings. Each RTSP connection takes
+	 * a copy, so changes apply to connections set up afterwards
+	 *
+	 * @return playout settings
+	 */
+	public PlayoutSettings getPlayoutSettings() {
+		return playoutSettings;
+	}
+
+	/**
+	 * Returns the receiver's RTSP server channel and connections
+	 *
+	 * @return channel group
+	 */
+	public ChannelGroup getChannelGroup() {
+		return channelGroup;
+	}
+
+	@Override
+	public String toString() {
+		return "receiver '" + name + "' (" + getHardwareAddressString() + ") on port " + getRtspPort();
+	}
+}
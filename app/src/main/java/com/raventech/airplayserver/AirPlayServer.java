@@ -4,27 +4,29 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
+import com.raventech.airplayserver.audio.AudioMemoryBudget;
+import com.raventech.airplayserver.audio.AudioSinkFactory;
+import com.raventech.airplayserver.audio.PlayoutSettings;
+import com.raventech.airplayserver.audio.AudioTrackAudioSink;
 import com.raventech.airplayserver.network.NetworkUtils;
-import com.raventech.airplayserver.network.raop.RaopRtspPipelineFactory;
+import com.raventech.airplayserver.network.raop.RaopClientStateCache;
 
-import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
-import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.execution.ExecutionHandler;
@@ -32,6 +34,10 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 /**
  * Android AirPlay Server Implementation
+ * <p>
+ * Hosts any number of {@link AirPlayReceiver}s, i.e. AirPlay speakers, which
+ * share the server's thread pools, mDNS responders and audio memory budget.
+ * Running the server creates a default receiver named after the host.
  * 
  * @author Rafael Almeida
  *
@@ -59,9 +65,17 @@ public class AirPlayServer implements Runnable {
             "sv", "false",
             "ek", "1",
             "et", "0,1",
+            /* Compression types: 0 is uncompressed L16, 1 is ALAC */
             "cn", "0,1",
             "vn", "3");
 	
+	/**
+	 * Memory limits of the channel execution handler's queues. Channels whose
+	 * handlers fall behind stop being read until the backlog is processed
+	 */
+	private static final long CHANNEL_MEMORY_MAX_BYTES = 1024 * 1024;
+	private static final long TOTAL_CHANNEL_MEMORY_MAX_BYTES = 16 * 1024 * 1024;
+
 	private static AirPlayServer instance = null;
 	public static AirPlayServer getIstance(){
 		if(instance == null){
@@ -76,6 +90,11 @@ public class AirPlayServer implements Runnable {
 	 * Global executor service. Used e.g. to initialize the various netty channel factories 
 	 */
 	protected ExecutorService executorService;
+
+	/**
+	 * Sends the timing requests of all sessions
+	 */
+	protected ScheduledExecutorService timingExecutorService;
 	
 	/**
 	 * Channel execution handler. Spreads channel message handling over multiple threads
@@ -83,32 +102,78 @@ public class AirPlayServer implements Runnable {
 	protected ExecutionHandler channelExecutionHandler;
 	
 	/**
-	 * All open RTSP channels. Used to close all open challens during shutdown.
+	 * Creates the RTSP server channels of all receivers
 	 */
-	protected ChannelGroup channelGroup;
+	protected NioServerSocketChannelFactory rtspChannelFactory;
 	
 	/**
-	 * JmDNS instances (one per IP address). Used to unregister the mDNS services
-	 * during shutdown.
+	 * JmDNS instances (one per IP address), shared by all receivers.
+	 * Created when the first receiver starts
 	 */
 	protected List<JmDNS> jmDNSInstances;
+
+	/**
+	 * The receivers currently hosted
+	 */
+	private final List<AirPlayReceiver> receivers = new java.util.LinkedList<AirPlayReceiver>();
+
+	/**
+	 * The receiver started by {@link #run()}, or null
+	 */
+	private volatile AirPlayReceiver defaultReceiver;
+
+	/**
+	 * Number of receivers created so far, distinguishes their hardware addresses
+	 */
+	private int receiversCreated = 0;
 	
 	/**
-	 * The AirTunes/RAOP RTSP port
+	 * The AirTunes/RAOP RTSP port of the default receiver
 	 */
 	private int rtspPort = 5000; //default value
+
+	/**
+	 * Creates the audio output device of each stream, unless the receiver has its own
+	 */
+	private AudioSinkFactory audioSinkFactory = AudioTrackAudioSink.FACTORY;
+
+	/**
+	 * Playout tunables, copied by each new receiver
+	 */
+	private final PlayoutSettings playoutSettings = new PlayoutSettings();
+
+	/**
+	 * Accounts for the audio data queued by all streams
+	 */
+	private final AudioMemoryBudget audioMemoryBudget = new AudioMemoryBudget();
+
+	/**
+	 * Clock and network state of recent senders, shared by all receivers
+	 */
+	private final RaopClientStateCache clientStateCache = new RaopClientStateCache();
 	
 	private AirPlayServer(){
 		//create executor service
 		executorService = Executors.newCachedThreadPool();
 		
+		//create the timing executor shared by all sessions
+		timingExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				thread.setName("Time Synchronizer");
+				return thread;
+			}
+		});
+
 		//create channel execution handler
-		channelExecutionHandler = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(4, 0, 0));
+		channelExecutionHandler = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(4, CHANNEL_MEMORY_MAX_BYTES, TOTAL_CHANNEL_MEMORY_MAX_BYTES));
 	
-		//channel group
-		channelGroup = new DefaultChannelGroup();
+		//RTSP channel factory shared by all receivers
+		rtspChannelFactory = new NioServerSocketChannelFactory(executorService, executorService);
 		
-		//list of mDNS services
+		//list of mDNS responders
 		jmDNSInstances = new java.util.LinkedList<JmDNS>();
 	}
 
@@ -120,11 +185,144 @@ public class AirPlayServer implements Runnable {
 		this.rtspPort = rtspPort;
 	}
 
+	public AudioSinkFactory getAudioSinkFactory() {
+		return audioSinkFactory;
+	}
+
+	/**
+	 * Sets the factory for the audio output devices of new streams,
+	 * e.g. {@link com.raventech.airplayserver.audio.NullAudioSink#FACTORY}
+	 * to run without audio hardware
+	 *
+	 * @param audioSinkFactory audio sink factory
+	 */
+	public void setAudioSinkFactory(AudioSinkFactory audioSinkFactory) {
+		this.audioSinkFactory = audioSinkFactory;
+	}
+
+	/**
+	 * Returns the playout settings. Each receiver takes a copy when it's
+	 * created, so changes apply to receivers created afterwards
+	 *
+	 * @return playout settings
+	 */
+	public PlayoutSettings getPlayoutSettings() {
+		return playoutSettings;
+	}
+
+	/**
+	 * Returns the accounting of the audio data queued by all streams,
+	 * which also limits the total amount of queued data
+	 *
+	 * @return audio memory budget
+	 */
+	public AudioMemoryBudget getAudioMemoryBudget() {
+		return audioMemoryBudget;
+	}
+
+	/**
+	 * Returns the cache of the recent senders' clock and network state,
+	 * which seeds the sessions of returning senders
+	 *
+	 * @return client state cache
+	 */
+	public RaopClientStateCache getClientStateCache() {
+		return clientStateCache;
+	}
+
 	public void run() {
 		
 		startService();
 	}
 
+	/**
+	 * Creates and starts a receiver with the server's audio sink factory
+	 *
+	 * @see #createReceiver(String, int, AudioSinkFactory)
+	 */
+	public AirPlayReceiver createReceiver(final String name, final int rtspPort) throws IOException {
+		return createReceiver(name, rtspPort, getAudioSinkFactory());
+	}
+
+	/**
+	 * Creates and starts a receiver, i.e. an additional AirPlay speaker. The
+	 * receiver gets a copy of the server's playout settings, and a hardware
+	 * address derived from the host's, which distinguishes it from the other
+	 * receivers.
+	 *
+	 * @param name name shown to the senders
+	 * @param rtspPort RTSP port, or zero for any free port
+	 * @param audioSinkFactory creates the receiver's audio output devices
+	 * @return the running receiver
+	 * @throws IOException if the RTSP port can't be bound
+	 */
+	public AirPlayReceiver createReceiver(final String name, final int rtspPort, final AudioSinkFactory audioSinkFactory) throws IOException {
+		final AirPlayReceiver receiver;
+		synchronized(receivers) {
+			receiver = new AirPlayReceiver(
+				this,
+				name,
+				deriveHardwareAddress(NetworkUtils.getInstance().getHardwareAddress(), receiversCreated++),
+				rtspPort,
+				audioSinkFactory,
+				new PlayoutSettings(playoutSettings)
+			);
+			receivers.add(receiver);
+		}
+
+		boolean didThrow = true;
+		try {
+			receiver.start();
+			didThrow = false;
+		}
+		finally {
+			if (didThrow)
+				destroyReceiver(receiver);
+		}
+
+		isOn = true;
+		return receiver;
+	}
+
+	/**
+	 * Stops a receiver and removes it from the server
+	 *
+	 * @param receiver receiver created by this server
+	 */
+	public void destroyReceiver(final AirPlayReceiver receiver) {
+		synchronized(receivers) {
+			receivers.remove(receiver);
+			if (defaultReceiver == receiver)
+				defaultReceiver = null;
+		}
+		receiver.close();
+	}
+
+	/**
+	 * Returns the receivers currently hosted
+	 *
+	 * @return copy of the list of receivers
+	 */
+	public List<AirPlayReceiver> getReceivers() {
+		synchronized(receivers) {
+			return new java.util.ArrayList<AirPlayReceiver>(receivers);
+		}
+	}
+
+	/**
+	 * Derives the hardware address of the n-th receiver. The first receiver
+	 * uses the host's address, the others a locally administered variation of it
+	 */
+	private static byte[] deriveHardwareAddress(final byte[] hostAddress, final int n) {
+		final byte[] address = hostAddress.clone();
+		if (n > 0) {
+			address[0] |= 0x02;
+			address[4] ^= (byte)(n >> 8);
+			address[5] ^= (byte)n;
+		}
+		return address;
+	}
+
 	private void startService() {
 		/* Make sure AirPlay Server shuts down gracefully */
     	Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
@@ -135,32 +333,28 @@ public class AirPlayServer implements Runnable {
     	}));
     	
     	LOG.info("VM Shutdown Hook added sucessfully!");
-    	
-    	/* Create AirTunes RTSP server */
-		final ServerBootstrap airTunesRtspBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(executorService, executorService));
-		airTunesRtspBootstrap.setPipelineFactory(new RaopRtspPipelineFactory());
-		airTunesRtspBootstrap.setOption("reuseAddress", true);
-		airTunesRtspBootstrap.setOption("child.tcpNoDelay", true);
-		airTunesRtspBootstrap.setOption("child.keepAlive", true);
-		
+
+		/* Create the default receiver, named after the host */
 		try {
-			channelGroup.add(airTunesRtspBootstrap.bind(new InetSocketAddress(Inet4Address.getByName("0.0.0.0"), getRtspPort())));
-		} 
-		catch (UnknownHostException e) {
-			LOG.log(Level.SEVERE, "Failed to bind RTSP Bootstrap on port: " + getRtspPort(), e);
+			defaultReceiver = createReceiver(NetworkUtils.getInstance().getHostUtils(), getRtspPort());
 		}
-		
-        LOG.info("Launched RTSP service on port " + getRtspPort());
-
-        //get Network details
-        NetworkUtils networkUtils = NetworkUtils.getInstance();
-        
-        String hostName = networkUtils.getHostUtils();
-		String hardwareAddressString = networkUtils.getHardwareAddressString();
-        isOn = true;
-		try {
-	    	/* Create mDNS responders. */
-	        synchronized(jmDNSInstances) {
+		catch (final IOException e) {
+			LOG.log(Level.SEVERE, "Failed to start the default receiver on port: " + getRtspPort(), e);
+		}
+	}
+
+	/**
+	 * Returns the mDNS responders, one per IP address, creating them on first use
+	 *
+	 * @return mDNS responders
+	 */
+	List<JmDNS> getJmDNSInstances() {
+		synchronized(jmDNSInstances) {
+			if ( ! jmDNSInstances.isEmpty() )
+				return new java.util.ArrayList<JmDNS>(jmDNSInstances);
+
+			final String hostName = NetworkUtils.getInstance().getHostUtils();
+			try {
 		    	for(final NetworkInterface iface: Collections.list(NetworkInterface.getNetworkInterfaces())) {
 		    		if ( iface.isLoopback() ){
 		    			continue;
@@ -179,57 +373,49 @@ public class AirPlayServer implements Runnable {
 	
 						try {
 							/* Create mDNS responder for address */
-					    	final JmDNS jmDNS = JmDNS.create(addr, hostName + "-jmdns");
-					    	jmDNSInstances.add(jmDNS);
-	
-					        /* Publish RAOP service */
-					        final ServiceInfo airTunesServiceInfo = ServiceInfo.create(
-					    		AIR_TUNES_SERVICE_TYPE,
-					    		hardwareAddressString + "@" + hostName,
-					    		getRtspPort(),
-					    		0 /* weight */, 0 /* priority */,
-					    		AIRTUNES_SERVICE_PROPERTIES
-					    	);
-					        jmDNS.registerService(airTunesServiceInfo);
-							LOG.info("Registered AirTunes service '" + airTunesServiceInfo.getName() + "' on " + addr);
+					    	jmDNSInstances.add(JmDNS.create(addr, hostName + "-jmdns"));
 						}
 						catch (final Throwable e) {
-							LOG.log(Level.SEVERE, "Failed to publish service on " + addr, e);
+							LOG.log(Level.SEVERE, "Failed to create mDNS responder on " + addr, e);
 						}
 		    		}
 		    	}
-	        }
+			}
+			catch (SocketException e) {
+				LOG.log(Level.SEVERE, "Failed to create mDNS responders", e);
+			}
 
-		} 
-		catch (SocketException e) {
-			LOG.log(Level.SEVERE, "Failed register mDNS services", e);
+			return new java.util.ArrayList<JmDNS>(jmDNSInstances);
 		}
 	}
 
 	//When the app is shutdown
 	protected void onShutdown() {
-		/* Close channels */
-		final ChannelGroupFuture allChannelsClosed = channelGroup.close();
+		/* Stop all receivers, which closes their channels and withdraws their services */
+		for(final AirPlayReceiver receiver: getReceivers()) {
+			destroyReceiver(receiver);
+		}
 
 		/* Stop all mDNS responders */
 		synchronized(jmDNSInstances) {
 			for(final JmDNS jmDNS: jmDNSInstances) {
 				try {
 					jmDNS.unregisterAllServices();
-					LOG.info("Unregistered all services on " + jmDNS.getInterface());
+					jmDNS.close();
+					LOG.info("Closed mDNS responder on " + jmDNS.getInterface());
 				}
 				catch (final IOException e) {
-					LOG.log(Level.WARNING, "Failed to unregister some services", e);
+					LOG.log(Level.WARNING, "Failed to close mDNS responder", e);
 					
 				}
 			}
+			jmDNSInstances.clear();
 		}
-
-		/* Wait for all channels to finish closing */
-		allChannelsClosed.awaitUninterruptibly();
 		
-		/* Stop the ExecutorService */
+		/* Stop the ExecutorServices */
+		rtspChannelFactory.releaseExternalResources();
 		executorService.shutdown();
+		timingExecutorService.shutdown();
 
 		/* Release the OrderedMemoryAwareThreadPoolExecutor */
 		channelExecutionHandler.releaseExternalResources();
@@ -241,12 +427,38 @@ public class AirPlayServer implements Runnable {
 		return channelExecutionHandler;
 	}
 
+	/**
+	 * Returns the RTSP server channel and connections of the default receiver
+	 *
+	 * @return channel group, empty if the default receiver isn't running
+	 * @deprecated each receiver has its own channels, use {@link AirPlayReceiver#getChannelGroup()}
+	 */
+	@Deprecated
 	public ChannelGroup getChannelGroup() {
-		return channelGroup;
+		final AirPlayReceiver receiver = defaultReceiver;
+		return (receiver != null) ? receiver.getChannelGroup() : new DefaultChannelGroup();
+	}
+
+	/**
+	 * Returns the factory of the RTSP server channels, shared by all receivers
+	 *
+	 * @return RTSP channel factory
+	 */
+	NioServerSocketChannelFactory getRtspChannelFactory() {
+		return rtspChannelFactory;
 	}
 
 	public ExecutorService getExecutorService() {
 		return executorService;
 	}
 
+	/**
+	 * Returns the executor which sends the timing requests of all sessions
+	 *
+	 * @return timing executor service
+	 */
+	public ScheduledExecutorService getTimingExecutorService() {
+		return timingExecutorService;
+	}
+
 }
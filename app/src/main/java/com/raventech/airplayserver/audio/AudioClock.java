@@ -19,14 +19,17 @@ package com.raventech.airplayserver.audio;
 
 /**
  * Audio device clock
+ * <p>
+ * Queried by the network threads for every packet, so implementations
+ * must answer without taking locks the playout thread might hold.
  */
 public interface AudioClock {
 	/**
-	 * Returns the current playback time in seconds.
+	 * Returns the current playback time as an NTP time stamp.
 	 * 
-	 * @return time of currently played sample
+	 * @return time of currently played sample, see {@link FixedPointTime}
 	 */
-	double getNowSecondsTime();
+	long getNowNtpTime();
 	
 	/**
 	 * Returns the current playback time in frames
@@ -36,12 +39,12 @@ public interface AudioClock {
 	//long getNowFrameTime();
 
 	/**
-	 * Returns the earliest time in samples for which data
+	 * Returns the earliest time as an NTP time stamp for which data
 	 * is still accepted
 	 * 
-	 * @return earliest playback time for new data
+	 * @return earliest playback time for new data, see {@link FixedPointTime}
 	 */
-	double getNextSecondsTime();
+	long getNextNtpTime();
 	
 	/**
 	 * Returns the earliest time in frames for which data
@@ -52,19 +55,29 @@ public interface AudioClock {
 	long getNextFrameTime();
 
 	/**
-	 * Converts from frame time to seconds time
+	 * Converts from frame time to NTP time
 	 * 
 	 * @param frameTime frame time to convert
-	 * @return corresponding seconds time
+	 * @return corresponding NTP time, see {@link FixedPointTime}
 	 */
-	double convertFrameToSecondsTime(long frameTime);
+	long convertFrameToNtpTime(long frameTime);
 
 	/**
 	 * Adjusts the frame time so that the given frame time
-	 * coindices with the given seconds time
+	 * coindices with the given NTP time
 	 * 
-	 * @param frameTime frame time corresponding to seconds time
-	 * @param secondsTime seconds time corresponding to frame time
+	 * @param frameTime frame time corresponding to NTP time
+	 * @param ntpTime NTP time corresponding to frame time, see {@link FixedPointTime}
+	 */
+	void setFrameTime(long frameTime, long ntpTime);
+
+	/**
+	 * Tells the clock which frame the source was sending at the given NTP time.
+	 * Unlike {@link #setFrameTime(long, long)} this doesn't affect playback, it
+	 * only serves to measure the latency between source and output
+	 *
+	 * @param frameTime frame time the source was sending
+	 * @param ntpTime NTP time at which the frame was sent, see {@link FixedPointTime}
 	 */
-	void setFrameTime(long frameTime, double secondsTime);
+	void setSourceFrameTime(long frameTime, long ntpTime);
 }
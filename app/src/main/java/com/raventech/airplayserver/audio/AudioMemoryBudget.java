@@ -0,0 +1,141 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the audio data queued by all {@link AudioOutputQueue}s.
+ * <p>
+ * Tracks both the memory the queues allocated for their packets and the
+ * bytes of sample data actually queued. The queued bytes are limited,
+ * queues evict their packets farthest in the future once the limit is hit.
+ */
+public class AudioMemoryBudget {
+	/**
+	 * Limit which disables the global limit
+	 */
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+
+	private final AtomicLong allocatedBytes = new AtomicLong(0);
+
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	private volatile long maxQueuedBytes;
+
+	public AudioMemoryBudget() {
+		this(UNLIMITED);
+	}
+
+	/**
+	 * Creates a budget with the given limit
+	 *
+	 * @param maxQueuedBytes limit of the bytes queued by all queues together
+	 */
+	public AudioMemoryBudget(final long maxQueuedBytes) {
+		setMaxQueuedBytes(maxQueuedBytes);
+	}
+
+	/**
+	 * Reserves the given number of bytes if the limit permits
+	 *
+	 * @param bytes number of bytes
+	 * @return true if the bytes were reserved
+	 */
+	public boolean reserve(final long bytes) {
+		while (true) {
+			final long queued = queuedBytes.get();
+			if (queued + bytes > maxQueuedBytes)
+				return false;
+			if (queuedBytes.compareAndSet(queued, queued + bytes))
+				return true;
+		}
+	}
+
+	/**
+	 * Releases bytes previously reserved
+	 *
+	 * @param bytes number of bytes
+	 */
+	public void release(final long bytes) {
+		queuedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Records memory allocated (or, if negative, freed) by a queue
+	 *
+	 * @param bytes number of bytes
+	 */
+	void allocated(final long bytes) {
+		allocatedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records packets evicted or refused by a queue
+	 *
+	 * @param packets number of packets
+	 */
+	void evicted(final long packets) {
+		evictions.addAndGet(packets);
+	}
+
+	/**
+	 * Returns the bytes of sample data queued by all queues
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Returns the memory all queues allocated for their packets
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Returns the number of packets evicted or refused by all queues
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Sets the limit of the bytes queued by all queues together. Lowering the
+	 * limit below the bytes currently queued doesn't evict anything right away,
+	 * but makes the queues evict or refuse packets until the limit holds again
+	 *
+	 * @param maxQueuedBytes limit in bytes, or {@link #UNLIMITED}
+	 */
+	public void setMaxQueuedBytes(final long maxQueuedBytes) {
+		if (maxQueuedBytes < 0)
+			throw new IllegalArgumentException("maxQueuedBytes must not be negative");
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "queued " + getQueuedBytes() + " of " + ((maxQueuedBytes != UNLIMITED) ? Long.toString(maxQueuedBytes) : "unlimited") + " bytes, allocated " + getAllocatedBytes() + " bytes, " + getEvictions() + " evictions";
+	}
+}
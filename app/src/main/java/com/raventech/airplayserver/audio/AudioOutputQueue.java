@@ -17,15 +17,16 @@
 
 package com.raventech.airplayserver.audio;
 
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import android.media.AudioFormat;
-
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import com.raventech.airplayserver.network.RunningExponentialAverage;
 
 /**
  * Audio output queue.
@@ -38,7 +39,68 @@ public class AudioOutputQueue implements AudioClock {
 
 	private static final double QUEUE_LENGHT_MAX_SECONDS 	= 10;
 	private static final double BUFFER_SIZE_SECONDS 		= 0.05;
-	private static final double TIMING_PRECISION 			= 0.001;
+	/**
+	 * Timing errors up to this many seconds are corrected gradually by resampling,
+	 * larger ones by skipping frames or inserting silence
+	 */
+	private static final double HARD_CORRECTION_THRESHOLD 	= 0.02;
+
+	/**
+	 * Minimal interval between two samples of the sink's playback position
+	 */
+	private static final long POSITION_SAMPLE_INTERVAL_NANOS = 10000000L;
+
+	/**
+	 * Playback position samples deviating from the interpolated position by more
+	 * than this many seconds replace it. Smaller deviations are slewed in gradually
+	 */
+	private static final double POSITION_RESYNC_THRESHOLD 	= 0.05;
+
+	/**
+	 * Minimal interval between two queries of the sink's presentation latency,
+	 * and weight of a new sample in the average latency
+	 */
+	private static final long PRESENTATION_LATENCY_SAMPLE_INTERVAL_NANOS = 1000000000L;
+	private static final double PRESENTATION_LATENCY_AVERAGE_WEIGHT = 0.1;
+
+	/**
+	 * With a latency target, the queue holds up to this multiple of the target
+	 * (plus {@link #QUEUE_LENGTH_MARGIN_SECONDS}), and the output buffer
+	 * at most this fraction of it
+	 */
+	private static final double QUEUE_LENGTH_LATENCY_FACTOR = 2;
+	private static final double QUEUE_LENGTH_MARGIN_SECONDS = 0.5;
+	private static final double BUFFER_SIZE_LATENCY_FRACTION = 0.125;
+
+	/**
+	 * With write batching, the output buffer holds at least this many batches,
+	 * and a batch is at most this fraction of the latency target
+	 */
+	private static final int BATCH_BUFFER_BATCHES = 3;
+	private static final double BATCH_LATENCY_FRACTION = 0.25;
+
+	/**
+	 * With a latency target, the adaptive playout delay adds at most this
+	 * fraction of the target to the latency advertised to the source
+	 */
+	private static final double PLAYOUT_DELAY_LATENCY_FRACTION = 0.25;
+
+	/**
+	 * Weight of a new sample in the average latency, and interval between two reports
+	 */
+	private static final double LATENCY_AVERAGE_WEIGHT 		= 0.01;
+	private static final long LATENCY_REPORT_INTERVAL_NANOS = 10000000000L;
+
+	/**
+	 * Time {@link #close()} waits for the enqueuer thread to hand the sink back
+	 */
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Typical size of an encoded packet relative to its PCM, used to
+	 * size the packet queue of a decoding queue under a memory limit
+	 */
+	private static final double ENCODED_PACKET_SIZE_RATIO = 0.5;
 	
 	/**
 	 * Signals that the queue is being closed.
@@ -51,18 +113,7 @@ public class AudioOutputQueue implements AudioClock {
 	 */
 	//private final AudioFormat m_format;
 
-	private int streamType;
-	private int sampleRateInHz;
-	private int channelConfig;
-	private int audioFormat;
 	private int bufferSizeInBytes;
-	private int mode;
-	
-	/**
-	 * True if the line's audio format is signed but
-	 * the requested format was unsigned
-	 */
-	private final boolean convertUnsignedToSigned;
 
 	/**
 	 * Bytes per frame, i.e. number of bytes
@@ -70,11 +121,21 @@ public class AudioOutputQueue implements AudioClock {
 	 */
 	private final int bytesPerFrame;
 
+	/**
+	 * Samples per frame, i.e. the number of channels
+	 */
+	private final int channels;
+
 	/**
 	 * Sample rate
 	 */
 	private final double sampleRate;
 
+	/**
+	 * Sample rate, for fixed-point time conversions
+	 */
+	private final long framesPerSecond;
+
 	/**
 	 * Average packet size in frames.
 	 * 
@@ -84,93 +145,420 @@ public class AudioOutputQueue implements AudioClock {
 	 */
 	private final int packetSizeFrames;
 
+	/**
+	 * Latency target in frames, or {@link PlayoutSettings#SOURCE_LATENCY}
+	 */
+	private final long latencyFrames;
+
+	/**
+	 * Output latency beyond the sink's presentation latency, as calibrated
+	 * for the receiver's output
+	 */
+	private final long calibratedLatencyNtpTime;
+
+	/**
+	 * Time between a frame passing the sink's playback position and it being
+	 * heard, i.e. the sink's presentation latency plus the calibrated latency.
+	 * Written by the enqueuer thread only
+	 */
+	private volatile long outputLatencyNtpTime;
+
+	/**
+	 * Average presentation latency reported by the sink, in seconds.
+	 * Accessed by the enqueuer thread only
+	 */
+	private final RunningExponentialAverage presentationLatencyAverage = new RunningExponentialAverage();
+
+	private long presentationLatencySampledNanos = 0;
+
+	/**
+	 * Timeline shared by all queues, which the NTP time is disciplined to
+	 */
+	private final MasterClock masterClock = MasterClock.SHARED;
+
+	/**
+	 * Maximal time between a packet's arrival and its playback
+	 */
+	private final double queueLengthMaxSeconds;
+
 	/**
 	 * JavaSounds audio output line
 	 */
 	//private final SourceDataLine m_line;
 
 	/**
-	 * Android audio track (replaces the SourceDataLine)
+	 * Audio output device (replaces the SourceDataLine)
 	 */
-	private AudioTrack audioTrack;
+	private final AudioSink audioSink;
 	
 	/**
 	 * The last frame written to the line.
 	 * Used to generate filler data
 	 */
-	private final byte[] lineLastFrame;
+	private final short[] lineLastFrame;
+
+	/**
+	 * One packet's worth of filler data, i.e. repetitions of
+	 * {@link #lineLastFrame}. Refilled only if the last frame changed
+	 */
+	private final short[] lineFiller;
 
 	/**
 	 * Packet queue, indexed by playback time
 	 */
-	private final ConcurrentSkipListMap<Long, byte[]> frameQueue = new ConcurrentSkipListMap<Long, byte[]>();
+	private final AudioPacketRing frameQueue;
+
+	/**
+	 * Global accounting of queued audio data
+	 */
+	private final AudioMemoryBudget memoryBudget;
+
+	/**
+	 * Decodes the queued packets before playback, or null if they're queued as PCM
+	 */
+	private final AudioPacketDecoder packetDecoder;
+
+	/**
+	 * Output buffer of the {@link #packetDecoder} in native byte order,
+	 * and a view of it. Null unless decoding
+	 */
+	private final ByteBuffer decodedBuffer;
+	private final ShortBuffer decodedSamples;
+
+	/**
+	 * Set once the packet queue's memory was handed back to the {@link #memoryBudget}
+	 */
+	private boolean frameQueueReleased = false;
+
+	/**
+	 * Turns the timing errors at the line's end into a rate correction
+	 */
+	private final DriftCompensator driftCompensator = new DriftCompensator();
+
+	/**
+	 * Measures the network jitter and derives the playout delay from it
+	 */
+	private final JitterEstimator jitterEstimator;
+
+	/**
+	 * Playout delay currently included in the clock mapping, in frames.
+	 * Written by the enqueuer thread only, while holding {@link #clockMappingLock}
+	 */
+	private volatile long appliedDelayFrames = 0;
+
+	/**
+	 * Applies the rate correction
+	 */
+	private final FractionalResampler resampler;
+
+	/**
+	 * Output buffer of the {@link #resampler}
+	 */
+	private final short[] resampledSamples;
+
+	/**
+	 * Number of frames collected before they're written to the sink,
+	 * or zero if every packet is written as soon as it's due
+	 */
+	private final int batchFrames;
+
+	/**
+	 * Samples collected for the next write to the sink, in native byte order,
+	 * and a view of it. Null unless batching. Accessed by the enqueuer thread only
+	 */
+	private final ByteBuffer batchBuffer;
+	private final ShortBuffer batchSamples;
+
+	/**
+	 * Number of samples in {@link #batchBuffer}
+	 */
+	private int batchLength = 0;
 
 	/**
 	 * Enqueuer thread
 	 */
 	private final Thread queueThread = new Thread(new EnQueuer());
 
+	/**
+	 * Number of buffered frames below which the enqueuer thread
+	 * tops the line up with silence
+	 */
+	private final int lineLowWaterFrames;
+
+	/**
+	 * Time without audio data after which the line is paused
+	 */
+	private final long idleTimeoutNanos;
+
+	/**
+	 * True while the enqueuer thread sleeps until new data arrives
+	 */
+	private volatile boolean playoutWaiting = false;
+
+	/**
+	 * Sequence number guarding the line state below. Odd while the
+	 * enqueuer thread, the only writer, updates the line state.
+	 * Readers retry until they observe the same even number before
+	 * and after reading, and thus never block
+	 */
+	private volatile int lineSequence = 0;
+
 	/**
 	 * Number of frames appended to the line
 	 */
-	private long framesWrittenToLine = 0;
+	private volatile long framesWrittenToLine = 0;
+
+	/**
+	 * Number of frames the line time advanced while the line was paused.
+	 */
+	private volatile long lineTimeSkipped = 0;
+
+	/**
+	 * True while the line is paused. The line time then keeps advancing from
+	 * {@link #linePausedSinceNanos} on, and is added to {@link #lineTimeSkipped}
+	 * once the line resumes
+	 */
+	private volatile boolean linePaused = false;
+
+	private volatile long linePausedSinceNanos = 0;
+
+	/**
+	 * Estimated playback position of the sink at {@link #positionBaseNanos}.
+	 * The sink is only ever queried by the enqueuer thread, everybody else
+	 * interpolates from this estimate
+	 */
+	private volatile long positionBase = 0;
+
+	private volatile long positionBaseNanos = 0;
+
+	/**
+	 * False while the sink's playback position stands still, i.e. while it's paused
+	 */
+	private volatile boolean positionAdvancing = false;
+
+	/**
+	 * Largest line time returned by {@link #getNowLineTime()}, keeps it monotonic
+	 */
+	private final AtomicLong latestNowLineTime = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Largest frame time seen so far. Written by the enqueuing thread only
+	 */
+	private volatile long latestSeenFrameTime = 0;
+
+	/**
+	 * Mapping between line time and frame and NTP time, initially mapping
+	 * line time zero to the master clock's current time. Replaced
+	 * as a whole on every change, so readers see a consistent mapping
+	 * without locking. Writers synchronize on {@link #clockMappingLock}
+	 */
+	private volatile ClockMapping clockMapping = new ClockMapping(0, masterClock.getNowNtpTime());
+
+	/**
+	 * Frame the source was sending at an NTP time, or null. Used only to
+	 * measure the latency
+	 */
+	private volatile ClockMapping sourceMapping = null;
 
 	/**
-	 * Largest frame time seen so far
+	 * Average time between the source sending a frame and the frame being heard,
+	 * in seconds. Accessed by the enqueuer thread only
 	 */
-	private long latestSeenFrameTime = 0;
+	private final RunningExponentialAverage latencyAverage = new RunningExponentialAverage();
+
+	private long latencyReportedNanos = 0;
 
 	/**
-	 * The frame time corresponding to line time zero
+	 * Published copy of {@link #latencyAverage}
 	 */
-	private long frameTimeOffset = 0;
+	private volatile double measuredLatencySeconds = Double.NaN;
+
+	private final Object clockMappingLock = new Object();
 
 	/**
-	 * The seconds time corresponding to line time zero
+	 * Creation time of the queue, and whether audio data was played since.
+	 * Used to report the time to the first audio
 	 */
-	private double secondsTimeOffset;
+	private final long createdNanos = System.nanoTime();
+	private boolean audioPlayed = false;
 
 	/**
 	 * Requested volume
 	 */
-	private float requestedVolume = AudioTrack.getMaxVolume();
+	private volatile float requestedVolume = AudioSink.MAX_VOLUME;
 	
 	/**
-	 * Current volume
+	 * Processors applied in the playout stage, starting with the {@link #gainProcessor}
+	 */
+	private final AudioProcessingChain processingChain = new AudioProcessingChain();
+
+	/**
+	 * Applies the requested volume
+	 */
+	private final GainProcessor gainProcessor;
+
+	/**
+	 * Views of the {@link #resampledSamples}, for the processing chain
+	 */
+	private final ShortSampleBuffer resampledBuffer;
+	private final ShortSampleBuffer processingBuffer;
+
+	/**
+	 * Immutable mapping between frame and NTP time, relative
+	 * to line time zero unless noted otherwise
 	 */
-	private float currentVolume = AudioTrack.getMaxVolume();
+	private static final class ClockMapping {
+		/**
+		 * The frame time corresponding to line time zero
+		 */
+		final long frameTimeOffset;
+
+		/**
+		 * The NTP time corresponding to line time zero
+		 */
+		final long ntpTimeOffset;
+
+		ClockMapping(final long frameTimeOffset, final long ntpTimeOffset) {
+			this.frameTimeOffset = frameTimeOffset;
+			this.ntpTimeOffset = ntpTimeOffset;
+		}
+	}
 	
-	public AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider) {
-		convertUnsignedToSigned = true;
-		
-		//setup the Audio Format options
-		streamType = AudioManager.STREAM_MUSIC;
-		
-		sampleRateInHz = streamInfoProvider.getSampleRate();
-		channelConfig = streamInfoProvider.getChannels();
-		audioFormat = streamInfoProvider. getAudioFormat();
-		
+	public AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider, final AudioSinkFactory audioSinkFactory, final PlayoutSettings playoutSettings, final AudioMemoryBudget memoryBudget) throws IOException {
+		this(streamInfoProvider, audioSinkFactory, playoutSettings, memoryBudget, null);
+	}
+
+	/**
+	 * Creates a queue which queues encoded packets and decodes them just
+	 * before their playback
+	 *
+	 * @param streamInfoProvider format of the decoded audio
+	 * @param audioSinkFactory creates the audio sink
+	 * @param playoutSettings playout tunables
+	 * @param memoryBudget global accounting of queued audio data
+	 * @param packetDecoder decodes the packets, or null to queue PCM
+	 * @throws IOException if the audio sink can't be created
+	 */
+	public AudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider, final AudioSinkFactory audioSinkFactory, final PlayoutSettings playoutSettings, final AudioMemoryBudget memoryBudget, final AudioPacketDecoder packetDecoder) throws IOException {
 		sampleRate = streamInfoProvider.getSampleRate();
+		framesPerSecond = streamInfoProvider.getSampleRate();
 		
 		/* Audio format-dependent stuff */
 		packetSizeFrames = streamInfoProvider.getFramesPerPacket();
 		bytesPerFrame = streamInfoProvider.getChannels() * streamInfoProvider.getSampleSizeInBits() / 8;
+		channels = streamInfoProvider.getChannels();
+
+		/* With a latency target, packets should never be queued for much longer than
+		 * the target, and the output buffer must leave room for the queue
+		 */
+		latencyFrames = playoutSettings.getLatencyFrames(sampleRate);
+		calibratedLatencyNtpTime = FixedPointTime.fromNanos(playoutSettings.getOutputLatencyMicros() * 1000L);
+		outputLatencyNtpTime = calibratedLatencyNtpTime;
+		double bufferSizeSeconds;
+		double batchSeconds = playoutSettings.getBatchMillis() / 1000.0;
+		long maxPlayoutDelayFrames = Math.round(playoutSettings.getMaxPlayoutDelayMillis() * sampleRate / 1000.0);
+		if (latencyFrames != PlayoutSettings.SOURCE_LATENCY) {
+			final double latencySeconds = latencyFrames / sampleRate;
+			queueLengthMaxSeconds = Math.min(QUEUE_LENGHT_MAX_SECONDS, QUEUE_LENGTH_LATENCY_FACTOR * latencySeconds + QUEUE_LENGTH_MARGIN_SECONDS);
+			bufferSizeSeconds = Math.min(BUFFER_SIZE_SECONDS, BUFFER_SIZE_LATENCY_FRACTION * latencySeconds);
+			batchSeconds = Math.min(batchSeconds, BATCH_LATENCY_FRACTION * latencySeconds);
+			maxPlayoutDelayFrames = Math.min(maxPlayoutDelayFrames, Math.round(PLAYOUT_DELAY_LATENCY_FRACTION * latencyFrames));
+		}
+		else {
+			queueLengthMaxSeconds = QUEUE_LENGHT_MAX_SECONDS;
+			bufferSizeSeconds = BUFFER_SIZE_SECONDS;
+		}
+
+		/* Batches consist of whole packets, and the output buffer must
+		 * hold a few of them for the playout thread to sleep in between
+		 */
+		if (batchSeconds > 0) {
+			batchFrames = packetSizeFrames * (int)Math.max(1, Math.round(batchSeconds * sampleRate / packetSizeFrames));
+			bufferSizeSeconds = Math.max(bufferSizeSeconds, BATCH_BUFFER_BATCHES * batchFrames / sampleRate);
+		}
+		else {
+			batchFrames = 0;
+		}
 		
+		/* The packet queue must be able to hold the maximal queue length, plus the
+		 * packets which are already late but not yet removed by the enqueuer thread.
+		 * A memory limit caps the number of packets, since they're allocated up front.
+		 * The limit defaults to UNLIMITED_QUEUED_BYTES, so it must not be added to.
+		 * Encoded packets are limited by their actual size, so the slots must hold the
+		 * largest packet, but the limit is expected to fit more of them
+		 */
+		final long maxQueuedBytes = playoutSettings.getMaxQueuedBytes();
+		final long pcmPacketBytes = 2L * packetSizeFrames * channels;
+		final long packetBytes = (packetDecoder != null) ? (long)Math.ceil(ENCODED_PACKET_SIZE_RATIO * pcmPacketBytes) : pcmPacketBytes;
+		final long queuePackets = (long)Math.ceil(queueLengthMaxSeconds * sampleRate / packetSizeFrames) + 2;
+		final long memoryPackets = maxQueuedBytes / packetBytes + 1;
+		this.memoryBudget = memoryBudget;
+		frameQueue = new AudioPacketRing(
+			(int)Math.max(1, Math.min(queuePackets, memoryPackets)),
+			packetSizeFrames,
+			(packetDecoder != null) ? packetDecoder.getMaxPacketBytes() : (int)pcmPacketBytes,
+			maxQueuedBytes,
+			memoryBudget
+		);
+		memoryBudget.allocated(frameQueue.getAllocatedBytes());
+
 		//calculate the buffer size in bytes
-		bufferSizeInBytes = (int)Math.pow(2, Math.ceil(Math.log(BUFFER_SIZE_SECONDS * sampleRate * bytesPerFrame) / Math.log(2.0)));
-		
-		mode = AudioTrack.MODE_STREAM;
+		bufferSizeInBytes = (int)Math.pow(2, Math.ceil(Math.log(bufferSizeSeconds * sampleRate * bytesPerFrame) / Math.log(2.0)));
 		
-		//create the AudioTrack
-		//audioTrack = new AudioTrack(streamType, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes, mode);
-		audioTrack = new AudioTrack(streamType, sampleRateInHz, AudioFormat.CHANNEL_CONFIGURATION_STEREO, audioFormat, bufferSizeInBytes, mode);//FIXME
+		//create the audio sink
+		audioSink = audioSinkFactory.createAudioSink(streamInfoProvider, bufferSizeInBytes);
 
-		LOG.info("AudioTrack created succesfully with a buffer of : " + bufferSizeInBytes + " bytes and : " + bufferSizeInBytes / bytesPerFrame + " frames.");
+		/* The source only knows the advertised latency target, so the
+		 * playout delay must not move playback far beyond it
+		 */
+		jitterEstimator = new JitterEstimator(
+			sampleRate,
+			packetSizeFrames,
+			Math.min(Math.round(playoutSettings.getMinPlayoutDelayMillis() * sampleRate / 1000.0), maxPlayoutDelayFrames),
+			maxPlayoutDelayFrames
+		);
+
+		/* Top the line up once it's half empty, but keep at least one packet buffered */
+		lineLowWaterFrames = Math.max(packetSizeFrames, bufferSizeInBytes / bytesPerFrame / 2);
+		idleTimeoutNanos = playoutSettings.getIdleTimeoutMillis() * 1000000L;
+
+		LOG.info("Audio sink " + audioSink.getClass().getSimpleName() + " created succesfully with a buffer of : " + bufferSizeInBytes + " bytes and : " + bufferSizeInBytes / bytesPerFrame + " frames, latency target " + ((latencyFrames != PlayoutSettings.SOURCE_LATENCY) ? latencyFrames + " frames." : "set by source."));
 			
-		//create initial array of "filler" bytes ....
-		lineLastFrame = new byte[bytesPerFrame];
-		for(int b=0; b < lineLastFrame.length; ++b){
-			lineLastFrame[b] = (b % 2 == 0) ? (byte)-128 : (byte)0;
+		//create initial "filler" data, i.e. silence
+		lineLastFrame = new short[channels];
+		lineFiller = new short[packetSizeFrames * channels];
+
+		/* Resampling a packet by at most the maximal correction yields at most one extra frame */
+		resampler = new FractionalResampler(channels);
+		resampledSamples = new short[(packetSizeFrames + (int)Math.ceil(packetSizeFrames * DriftCompensator.MAX_CORRECTION) + 1) * channels];
+
+		/* The samples are processed in the resampler's output buffer */
+		resampledBuffer = ShortSampleBuffer.interleaved(resampledSamples, channels);
+		processingBuffer = ShortSampleBuffer.interleaved(resampledSamples, channels);
+		gainProcessor = new GainProcessor(sampleRate, GainProcessor.DEFAULT_RAMP_SECONDS, AudioSink.MAX_VOLUME);
+		processingChain.add(gainProcessor);
+
+		/* Packets are decoded one at a time, right before they're appended to the line */
+		this.packetDecoder = packetDecoder;
+		if (packetDecoder != null) {
+			decodedBuffer = ByteBuffer.allocateDirect((int)pcmPacketBytes).order(ByteOrder.nativeOrder());
+			decodedSamples = decodedBuffer.asShortBuffer();
+			LOG.info("Queueing encoded packets, decoding them before playback");
+		}
+		else {
+			decodedBuffer = null;
+			decodedSamples = null;
+		}
+
+		/* A batch is written once it's full, so the batch buffer needs room for one more write */
+		if (batchFrames > 0) {
+			batchBuffer = ByteBuffer.allocateDirect(2 * (batchFrames * channels + resampledSamples.length)).order(ByteOrder.nativeOrder());
+			batchSamples = batchBuffer.asShortBuffer();
+			LOG.info("Writing to the audio sink in batches of " + batchFrames + " frames");
+		}
+		else {
+			batchBuffer = null;
+			batchSamples = null;
 		}
 
 		/* Create enqueuer thread and wait for the line to start.
@@ -185,25 +573,60 @@ public class AudioOutputQueue implements AudioClock {
 		queueThread.start();
 		
 		//while ( queueThread.isAlive() && ! m_line.isActive() ){
-		while ( queueThread.isAlive() && audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING){
+		while ( queueThread.isAlive() && ! audioSink.isPlaying()){
 			Thread.yield();
 		}
 		*/
 
-		/* Initialize the seconds time offset now that the line is running. */
-		secondsTimeOffset = 2208988800.0 +  System.currentTimeMillis() * 1e-3;
+		/* Initialize the NTP time offset now that the line is running. */
+		resetNtpTimeOffset();
 	}
 	
 	public void startAudioProcessing(){
 		queueThread.start();
 		
 		//while ( queueThread.isAlive() && ! m_line.isActive() ){
-		while ( queueThread.isAlive() && audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING){
+		while ( queueThread.isAlive() && ! audioSink.isPlaying()){
 			Thread.yield();
 		}
 
-		/* Initialize the seconds time offset now that the line is running. */
-		secondsTimeOffset = 2208988800.0 +  System.currentTimeMillis() * 1e-3;
+		/* Initialize the NTP time offset now that the line is running. */
+		resetNtpTimeOffset();
+	}
+
+	/**
+	 * Maps the line time currently played to the {@link #masterClock}'s current time
+	 * plus the output latency. The NTP time of a line time is thus the time its frame
+	 * is heard, and the frame heard now is the one at the master clock's time.
+	 * <p>
+	 * The sink's clock drifts against the master clock and the latency varies, so
+	 * this is repeated whenever the playback position is sampled. The frame time
+	 * offset moves along, so the NTP time of each frame, and hence the time it's
+	 * heard, stays put. The mapping is moved in whole frames, and only replaced
+	 * if it moves at all.
+	 */
+	private void resetNtpTimeOffset() {
+		final long nowNanos = System.nanoTime();
+
+		long lineTime;
+		while (true) {
+			final int sequence = lineSequence;
+			lineTime = interpolatePlaybackPosition(nowNanos) + lineTimeSkipped + getPausedLineTime(nowNanos);
+			if (((sequence & 1) == 0) && (sequence == lineSequence))
+				break;
+		}
+
+		final long ntpTimeOffsetTarget = masterClock.convertNanosToNtpTime(nowNanos) + outputLatencyNtpTime - FixedPointTime.fromFrames(lineTime, framesPerSecond);
+		synchronized(clockMappingLock) {
+			final ClockMapping mapping = clockMapping;
+			final long shiftFrames = FixedPointTime.toFrames(ntpTimeOffsetTarget - mapping.ntpTimeOffset, framesPerSecond);
+			if (shiftFrames != 0) {
+				clockMapping = new ClockMapping(
+					mapping.frameTimeOffset + shiftFrames,
+					mapping.ntpTimeOffset + FixedPointTime.fromFrames(shiftFrames, framesPerSecond)
+				);
+			}
+		}
 	}
 	
 	/**
@@ -221,23 +644,63 @@ public class AudioOutputQueue implements AudioClock {
 
 				/* Start the line */
 				//m_line.start();
-				//start the audio track
-				audioTrack.play();
-				
-				LOG.info("Audio Track started !!!");
+				audioSink.start();
+				samplePlaybackPosition(true);
 				
 				boolean lineMuted = true;
 				boolean didWarnGap = false;
+				long lastAudioNanos = System.nanoTime();
 				while ( ! closing) {
-					if ( ! frameQueue.isEmpty() ) {
-						/* Queue filled */
+					if (linePaused) {
+						/* Sleep until the queue receives data. The line is muted
+						 * already, so resuming it doesn't click. A flush requested
+						 * meanwhile is executed, so the queue accepts the data
+						 */
+						frameQueue.executeFlush();
+						if (frameQueue.isEmpty()) {
+							playoutWaiting = true;
+							if (frameQueue.isEmpty() && ! closing){
+								LockSupport.park(AudioOutputQueue.this);
+							}
+							playoutWaiting = false;
+							continue;
+						}
 
-						/* If the gap between the next packet and the end of line is
-						 * negligible (less than one packet), we write it to the line.
-						 * Otherwise, we fill the line buffer with silence and hope for
-						 * further packets to appear in the queue
+						/* Starting the sink may block, so do so before entering the
+						 * section the readers spin on. The line time advanced while
+						 * the line was paused
 						 */
-						final long entryFrameTime = frameQueue.firstKey();
+						audioSink.start();
+						final long nowNanos = System.nanoTime();
+						final long pausedSinceNanos = linePausedSinceNanos;
+						lineSequence++;
+						try {
+							lineTimeSkipped += getPausedLineTime(nowNanos);
+							linePaused = false;
+						}
+						finally {
+							lineSequence++;
+						}
+						samplePlaybackPosition(true);
+						lastAudioNanos = nowNanos;
+						LOG.info("Audio data available, resuming line paused for " + (nowNanos - pausedSinceNanos) / 1000000L + " ms");
+					}
+
+					if (System.nanoTime() - positionBaseNanos >= POSITION_SAMPLE_INTERVAL_NANOS){
+						samplePlaybackPosition(true);
+					}
+
+					/* We're between two packets, so now is the time to adjust the playout delay */
+					adjustPlayoutDelay();
+
+					/* If the gap between the next packet and the end of line is
+					 * negligible (less than one packet), we write it to the line.
+					 * Otherwise, we fill the line buffer with silence and hope for
+					 * further packets to appear in the queue
+					 */
+					final long entryFrameTime = frameQueue.peek(getNextFrameTime());
+					if (entryFrameTime != AudioPacketRing.NONE) {
+						/* Queue filled */
 						final long entryLineTime = convertFrameToLineTime(entryFrameTime);
 						final long gapFrames = entryLineTime - getNextLineTime();
 						
@@ -247,58 +710,133 @@ public class AudioOutputQueue implements AudioClock {
 						if (gapFrames < -packetSizeFrames) {
 							/* Too late for playback */
 							LOG.warning("Audio data was scheduled for playback " + (-gapFrames) + " frames ago, skipping");
-							frameQueue.remove(entryFrameTime);
+							frameQueue.release();
 							continue;
 						}
 						else if (gapFrames < packetSizeFrames) {
 							/* Negligible gap between packet and line end. Prepare packet for playback */
 							didWarnGap = false;
 
-							/* Unmute line in case it was muted previously */
+							/* Unmute line in case it was muted previously. The line played silence
+							 * so far, so the packet is aligned exactly, by writing more silence or
+							 * skipping its first frames, instead of resampling the gap away slowly
+							 */
+							int skipFrames = 0;
 							if (lineMuted) {
-								LOG.info("Audio data available, un-muting line");
+								if ( ! audioPlayed )
+									LOG.info("Audio data available " + (System.nanoTime() - createdNanos) / 1000000L + " ms after the queue was created, un-muting line");
+								else
+									LOG.info("Audio data available, un-muting line");
+								audioPlayed = true;
+
+								if (gapFrames > 0)
+									appendSilence((int)gapFrames);
+								else
+									skipFrames = (int)-gapFrames;
+								resampler.reset();
 
 								lineMuted = false;
 								applyVolume();
 							}
-							else if (getVolume() != getRequestedVolume()) {
-								applyVolume();
+
+							/* Get sample data, decoding the packet if necessary, and do sanity checks */
+							final ByteBuffer nextPlaybackData;
+							final ShortBuffer nextPlaybackSamples;
+							int nextPlaybackSamplesLength;
+							if (packetDecoder != null) {
+								try {
+									nextPlaybackSamplesLength = Math.min(
+										packetDecoder.decode(frameQueue.headData(), decodedSamples),
+										decodedSamples.capacity()
+									);
+								}
+								catch (final Exception e) {
+									LOG.log(Level.WARNING, "Audio data for frame time " + entryFrameTime + " could not be decoded, skipping", e);
+									frameQueue.release();
+									continue;
+								}
+								decodedBuffer.limit(2 * nextPlaybackSamplesLength).position(0);
+								nextPlaybackData = decodedBuffer;
+								nextPlaybackSamples = decodedSamples;
+							}
+							else {
+								nextPlaybackData = frameQueue.headData();
+								nextPlaybackSamples = frameQueue.headSamples();
+								nextPlaybackSamplesLength = frameQueue.headLength();
+							}
+							if (nextPlaybackSamplesLength % channels != 0) {
+								LOG.severe("Audio data contains non-integral number of frames, ignore last " + (nextPlaybackSamplesLength % channels) + " samples");
+								nextPlaybackSamplesLength -= nextPlaybackSamplesLength % channels;
 							}
 
-							/* Get sample data and do sanity checks */
-							final byte[] nextPlaybackSamples = frameQueue.remove(entryFrameTime);
-							int nextPlaybackSamplesLength = nextPlaybackSamples.length;
-							if (nextPlaybackSamplesLength % bytesPerFrame != 0) {
-								LOG.severe("Audio data contains non-integral number of frames, ignore last " + (nextPlaybackSamplesLength % bytesPerFrame) + " bytes");
-								nextPlaybackSamplesLength -= nextPlaybackSamplesLength % bytesPerFrame;
+							/* Append packet to line. The slot is written to the sink directly,
+							 * and handed back to the queue only afterwards
+							 */
+							if (LOG.isLoggable(Level.FINEST)){
+								LOG.finest("Audio data containing " + nextPlaybackSamplesLength / channels + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
 							}
 
-							/* Append packet to line */
-							LOG.finest("Audio data containing " + nextPlaybackSamplesLength / bytesPerFrame + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
+							measureLatency(entryFrameTime);
 							
-							appendFrames(nextPlaybackSamples, 0, nextPlaybackSamplesLength, entryLineTime);
+							final int skipSamples = Math.min(skipFrames * channels, nextPlaybackSamplesLength);
+							appendFrames(nextPlaybackData, nextPlaybackSamples, skipSamples, nextPlaybackSamplesLength - skipSamples, entryLineTime + skipSamples / channels);
+							frameQueue.release();
+							lastAudioNanos = System.nanoTime();
 							
 							continue;
 						}
-						else {
-							/* Gap between packet and line end. Warn */
-							if ( ! didWarnGap) {
-								didWarnGap = true;
-								LOG.warning("Audio data missing for frame time " + getNextLineTime() + " (currently " + gapFrames + " frames), writing " + packetSizeFrames + " frames of silence");
-							}
+					}
+
+					/* Nothing to play right now. Instead of relying on blocking writes
+					 * for pacing, we sleep until the line's buffer has drained to the
+					 * low water mark, and only then top it up with silence
+					 */
+					flushBatch();
+					final long bufferedFrames = getNextLineTime() - getNowLineTime();
+					if (bufferedFrames > lineLowWaterFrames) {
+						LockSupport.parkNanos(AudioOutputQueue.this, (long)((bufferedFrames - lineLowWaterFrames) * 1e9 / sampleRate));
+						continue;
+					}
+
+					if ( ! frameQueue.isEmpty() ) {
+						/* Gap between packet and line end. Warn */
+						if ( ! didWarnGap) {
+							didWarnGap = true;
+							LOG.warning("Audio data missing for frame time " + getNextLineTime() + ", writing " + packetSizeFrames + " frames of silence");
 						}
+
+						/* Missing packets may still arrive, so fill one packet at a time */
+						appendSilence(packetSizeFrames);
 					}
 					else {
 						/* Queue empty */
-
 						if ( ! lineMuted) {
 							lineMuted = true;
 							setVolume(Float.NEGATIVE_INFINITY);
-							LOG.fine("Audio data ended at frame time " + getNextLineTime() + ", writing " + packetSizeFrames + " frames of silence and muted line");
+							LOG.fine("Audio data ended at frame time " + getNextLineTime() + ", writing silence and muted line");
 						}
-					}
 
-					appendSilence(packetSizeFrames);
+						if (System.nanoTime() - lastAudioNanos >= idleTimeoutNanos) {
+							/* Sender went quiet. Pause the line instead of feeding it silence */
+							flushBatch();
+							audioSink.pause();
+							samplePlaybackPosition(false);
+
+							/* The line time advances on from the position the sink stopped at */
+							lineSequence++;
+							try {
+								linePausedSinceNanos = positionBaseNanos;
+								linePaused = true;
+							}
+							finally {
+								lineSequence++;
+							}
+							LOG.info("No audio data for " + (linePausedSinceNanos - lastAudioNanos) / 1000000L + " ms, pausing line");
+							continue;
+						}
+
+						appendSilence(lineLowWaterFrames);
+					}
 				}
 
 				//TODO: I don't think we need the appendSilence anymore when using Android API, but will evaluate that later during tests
@@ -312,29 +850,79 @@ public class AudioOutputQueue implements AudioClock {
 			}
 			finally {
 				setVolume(Float.NEGATIVE_INFINITY);
-				audioTrack.stop();
-				audioTrack.release();
+				releaseFrameQueue();
+				audioSink.close();
 				//m_line.stop();
 				//m_line.close();
 			}
 		}
 
+		/**
+		 * Moves the playout delay towards the jitter estimator's delay by at most
+		 * one packet. The resulting timing error is absorbed by {@link #appendFrames},
+		 * i.e. a growing delay inserts silence, a shrinking delay skips frames,
+		 * and small changes are resampled away
+		 */
+		private void adjustPlayoutDelay() {
+			final long targetDelayFrames = jitterEstimator.getDelayFrames();
+			if (targetDelayFrames == appliedDelayFrames)
+				return;
+
+			synchronized(clockMappingLock) {
+				final long previousDelayFrames = appliedDelayFrames;
+				final long delayFrames = previousDelayFrames + Math.max(-packetSizeFrames, Math.min(packetSizeFrames, targetDelayFrames - previousDelayFrames));
+
+				final ClockMapping mapping = clockMapping;
+				clockMapping = new ClockMapping(mapping.frameTimeOffset - (delayFrames - previousDelayFrames), mapping.ntpTimeOffset);
+				appliedDelayFrames = delayFrames;
+			}
+
+			if (appliedDelayFrames == targetDelayFrames)
+				LOG.info("Playout delay is now " + Math.round(appliedDelayFrames * 1000.0 / sampleRate) + " ms, jitter " + Math.round(jitterEstimator.getJitter() * 1e6) / 1000.0 + " ms, late packets " + Math.round(jitterEstimator.getLatePacketRate() * 1000.0) / 10.0 + "%");
+		}
+
+		/**
+		 * Updates the average latency with the time between the source sending
+		 * the given frame and the frame being heard. Line times map to the time
+		 * they're heard, so this includes the output latency, i.e. the calibrated
+		 * latency plus the sink's presentation latency once it reported one
+		 *
+		 * @param frameTime frame time about to be appended to the line
+		 */
+		private void measureLatency(final long frameTime) {
+			final ClockMapping source = sourceMapping;
+			if (source == null)
+				return;
+
+			final long sentNtpTime = source.ntpTimeOffset + FixedPointTime.fromFrames(frameTime - source.frameTimeOffset, framesPerSecond);
+			final long playedNtpTime = clockMapping.ntpTimeOffset + FixedPointTime.fromFrames(getNextLineTime(), framesPerSecond);
+			latencyAverage.add(FixedPointTime.toSeconds(playedNtpTime - sentNtpTime), LATENCY_AVERAGE_WEIGHT);
+			measuredLatencySeconds = latencyAverage.get();
+
+			final long nowNanos = System.nanoTime();
+			if (nowNanos - latencyReportedNanos >= LATENCY_REPORT_INTERVAL_NANOS) {
+				latencyReportedNanos = nowNanos;
+				LOG.info("Measured latency between source and speaker is " + Math.round(measuredLatencySeconds * 1000.0) + " ms, including an output latency of " + Math.round(FixedPointTime.toSeconds(outputLatencyNtpTime) * 1000.0) + " ms" + ((latencyFrames != PlayoutSettings.SOURCE_LATENCY) ? ", target is " + Math.round(latencyFrames * 1000.0 / sampleRate) + " ms" : ""));
+			}
+		}
+
 		/**
 		 * Append the range [off,off+len) from the provided sample data to the line.
 		 * If the requested playback time does not match the line end time, samples are
 		 * skipped or silence is inserted as necessary. If the data is marked as being
 		 * just a filler, some warnings are suppressed.
 		 *
-		 * @param samples sample data
-		 * @param off sample data offset
-		 * @param len sample data length
-		 * @param time playback time
-		 * @param warnNonContinous warn about non-continous samples
+		 * @param data sample data
+		 * @param samples sample view of the sample data
+		 * @param off sample data offset, in samples
+		 * @param len sample data length, in samples
+		 * @param lineTime playback time
 		 */
-		private void appendFrames(final byte[] samples, int off, final int len, long lineTime) {
-			assert off % bytesPerFrame == 0;
-			assert len % bytesPerFrame == 0;
+		private void appendFrames(final ByteBuffer data, final ShortBuffer samples, int off, final int len, long lineTime) {
+			assert off % channels == 0;
+			assert len % channels == 0;
 
+			final int end = off + len;
 			while (true) {
 				/* Fetch line end time only once per iteration */
 				final long endLineTime = getNextLineTime();
@@ -342,9 +930,12 @@ public class AudioOutputQueue implements AudioClock {
 				final long timingErrorFrames = lineTime - endLineTime;
 				final double timingErrorSeconds = timingErrorFrames / sampleRate;
 
-				if (Math.abs(timingErrorSeconds) <= TIMING_PRECISION) {
-					/* Samples to append scheduled exactly at line end. Just append them and be done */
-					appendFrames(samples, off, len);
+				if (Math.abs(timingErrorSeconds) <= HARD_CORRECTION_THRESHOLD) {
+					/* Samples to append scheduled close to the line end. Append them, slightly
+					 * stretched or compressed to make up for the clock's drift
+					 */
+					final double ratio = driftCompensator.update(timingErrorSeconds, (end - off) / channels / sampleRate);
+					appendResampledFrames(data, samples, off, end - off, ratio);
 					break;
 				}
 				else if (timingErrorFrames > 0) {
@@ -352,6 +943,7 @@ public class AudioOutputQueue implements AudioClock {
 					LOG.warning("Audio output non-continous (gap of " + timingErrorFrames + " frames), filling with silence");
 
 					appendSilence((int)(lineTime - endLineTime));
+					resampler.reset();
 				}
 				else if (timingErrorFrames < 0) {
 					/* Samples to append scheduled before the line end. Remove the overlapping
@@ -359,8 +951,9 @@ public class AudioOutputQueue implements AudioClock {
 					 */
 					LOG.warning("Audio output non-continous (overlap of " + (-timingErrorFrames) + "), skipping overlapping frames");
 
-					off += (endLineTime - lineTime) * bytesPerFrame;
+					off = (int)Math.min(end, off + (endLineTime - lineTime) * channels);
 					lineTime += endLineTime - lineTime;
+					resampler.reset();
 				}
 				else {
 					/* Strange universe... */
@@ -369,26 +962,118 @@ public class AudioOutputQueue implements AudioClock {
 			}
 		}
 
+		/**
+		 * Append the range [off, off+len) from the provided sample data to the line,
+		 * resampled by the given ratio.
+		 *
+		 * @param data signed 16-bit PCM sample data, in native byte order
+		 * @param samples sample view of the sample data
+		 * @param off sample data offset, in samples
+		 * @param len sample data length, in samples
+		 * @param ratio ratio of output to input frames
+		 */
+		private void appendResampledFrames(final ByteBuffer data, final ShortBuffer samples, final int off, final int len, final double ratio) {
+			final boolean transparent = processingChain.isTransparent();
+			if ((ratio == 1.0) && resampler.isAligned()) {
+				resampler.bypass(samples, off, len);
+				if (transparent) {
+					/* Nothing to correct or process, hand the queued data to the sink as-is */
+					appendFrames(data, samples, off, len);
+					return;
+				}
+				if (processingChain.isTransparentExcept(gainProcessor)) {
+					/* Only the volume to apply. Scale the queued data in place, which
+					 * is consumed right here, and hand it to the sink without a copy
+					 */
+					gainProcessor.process(samples, off, len, channels);
+					appendFrames(data, samples, off, len);
+					return;
+				}
+
+				samples.position(off);
+				samples.get(resampledSamples, 0, len);
+				appendProcessedFrames(len);
+			}
+			else {
+				final int resampledLength = resampler.process(samples, off, len, ratio, resampledSamples);
+				if (transparent)
+					appendFrames(resampledSamples, 0, resampledLength);
+				else
+					appendProcessedFrames(resampledLength);
+			}
+		}
+
+		/**
+		 * Runs the first len samples of {@link #resampledSamples} through the
+		 * processing chain and appends them to the line
+		 *
+		 * @param len number of samples
+		 */
+		private void appendProcessedFrames(final int len) {
+			processingChain.process(processingBuffer.view(resampledBuffer, 0, 0, channels, len / channels));
+			appendFrames(resampledSamples, 0, len);
+		}
+
 		private void appendSilence(final int frames) {
 			LOG.info("Appending Silence to the AudioTrack. frames: " + frames);
-			
-			final byte[] silenceFrames = new byte[frames * bytesPerFrame];
-			for(int i = 0; i < silenceFrames.length; ++i){
-				silenceFrames[i] = lineLastFrame[i % bytesPerFrame];
+
+			/* The filler repeats the last frame written. Since that frame rarely
+			 * changes between two calls, the filler is only rebuilt if it did
+			 */
+			boolean fillerStale = false;
+			for(int c=0; c < channels; ++c){
+				fillerStale |= (lineFiller[c] != lineLastFrame[c]);
+			}
+			if (fillerStale) {
+				for(int i=0; i < lineFiller.length; ++i){
+					lineFiller[i] = lineLastFrame[i % channels];
+				}
+			}
+
+			int framesLeft = frames;
+			while ((framesLeft > 0) && ! closing) {
+				final int framesChunk = Math.min(framesLeft, packetSizeFrames);
+				appendFrames(lineFiller, 0, framesChunk * channels);
+				framesLeft -= framesChunk;
+			}
+		}
+
+		/**
+		 * Append the range [off, off+len) from the provided sample data to the line,
+		 * without copying it.
+		 *
+		 * @param data signed 16-bit PCM sample data, in native byte order
+		 * @param samples sample view of the sample data
+		 * @param off sample data offset, in samples
+		 * @param len sample data length, in samples
+		 */
+		private void appendFrames(final ByteBuffer data, final ShortBuffer samples, final int off, final int len) {
+			assert off % channels == 0;
+			assert len % channels == 0;
+
+			if (len <= 0){
+				return;
 			}
-			appendFrames(silenceFrames, 0, silenceFrames.length);
+
+			data.limit(2 * (off + len)).position(2 * off);
+			final int samplesWritten = (batchFrames > 0) ? appendToBatch(data) : audioSink.write(data);
+
+			for(int c=0; c < channels; ++c){
+				lineLastFrame[c] = samples.get(off + len - (channels - c));
+			}
+			lineAppended(samplesWritten, len);
 		}
 
 		/**
 		 * Append the range [off, off+len) from the provided sample data to the line.
 		 *
-		 * @param samples sample data
-		 * @param off sample data offset
-		 * @param len sample data length
+		 * @param samples signed 16-bit PCM sample data
+		 * @param off sample data offset, in samples
+		 * @param len sample data length, in samples
 		 */
-		private void appendFrames(final byte[] samples, int off, int len) {
-			assert off % bytesPerFrame == 0;
-			assert len % bytesPerFrame == 0;
+		private void appendFrames(final short[] samples, int off, int len) {
+			assert off % channels == 0;
+			assert len % channels == 0;
 
 			/* Make sure that [off, off+len) does not exceed sample's bounds */
 			off = Math.min(off, (samples != null) ? samples.length : 0);
@@ -399,126 +1084,132 @@ public class AudioOutputQueue implements AudioClock {
 				return;
 			}
 
-			/* Convert samples if necessary */
-			final byte[] samplesConverted = Arrays.copyOfRange(samples, off, off + len);
-
-			byte bytTemp = 0x00;
-			if (convertUnsignedToSigned) {
-				/* The line expects signed PCM samples, so we must
-				 * convert the unsigned PCM samples to signed.
-				 * Note that this only affects the high bytes!
-				 */
-				for(int i=0; i < samplesConverted.length; i += 2)
-				{
-					samplesConverted[i] = (byte) ((samplesConverted[i] & 0xff) - 0x80);
-					//add by ville
-					bytTemp = samplesConverted[i];
-					samplesConverted[i] = samplesConverted[i + 1];
-					samplesConverted[i + 1] = bytTemp;
-				}
-				//for(int i=0; i < samplesConverted.length; i += 2){
-				//	samplesConverted[i] = (byte)((samplesConverted[i] & 0xff) - 0x80);
-				//}
+			/* Write samples to line. The samples already are in the
+			 * sink's format, so they're written without any conversion
+			 */
+			final int samplesWritten = (batchFrames > 0) ? appendToBatch(samples, off, len) : audioSink.write(samples, off, len);
+			
+			for(int c=0; c < channels; ++c){
+				lineLastFrame[c] = samples[off + len - (channels - c)];
 			}
+			lineAppended(samplesWritten, len);
+		}
 
+		/**
+		 * Adds the buffer's remaining samples to the batch, and writes the batch
+		 * to the sink once it's full
+		 *
+		 * @param data samples in native byte order
+		 * @return number of samples added
+		 */
+		private int appendToBatch(final ByteBuffer data) {
+			final int len = data.remaining() / 2;
+			batchBuffer.limit(batchBuffer.capacity()).position(2 * batchLength);
+			batchBuffer.put(data);
+			return batchAppended(len);
+		}
 
-			/* Write samples to line */
-			//final int bytesWritten = m_line.write(samplesConverted, 0, samplesConverted.length);
-			final int bytesWritten = audioTrack.write(samplesConverted, 0, samplesConverted.length);
-			
-			if(bytesWritten == AudioTrack.ERROR_INVALID_OPERATION){
-				LOG.severe("Audio Track not initialized properly");
-				throw new RuntimeException("Audio Track not initialized properly: AudioTrack status: ERROR_INVALID_OPERATION");
-			}
-			else if(bytesWritten == AudioTrack.ERROR_BAD_VALUE){
-				LOG.severe("Wrong parameters sent to Audio Track!");
-				throw new RuntimeException("Wrong parameters sent to Audio Track! AudioTrack status: ERROR_BAD_VALUE");
+		/**
+		 * Adds the range [off, off+len) of the provided samples to the batch,
+		 * and writes the batch to the sink once it's full
+		 *
+		 * @return number of samples added
+		 */
+		private int appendToBatch(final short[] samples, final int off, final int len) {
+			batchSamples.limit(batchSamples.capacity()).position(batchLength);
+			batchSamples.put(samples, off, len);
+			return batchAppended(len);
+		}
+
+		private int batchAppended(final int len) {
+			batchLength += len;
+			if (batchLength >= batchFrames * channels)
+				flushBatch();
+			return len;
+		}
+
+		/**
+		 * Writes the batch to the sink without blocking. If the sink has no room
+		 * for all of it, sleeps until it should have drained far enough and retries.
+		 * Since the sink's buffer holds several batches, that's the only time the
+		 * playout thread sleeps while data is flowing
+		 */
+		private void flushBatch() {
+			while ((batchLength > 0) && ! closing) {
+				batchBuffer.limit(2 * batchLength).position(0);
+				audioSink.writeNonBlocking(batchBuffer);
+				batchBuffer.compact();
+				batchLength = batchBuffer.position() / 2;
+
+				if (batchLength > 0)
+					LockSupport.parkNanos(AudioOutputQueue.this, (long)(batchLength / channels * 1e9 / sampleRate));
 			}
-			else if (bytesWritten != len){
-				LOG.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + samples.length + " bytes");
+		}
+
+		/**
+		 * Updates the line state after a write to the sink
+		 *
+		 * @param samplesWritten number of samples the sink accepted
+		 * @param len number of samples written
+		 */
+		private void lineAppended(final int samplesWritten, final int len) {
+			if (samplesWritten != len){
+				LOG.warning("Audio output line accepted only " + samplesWritten + " samples while trying to write " + len + " samples");
 			}
-			else{
-				LOG.info(bytesWritten + " bytes written to the audio output line");
+			else if (LOG.isLoggable(Level.FINEST)){
+				LOG.finest(samplesWritten + " samples written to the audio output line");
 			}
 			
-			/* Update state */
-			synchronized(AudioOutputQueue.this) {
-				framesWrittenToLine += (bytesWritten / bytesPerFrame);
-				
-				for(int b=0; b < bytesPerFrame; ++b){
-					lineLastFrame[b] = samples[off + len - (bytesPerFrame - b)];
-				}
+			/* Update state. The line end is a single value, so it needs no sequence
+			 * number. Only this thread writes it
+			 */
+			framesWrittenToLine += (samplesWritten / channels);
 
-				if(LOG.isLoggable(Level.FINE)){
-					LOG.finest("Audio output line end is now at " + getNextLineTime() + " after writing " + len / bytesPerFrame + " frames");
-				}
+			if(LOG.isLoggable(Level.FINEST)){
+				LOG.finest("Audio output line end is now at " + getNextLineTime() + " after writing " + len / channels + " frames");
 			}
 		}
 	}
 
 	/**
-	 * Sets the AudioTrack the Stereo Volume
+	 * Sets the audio sink's volume
 	 *
 	 * @param volume
 	 * 
 	 */
 	private void setVolume(float volume) {
-		currentVolume = volume;
-		setStereoVolume(volume, volume);
+		audioSink.setVolume(volume);
 	}
 
 	/**
-	 * Sets the AudioTrack the Stereo Volume
-	 *
-	 * @param leftVolume
-	 * @param rightVolume
-	 * 
+	 * Un-mutes the audio sink, and fades the requested gain in
 	 */
-	private void setStereoVolume(float leftVolume, float rightVolume) {
-		
-		
-		//leftVolume = AudioTrack.getMaxVolume();
-		//rightVolume = AudioTrack.getMaxVolume();
-		
-		//validate left volume
-		if(leftVolume < AudioTrack.getMinVolume()){
-			leftVolume = AudioTrack.getMinVolume();
-		}
-		if(leftVolume > AudioTrack.getMaxVolume()){
-			leftVolume = AudioTrack.getMaxVolume();
-		}
-		
-		//validate right volume
-		if(rightVolume < AudioTrack.getMinVolume()){
-			rightVolume = AudioTrack.getMinVolume();
-		}
-		if(rightVolume > AudioTrack.getMaxVolume()){
-			rightVolume = AudioTrack.getMaxVolume();
-		}
-		
-		LOG.info("setStereoVolume() leftVolume: " + leftVolume + " rightVolume: " + rightVolume);
-		
-		audioTrack.setStereoVolume(leftVolume, rightVolume);
+	private void applyVolume() {
+		gainProcessor.jumpToGain(0.0f);
+		gainProcessor.setGain(requestedVolume);
+		setVolume(AudioSink.MAX_VOLUME);
 	}
 
 	/**
-	 * Returns the line's MASTER_GAIN control's value.
+	 * Sets the desired output gain. The gain is applied by the playout stage's
+	 * {@link GainProcessor}, sample-accurately and ramped, starting with the
+	 * next block of samples written
+	 *
+	 * @param volume desired gain
 	 */
-	private float getVolume() {
-		return currentVolume;
-	}
-
-	private synchronized void applyVolume() {
-		setVolume(requestedVolume);
+	public void setRequestedVolume(final float volume) {
+		requestedVolume = volume;
+		gainProcessor.setGain(Math.max(AudioSink.MIN_VOLUME, Math.min(AudioSink.MAX_VOLUME, volume)));
 	}
 
 	/**
-	 * Sets the desired output gain.
+	 * Returns the chain of processors the samples pass through before they're
+	 * written to the sink. Its first processor applies the requested gain
 	 *
-	 * @param volume desired gain
+	 * @return processing chain
 	 */
-	public synchronized void setRequestedVolume(final float volume) {
-		requestedVolume = volume;
+	public AudioProcessingChain getProcessingChain() {
+		return processingChain;
 	}
 
 	/**
@@ -526,46 +1217,94 @@ public class AudioOutputQueue implements AudioClock {
 	 *
 	 * @param gain desired gain
 	 */
-	public synchronized float getRequestedVolume() {
+	public float getRequestedVolume() {
 		return requestedVolume;
 	}
 
 	/**
-	 * Stops audio output
+	 * Stops audio output. Returns once the sink was closed, so that a pooled
+	 * sink is available to the next stream right away, unless the enqueuer
+	 * thread fails to exit in time
 	 */
 	public void close() {
 		closing = true;
 		queueThread.interrupt();
+
+		/* The enqueuer thread closes the sink when it exits. If it
+		 * was never started, we have to do that ourselves
+		 */
+		if ( ! queueThread.isAlive() ){
+			releaseFrameQueue();
+			audioSink.close();
+			return;
+		}
+
+		if (Thread.currentThread() == queueThread)
+			return;
+		try {
+			queueThread.join(CLOSE_TIMEOUT_MILLIS);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (queueThread.isAlive())
+			LOG.warning("Audio enqueuer thread didn't exit within " + CLOSE_TIMEOUT_MILLIS + " ms, closing the sink in the background");
 	}
 
 	/**
-	 * Adds sample data to the queue
+	 * Discards the queued packets and hands their memory back to the budget
+	 */
+	private synchronized void releaseFrameQueue() {
+		if (frameQueueReleased)
+			return;
+		frameQueueReleased = true;
+
+		frameQueue.close();
+		memoryBudget.allocated(-frameQueue.getAllocatedBytes());
+	}
+
+	/**
+	 * Adds sample data to the queue.
+	 * 
+	 * Must only be called from one thread at a time, i.e. from the
+	 * RTP channel's pipeline. Never blocks the enqueuer thread.
+	 * <p>
+	 * The samples are signed 16-bit PCM, interleaved, and read in the buffer's
+	 * byte order. Buffers in native byte order are copied into the queue as-is,
+	 * and the queued samples are written to the sink without any conversion.
+	 * If the queue was created with an {@link AudioPacketDecoder}, the buffer
+	 * instead holds one encoded packet, which is queued as-is.
+	 * The buffer's position is left unchanged.
 	 *
-	 * @param playbackRemoteStartFrameTime start time of sample data
-	 * @param playbackSamples sample data
+	 * @param frameTime start time of sample data
+	 * @param samples sample data, or an encoded packet
 	 * @return true if the sample data was added to the queue
 	 */
-	public synchronized boolean enqueue(final long frameTime, final byte[] frames) {
+	public boolean enqueue(final long frameTime, final ByteBuffer samples) {
+		final int frames = (packetDecoder != null) ? packetSizeFrames : samples.remaining() / bytesPerFrame;
+
 		/* Playback time of packet */
-		final double packetSeconds = (double)frames.length / (double)(bytesPerFrame * sampleRate);
+		final double packetSeconds = (double)frames / sampleRate;
 		
 		/* Compute playback delay, i.e., the difference between the last sample's
 		 * playback time and the current line time
 		 */
 		long nextLineTime = getNextLineTime();
 		long frameToLineTime = convertFrameToLineTime(frameTime); 
-		final double delay = (frameToLineTime + frames.length / bytesPerFrame - nextLineTime) / sampleRate;
+		final double delay = (frameToLineTime + frames - nextLineTime) / sampleRate;
 
 		latestSeenFrameTime = Math.max(latestSeenFrameTime, frameTime);
 		
-		LOG.info(" delay: " + delay );
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.finest(" delay: " + delay );
+		}
 		
 		if (delay < -packetSeconds) {//pass this branch ,it cause the audio on and off
 			/* The whole packet is scheduled to be played in the past */
 			LOG.warning("Audio data arrived " + -(delay) + " seconds too late, dropping");
 			//return false;
 		}
-		else if (delay > QUEUE_LENGHT_MAX_SECONDS) {
+		else if (delay > queueLengthMaxSeconds) {
 			/* The packet extends further into the future that our maximum queue size.
 			 * We reject it, since this is probably the result of some timing discrepancies
 			 */
@@ -573,35 +1312,196 @@ public class AudioOutputQueue implements AudioClock {
 			return false;
 		}
 
-		LOG.info("frames added to the frameQueue. frameTime: " + frameTime + " frames.length: " + frames.length + " frames: " + frames);
+		/* The slack between arrival and playback drives the playout delay */
+		jitterEstimator.update(frameTime, System.nanoTime(), frameToLineTime - nextLineTime);
+
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.finest("frames added to the frameQueue. frameTime: " + frameTime + " frames: " + frames);
+		}
 		
-		frameQueue.put(frameTime, frames);
-		return true;
+		/* Encoded data is copied byte by byte, which the queue only does for native order */
+		final ByteBuffer data = ((packetDecoder != null) && (samples.order() != ByteOrder.nativeOrder())) ? samples.duplicate().order(ByteOrder.nativeOrder()) : samples;
+
+		switch (frameQueue.offer(frameTime, data)) {
+			case AudioPacketRing.OFFER_OK:
+				/* Wake the enqueuer thread if it sleeps on a paused line */
+				if (playoutWaiting){
+					LockSupport.unpark(queueThread);
+				}
+				return true;
+			case AudioPacketRing.OFFER_DUPLICATE:
+				LOG.fine("Audio data for frame time " + frameTime + " already queued, dropping duplicate");
+				return false;
+			case AudioPacketRing.OFFER_MEMORY:
+				LOG.warning("Audio queue memory limit reached at frame time " + frameTime + " (" + frameQueue.getQueuedBytes() + " bytes queued, " + memoryBudget + "), dropping");
+				return false;
+			case AudioPacketRing.OFFER_LATE:
+				LOG.warning("Audio data for frame time " + frameTime + " arrived after its playback time, dropping");
+				return false;
+			case AudioPacketRing.OFFER_FLUSHED:
+				LOG.fine("Audio data for frame time " + frameTime + " precedes the last flush, dropping");
+				return false;
+			default:
+				LOG.warning("Audio queue overrun at frame time " + frameTime + ", dropping");
+				return false;
+		}
 	}
 
 	/**
-	 * Removes all currently queued sample data
+	 * Removes all currently queued sample data. Sample data enqueued
+	 * afterwards is kept
 	 */
 	public void flush() {
-		frameQueue.clear();
+		frameQueue.flush();
+
+		/* Wake the enqueuer thread if it sleeps on a paused line, to execute the flush */
+		if (playoutWaiting){
+			LockSupport.unpark(queueThread);
+		}
+	}
+
+	/**
+	 * Removes the queued sample data before the given frame time, and refuses
+	 * such data until the flush was executed, e.g. packets of the flushed stream
+	 * still in flight. Sample data at or after the frame time stays queued. The
+	 * playout thread executes the flush before it reads the queue next.
+	 *
+	 * @param frameTime frame time of the first sample data to keep
+	 */
+	public void flush(final long frameTime) {
+		frameQueue.flush(frameTime);
+
+		/* Wake the enqueuer thread if it sleeps on a paused line, to execute the flush */
+		if (playoutWaiting){
+			LockSupport.unpark(queueThread);
+		}
 	}
 
 	@Override
-	public synchronized void setFrameTime(final long frameTime, final double secondsTime) {
-		final double ageSeconds = getNowSecondsTime() - secondsTime;
-		final long lineTime = Math.round((secondsTime - secondsTimeOffset) * sampleRate);
+	public void setFrameTime(final long frameTime, final long ntpTime) {
+		final long age = getNowNtpTime() - ntpTime;
+
+		final long frameTimeOffsetPrevious;
+		final long frameTimeOffsetNew;
+		synchronized(clockMappingLock) {
+			final ClockMapping mapping = clockMapping;
+			final long lineTime = FixedPointTime.toFrames(ntpTime - mapping.ntpTimeOffset, framesPerSecond);
+
+			frameTimeOffsetPrevious = mapping.frameTimeOffset;
+			frameTimeOffsetNew = frameTime - lineTime - appliedDelayFrames;
+			clockMapping = new ClockMapping(frameTimeOffsetNew, mapping.ntpTimeOffset);
+		}
+
+		LOG.info("Frame time adjusted by " + (frameTimeOffsetNew - frameTimeOffsetPrevious) + " based on timing information " + FixedPointTime.toSeconds(age) + " seconds old and " + (latestSeenFrameTime - frameTime) + " frames before latest seen frame time. previous: " + frameTimeOffsetPrevious + " new frameTimeOffset: " + frameTimeOffsetNew);
+	}
+
+	@Override
+	public void setSourceFrameTime(final long frameTime, final long ntpTime) {
+		sourceMapping = new ClockMapping(frameTime, ntpTime);
+	}
+
+	/**
+	 * Returns the latency target in frames, or {@link PlayoutSettings#SOURCE_LATENCY}
+	 * if the source's latency is used
+	 *
+	 * @return latency target
+	 */
+	public long getLatencyFrames() {
+		return latencyFrames;
+	}
+
+	/**
+	 * Returns the bytes of sample data currently queued
+	 *
+	 * @return queued bytes
+	 */
+	public long getQueuedBytes() {
+		return frameQueue.getQueuedBytes();
+	}
+
+	/**
+	 * Returns the memory allocated for the queue's packets
+	 *
+	 * @return allocated bytes
+	 */
+	public long getAllocatedBytes() {
+		return frameQueue.getAllocatedBytes();
+	}
+
+	/**
+	 * Returns the number of packets evicted or refused because of the memory limits
+	 *
+	 * @return evicted packets
+	 */
+	public long getEvictions() {
+		return frameQueue.getEvictions();
+	}
 
-		final long frameTimeOffsetPrevious = frameTimeOffset;
-		frameTimeOffset = frameTime - lineTime;
+	/**
+	 * Returns the packets' interarrival jitter as defined by RFC 3550
+	 *
+	 * @return jitter in seconds
+	 */
+	public double getJitter() {
+		return jitterEstimator.getJitter();
+	}
+
+	/**
+	 * Returns the average fraction of packets which arrived after their playback time
+	 *
+	 * @return late packet rate between 0 and 1
+	 */
+	public double getLatePacketRate() {
+		return jitterEstimator.getLatePacketRate();
+	}
 
-		LOG.info("Frame time adjusted by " + (frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (latestSeenFrameTime - frameTime) + " frames before latest seen frame time. previous: " + frameTimeOffsetPrevious + " new frameTimeOffset: " + frameTimeOffset);
+	/**
+	 * Starts the playout delay adaptation out from the statistics of an earlier
+	 * stream of the same sender, and applies the delay right away. Must be called
+	 * before the first packet is enqueued
+	 *
+	 * @param jitter interarrival jitter in seconds, see {@link #getJitter()}
+	 * @param latePacketRate late packet rate, see {@link #getLatePacketRate()}
+	 * @param playoutDelay playout delay in seconds, see {@link #getPlayoutDelay()}
+	 */
+	public void seedPlayoutStatistics(final double jitter, final double latePacketRate, final double playoutDelay) {
+		jitterEstimator.seed(jitter, latePacketRate, Math.round(playoutDelay * sampleRate));
+
+		synchronized(clockMappingLock) {
+			final long delayFrames = jitterEstimator.getDelayFrames();
+			final ClockMapping mapping = clockMapping;
+			clockMapping = new ClockMapping(mapping.frameTimeOffset - (delayFrames - appliedDelayFrames), mapping.ntpTimeOffset);
+			appliedDelayFrames = delayFrames;
+		}
 	}
 
+	/**
+	 * Returns the delay currently added to the latency to absorb the network jitter
+	 *
+	 * @return playout delay in seconds
+	 */
+	public double getPlayoutDelay() {
+		return appliedDelayFrames / sampleRate;
+	}
+
+	/**
+	 * Returns the average time between the source sending a frame and the
+	 * frame being heard, including the output latency, i.e. the calibrated
+	 * latency and the sink's presentation latency if known.
+	 *
+	 * @return latency in seconds, or NaN until measured
+	 */
+	public double getMeasuredLatency() {
+		return measuredLatencySeconds;
+	}
+
+	/**
+	 * Returns the NTP time of the frame heard now. The line time currently played
+	 * is heard only after the output latency
+	 */
 	@Override
-	public double getNowSecondsTime() {
-		double value = secondsTimeOffset + getNowLineTime() / sampleRate; 
-		//LOG.info("getNowSecondsTime(): " + value);
-		return value;
+	public long getNowNtpTime() {
+		return clockMapping.ntpTimeOffset + FixedPointTime.fromFrames(getNowLineTime(), framesPerSecond) - outputLatencyNtpTime;
 	}
 
 	//@Override
@@ -610,40 +1510,135 @@ public class AudioOutputQueue implements AudioClock {
 	//}
 
 	@Override
-	public double getNextSecondsTime() {
-		return secondsTimeOffset + getNextLineTime() / sampleRate;
+	public long getNextNtpTime() {
+		return clockMapping.ntpTimeOffset + FixedPointTime.fromFrames(getNextLineTime(), framesPerSecond);
 	}
 
 	@Override
 	public long getNextFrameTime() {
-		return frameTimeOffset + getNextLineTime();
+		return clockMapping.frameTimeOffset + getNextLineTime();
 	}
 
 	@Override
-	public double convertFrameToSecondsTime(final long frameTime) {
-		return secondsTimeOffset + (frameTime - frameTimeOffset) / sampleRate;
+	public long convertFrameToNtpTime(final long frameTime) {
+		final ClockMapping mapping = clockMapping;
+		return mapping.ntpTimeOffset + FixedPointTime.fromFrames(frameTime - mapping.frameTimeOffset, framesPerSecond);
 	}
 
-	private synchronized long getNextLineTime() {
-		return framesWrittenToLine;
+	private long getNextLineTime() {
+		while (true) {
+			final int sequence = lineSequence;
+			final long lineTime = framesWrittenToLine + lineTimeSkipped + (linePaused ? getPausedLineTime(System.nanoTime()) : 0);
+			if (((sequence & 1) == 0) && (sequence == lineSequence))
+				return lineTime;
+		}
 	}
 
+	/**
+	 * Returns the line time currently played. Interpolates from the last sample
+	 * of the sink's playback position, and is thus cheap and smooth. Never decreases
+	 */
 	private long getNowLineTime() {
-		//getPlaybackHeadPosition()
-		//getNotificationMarkerPosition
-		//return audioTrack.getNotificationMarkerPosition();
-		//return m_line.getLongFramePosition();
-		if(audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING){
-			long value = audioTrack.getPlaybackHeadPosition();
-			return value;
-		}
-		else{
-			LOG.warning("getNowLineTime() called while audioTrack is not on a Playing State");
+		final long nowNanos = System.nanoTime();
+
+		long lineTime;
+		while (true) {
+			final int sequence = lineSequence;
+			lineTime = interpolatePlaybackPosition(nowNanos) + lineTimeSkipped + getPausedLineTime(nowNanos);
+			if (((sequence & 1) == 0) && (sequence == lineSequence))
+				break;
+		}
+
+		while (true) {
+			final long latest = latestNowLineTime.get();
+			if (lineTime <= latest)
+				return latest;
+			if (latestNowLineTime.compareAndSet(latest, lineTime))
+				return lineTime;
+		}
+	}
+
+	/**
+	 * Returns the number of frames the line time advanced since the line
+	 * was paused, or zero if it isn't paused. Must be read within a
+	 * {@link #lineSequence} section
+	 */
+	private long getPausedLineTime(final long nowNanos) {
+		if ( ! linePaused)
 			return 0;
+		return Math.round((nowNanos - linePausedSinceNanos) * 1e-9 * sampleRate);
+	}
+
+	/**
+	 * Extrapolates the sink's playback position to the given time.
+	 * The position cannot exceed the number of frames written
+	 */
+	private long interpolatePlaybackPosition(final long nowNanos) {
+		long position = positionBase;
+		if (positionAdvancing)
+			position += (long)((nowNanos - positionBaseNanos) * 1e-9 * sampleRate);
+		return Math.min(position, framesWrittenToLine);
+	}
+
+	/**
+	 * Queries the sink's playback position and updates the estimate the
+	 * other threads interpolate from. Must only be called by the enqueuer thread.
+	 * <p>
+	 * Sinks typically report positions in coarse steps. Small deviations from the
+	 * interpolated position are therefore blended in slowly, only large ones
+	 * (after underruns, pauses, ...) replace the estimate.
+	 *
+	 * @param advancing false if the sink's position stands still from now on
+	 */
+	private void samplePlaybackPosition(final boolean advancing) {
+		final long position = audioSink.getPlaybackPosition();
+		final long nowNanos = System.nanoTime();
+
+		final long interpolated = positionAdvancing ? interpolatePlaybackPosition(nowNanos) : positionBase;
+		final long deviation = position - interpolated;
+		final long estimate =
+			(Math.abs(deviation) <= POSITION_RESYNC_THRESHOLD * sampleRate) ?
+			interpolated + deviation / 8 :
+			position;
+
+		lineSequence++;
+		try {
+			positionBase = estimate;
+			positionBaseNanos = nowNanos;
+			positionAdvancing = advancing;
+		}
+		finally {
+			lineSequence++;
 		}
+
+		if (advancing && (nowNanos - presentationLatencySampledNanos >= PRESENTATION_LATENCY_SAMPLE_INTERVAL_NANOS))
+			samplePresentationLatency(nowNanos);
+
+		/* Follow the master clock with the new estimate */
+		resetNtpTimeOffset();
+	}
+
+	/**
+	 * Queries the sink's presentation latency and updates the output latency.
+	 * Must only be called by the enqueuer thread. Sinks which can't tell their
+	 * latency rely on the calibrated latency alone.
+	 */
+	private void samplePresentationLatency(final long nowNanos) {
+		presentationLatencySampledNanos = nowNanos;
+
+		final long presentationLatencyNanos = audioSink.getPresentationLatencyNanos();
+		if (presentationLatencyNanos == AudioSink.UNKNOWN_LATENCY)
+			return;
+
+		final boolean first = presentationLatencyAverage.isEmpty();
+		presentationLatencyAverage.add(presentationLatencyNanos * 1e-9, PRESENTATION_LATENCY_AVERAGE_WEIGHT);
+		outputLatencyNtpTime = calibratedLatencyNtpTime + FixedPointTime.fromSeconds(presentationLatencyAverage.get());
+
+		if (first)
+			LOG.info("Audio sink reports a presentation latency of " + presentationLatencyNanos / 1000L + " us, output latency is now " + Math.round(FixedPointTime.toSeconds(outputLatencyNtpTime) * 1e6) + " us");
 	}
 
-	private synchronized long convertFrameToLineTime(final long entryFrameTime) {
-		return entryFrameTime - frameTimeOffset;
+	private long convertFrameToLineTime(final long entryFrameTime) {
+		return entryFrameTime - clockMapping.frameTimeOffset;
 	}
 }
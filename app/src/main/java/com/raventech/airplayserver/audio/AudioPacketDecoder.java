@@ -0,0 +1,47 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the packets of an audio stream to PCM.
+ * <p>
+ * An {@link AudioOutputQueue} created with a decoder queues the packets
+ * as they arrive, and decodes each packet only once it's due for playback.
+ * Packets which are flushed, dropped or late are thus never decoded.
+ * The decoder is only ever called by the queue's playout thread.
+ */
+public interface AudioPacketDecoder {
+	/**
+	 * Returns the largest size of a packet, in bytes
+	 * @return maximal packet size
+	 */
+	int getMaxPacketBytes();
+
+	/**
+	 * Decodes a packet to signed 16-bit PCM samples, interleaved
+	 *
+	 * @param packet the packet's data, from its position to its limit. May be modified
+	 * @param samples receives the samples, starting at index zero
+	 * @return number of samples decoded
+	 * @throws Exception if the packet can't be decoded
+	 */
+	int decode(ByteBuffer packet, ShortBuffer samples) throws Exception;
+}
@@ -0,0 +1,675 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity jitter buffer for audio packets.
+ * <p>
+ * Packets are stored in a ring of pre-allocated slots, indexed by their
+ * frame time divided by the packet size. A packet is either signed 16-bit
+ * PCM, or encoded data which the consumer decodes when the packet is due. The ring supports exactly one
+ * producer (the RTP pipeline, which is serialized per channel by the
+ * execution handler) and one consumer (the playout thread). Neither side
+ * ever takes a lock, and the samples are copied exactly once, from the
+ * network buffer into the slot.
+ * <p>
+ * The slots are fixed-size regions of a single direct buffer allocated up
+ * front, so queued audio lives outside the Java heap and can be handed to
+ * the sink as-is. The views on the slots are allocated up front as well,
+ * neither side allocates anything while streaming.
+ * <p>
+ * A slot's frame time is its publication flag. The producer writes into
+ * {@link #EMPTY} slots only and publishes them by setting the frame time,
+ * the consumer reads published slots and hands them back by resetting the
+ * frame time to {@link #EMPTY}. The consumer pins the slot it reads, and the
+ * producer claims a slot before it evicts it, so neither side can empty a
+ * slot the consumer is reading.
+ * <p>
+ * The bytes of queued sample data are accounted for per ring and, through
+ * an {@link AudioMemoryBudget}, globally. A packet which would exceed either
+ * limit evicts the queued packets farthest in the future, unless it's the
+ * farthest itself, in which case it's refused.
+ */
+final class AudioPacketRing {
+	/**
+	 * Frame time of a slot which holds no data
+	 */
+	public static final long EMPTY = -1;
+
+	/**
+	 * Returned by {@link #peek(long)} if no packet is available at the read cursor
+	 */
+	public static final long NONE = -1;
+
+	/**
+	 * Result codes of {@link #offer(long, ByteBuffer)}
+	 */
+	public static final int OFFER_OK = 0;
+	public static final int OFFER_DUPLICATE = 1;
+	public static final int OFFER_LATE = 2;
+	public static final int OFFER_OVERRUN = 3;
+	public static final int OFFER_MEMORY = 4;
+	public static final int OFFER_FLUSHED = 5;
+
+	/**
+	 * Frame time of a slot the producer is about to evict
+	 */
+	private static final long EVICTING = Long.MIN_VALUE;
+
+	/**
+	 * Value of {@link #reading} while the consumer reads no slot
+	 */
+	private static final long NOT_READING = Long.MIN_VALUE;
+
+	/**
+	 * Flush boundary of no flush
+	 */
+	private static final long FLUSH_NONE = Long.MIN_VALUE;
+
+	/**
+	 * Number of slots, always a power of two
+	 */
+	private final int capacity;
+
+	private final int mask;
+
+	/**
+	 * Frames per packet
+	 */
+	private final int packetSizeFrames;
+
+	/**
+	 * Frame time of the packet stored in each slot, or {@link #EMPTY}
+	 */
+	private final AtomicLongArray slotFrameTimes;
+
+	/**
+	 * Number of valid samples in each slot
+	 */
+	private final int[] slotLengths;
+
+	/**
+	 * Size of a slot in samples
+	 */
+	private final int slotBytes;
+
+	/**
+	 * Sample data of all slots, in native byte order
+	 */
+	private final ByteBuffer slab;
+
+	/**
+	 * The producer's and the consumer's views on each slot
+	 */
+	private final ByteBuffer[] producerSlots;
+	private final ByteBuffer[] consumerSlots;
+	private final ShortBuffer[] consumerSlotSamples;
+
+	/**
+	 * Number of published slots
+	 */
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * Bytes of sample data in published slots, and their limit
+	 */
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+	private final long maxQueuedBytes;
+
+	/**
+	 * Global accounting of queued sample data
+	 */
+	private final AudioMemoryBudget memoryBudget;
+
+	/**
+	 * Largest packet index offered. Written by the producer only,
+	 * read by {@link #flush()}
+	 */
+	private volatile long tail = Long.MIN_VALUE;
+
+	/**
+	 * Number of packets evicted or refused because of the memory limits
+	 */
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * Set once the ring is closed. Packets offered afterwards are discarded
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Packet index the consumer reads next. Written by the consumer only
+	 */
+	private volatile long head = Long.MIN_VALUE;
+
+	/**
+	 * Packet index of the slot the consumer reads, or {@link #NOT_READING}.
+	 * Set by the consumer before it returns a packet from {@link #peek(long)},
+	 * cleared once it's done with it. The producer doesn't evict that slot
+	 */
+	private final AtomicLong reading = new AtomicLong(NOT_READING);
+
+	/**
+	 * Frame time before which the consumer is to discard all packets, or
+	 * {@link #FLUSH_NONE}. Pending requests merge into the latest boundary
+	 */
+	private final AtomicLong flushBoundary = new AtomicLong(FLUSH_NONE);
+
+	/**
+	 * Frame time before which offered packets are refused, since they were flushed,
+	 * or {@link #FLUSH_NONE}. Cleared once the consumer executed the flush, or once
+	 * a packet at or after the boundary was accepted, so a stream restarting at an
+	 * earlier frame time isn't refused
+	 */
+	private final AtomicLong flushedBefore = new AtomicLong(FLUSH_NONE);
+
+	/**
+	 * Creates a ring large enough to hold the given number of packets
+	 *
+	 * @param packets minimal number of packets
+	 * @param packetSizeFrames frames per packet
+	 * @param slotBytes size of a packet in bytes
+	 * @param maxQueuedBytes limit of the bytes of queued sample data
+	 * @param memoryBudget global accounting of queued sample data
+	 */
+	public AudioPacketRing(final int packets, final int packetSizeFrames, final int slotBytes, final long maxQueuedBytes, final AudioMemoryBudget memoryBudget) {
+		if (packets <= 0)
+			throw new IllegalArgumentException("packets must be greater than zero");
+		if (packetSizeFrames <= 0)
+			throw new IllegalArgumentException("packetSizeFrames must be greater than zero");
+
+		int c = 1;
+		while (c < packets)
+			c <<= 1;
+
+		capacity = c;
+		mask = c - 1;
+		this.packetSizeFrames = packetSizeFrames;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.memoryBudget = memoryBudget;
+
+		slotFrameTimes = new AtomicLongArray(capacity);
+		slotLengths = new int[capacity];
+		this.slotBytes = slotBytes;
+
+		slab = ByteBuffer.allocateDirect(capacity * slotBytes).order(ByteOrder.nativeOrder());
+		producerSlots = new ByteBuffer[capacity];
+		consumerSlots = new ByteBuffer[capacity];
+		consumerSlotSamples = new ShortBuffer[capacity];
+		for(int i=0; i < capacity; ++i) {
+			slab.limit((i + 1) * slotBytes).position(i * slotBytes);
+			producerSlots[i] = slab.slice().order(ByteOrder.nativeOrder());
+			consumerSlots[i] = slab.slice().order(ByteOrder.nativeOrder());
+			consumerSlotSamples[i] = consumerSlots[i].asShortBuffer();
+		}
+		slab.clear();
+		for(int i=0; i < capacity; ++i)
+			slotFrameTimes.set(i, EMPTY);
+	}
+
+	/**
+	 * Returns the number of slots
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns true if no packet is queued
+	 */
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * Returns the number of queued packets
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the bytes of queued sample data
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes allocated for sample data
+	 */
+	public long getAllocatedBytes() {
+		return slab.capacity();
+	}
+
+	/**
+	 * Returns the number of packets evicted or refused because of the memory limits
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Copies a packet into the ring. Must only be called by the producer.
+	 * <p>
+	 * The samples are read from the buffer's remaining bytes in the buffer's
+	 * byte order, which should thus be native order. Encoded data must be
+	 * passed in native order, it's then copied as-is. The buffer's position
+	 * is left unchanged.
+	 *
+	 * @param frameTime frame time of the packet
+	 * @param samples signed 16-bit PCM sample data, or encoded data
+	 * @return one of the {@code OFFER_*} result codes
+	 */
+	public int offer(final long frameTime, final ByteBuffer samples) {
+		final long before = flushedBefore.get();
+		if (frameTime < before)
+			return OFFER_FLUSHED;
+
+		final long index = packetIndex(frameTime);
+		final long headIndex = head;
+
+		if ((headIndex != Long.MIN_VALUE) && (index < headIndex))
+			return OFFER_LATE;
+		if ((headIndex != Long.MIN_VALUE) && (index - headIndex >= capacity))
+			return OFFER_OVERRUN;
+
+		final int slot = (int)(index & mask);
+		final long slotFrameTime = slotFrameTimes.get(slot);
+		if (slotFrameTime == frameTime)
+			return OFFER_DUPLICATE;
+		if (slotFrameTime != EMPTY)
+			return OFFER_OVERRUN;
+
+		final int length = Math.min(samples.remaining(), slotBytes);
+		if ( ! reserve(index, length))
+			return OFFER_MEMORY;
+
+		copy(samples, producerSlots[slot], length);
+		slotLengths[slot] = length;
+
+		/* Publish the slot */
+		slotFrameTimes.set(slot, frameTime);
+		size.incrementAndGet();
+		tail = Math.max(tail, index);
+
+		/* If the ring was closed or flushed concurrently, it's up to us to empty the slot */
+		if (closed || (frameTime < flushedBefore.get()))
+			evict(slot, frameTime, index);
+
+		/* The stream continues after the flush boundary, so the flush is complete */
+		if (before != FLUSH_NONE)
+			clearFlushedBefore(frameTime);
+
+		/* The consumer may have moved past the slot while we were filling it.
+		 * It re-checks the slot after moving, but one of us has to revoke it
+		 */
+		if (index < head)
+			evict(slot, frameTime, index);
+
+		return OFFER_OK;
+	}
+
+	/**
+	 * Positions the read cursor on the packet due at the given frame time
+	 * and returns its frame time. Slots the cursor passes over are released.
+	 * Must only be called by the consumer.
+	 *
+	 * @param nextFrameTime frame time at the output's end
+	 * @return frame time of the packet at the read cursor, or {@link #NONE}
+	 */
+	public long peek(final long nextFrameTime) {
+		reading.set(NOT_READING);
+		executeFlush();
+
+		final long lineIndex = packetIndex(nextFrameTime);
+
+		/* (Re-)position the cursor if it's unset or far away from
+		 * the line's end, e.g. after the frame time was adjusted
+		 */
+		long h = head;
+		if ((h == Long.MIN_VALUE) || (h < lineIndex - capacity) || (h > lineIndex + capacity)) {
+			releaseBefore(lineIndex - 1);
+			h = lineIndex - 1;
+			head = h;
+		}
+
+		while (size.get() > 0) {
+			final int slot = (int)(h & mask);
+			final long frameTime = slotFrameTimes.get(slot);
+			if (frameTime == EVICTING) {
+				/* The producer is about to evict the slot unless we read it. It decides right away */
+				Thread.yield();
+				continue;
+			}
+			if ((frameTime != EMPTY) && (packetIndex(frameTime) == h)) {
+				/* Pin the slot, then make sure the producer didn't claim it in the meantime */
+				reading.set(h);
+				if (slotFrameTimes.get(slot) == frameTime)
+					return frameTime;
+				reading.set(NOT_READING);
+				continue;
+			}
+
+			/* Nothing at the cursor. Skip the slot if the line already passed it,
+			 * or if the succeeding packet is due within a packet's duration
+			 */
+			final long nextFrameTimeQueued = slotFrameTimes.get((int)((h + 1) & mask));
+			final boolean nextDue =
+				(nextFrameTimeQueued != EMPTY) &&
+				(packetIndex(nextFrameTimeQueued) == h + 1) &&
+				(nextFrameTimeQueued - nextFrameTime < packetSizeFrames);
+
+			if ((h < lineIndex) || nextDue)
+				h = advance(h);
+			else
+				break;
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * Returns the data of the packet at the read cursor, positioned at its
+	 * start and limited to its length. The buffer is in native byte order.
+	 * Valid until {@link #release()} is called.
+	 */
+	public ByteBuffer headData() {
+		final int slot = (int)(head & mask);
+		final ByteBuffer data = consumerSlots[slot];
+		data.limit(slotLengths[slot]).position(0);
+		return data;
+	}
+
+	/**
+	 * Returns the sample data of the packet at the read cursor as samples.
+	 * The view's position and limit are undefined, use absolute indices below
+	 * {@link #headLength()}. Valid until {@link #release()} is called.
+	 */
+	public ShortBuffer headSamples() {
+		return consumerSlotSamples[(int)(head & mask)];
+	}
+
+	/**
+	 * Returns the length of the packet at the read cursor, in samples.
+	 */
+	public int headLength() {
+		return slotLengths[(int)(head & mask)] / 2;
+	}
+
+	/**
+	 * Releases the packet at the read cursor and advances the cursor.
+	 * Must only be called by the consumer.
+	 */
+	public void release() {
+		final long h = head;
+		final int slot = (int)(h & mask);
+		final long frameTime = slotFrameTimes.get(slot);
+		if (frameTime != EMPTY)
+			revoke(slot, frameTime);
+
+		reading.set(NOT_READING);
+		head = h + 1;
+	}
+
+	/**
+	 * Requests all queued packets to be discarded. Packets offered afterwards
+	 * are kept if they follow the queued ones. The request is executed by the
+	 * consumer during its next {@link #peek(long)}.
+	 * May be called from any thread.
+	 */
+	public void flush() {
+		/* Every queued packet precedes the packet after the tail. The boundary
+		 * replaces pending ones, since packets offered from now on are kept
+		 */
+		flushedBefore.set(FLUSH_NONE);
+		final long tailIndex = tail;
+		flushBoundary.set((tailIndex != Long.MIN_VALUE) ? (tailIndex + 1) * packetSizeFrames : FLUSH_NONE);
+	}
+
+	/**
+	 * Requests the queued packets before the given frame time to be discarded,
+	 * and refuses such packets until the flush is complete. Packets at or after the
+	 * frame time are kept. The request is executed by the consumer during its next
+	 * {@link #peek(long)}, so the consumer never sees a partially flushed ring.
+	 * May be called from any thread.
+	 *
+	 * @param frameTime frame time of the first packet to keep
+	 */
+	public void flush(final long frameTime) {
+		flushedBefore.set(frameTime);
+		requestFlush(frameTime);
+	}
+
+	/**
+	 * Executes a pending flush request. Must only be called by the consumer, which
+	 * does so in {@link #peek(long)}, but may also do so while it doesn't read the ring
+	 */
+	public void executeFlush() {
+		final long boundary = flushBoundary.getAndSet(FLUSH_NONE);
+		if (boundary != FLUSH_NONE) {
+			releaseBeforeFrameTime(boundary);
+			clearFlushedBefore(boundary);
+		}
+	}
+
+	/**
+	 * Stops refusing packets if the flush boundary isn't after the given frame time
+	 */
+	private void clearFlushedBefore(final long frameTime) {
+		while (true) {
+			final long before = flushedBefore.get();
+			if ((before == FLUSH_NONE) || (before > frameTime))
+				return;
+			if (flushedBefore.compareAndSet(before, FLUSH_NONE))
+				return;
+		}
+	}
+
+	/**
+	 * Merges a flush boundary into the pending request
+	 */
+	private void requestFlush(final long frameTime) {
+		while (true) {
+			final long boundary = flushBoundary.get();
+			if ((boundary != FLUSH_NONE) && (boundary >= frameTime))
+				return;
+			if (flushBoundary.compareAndSet(boundary, frameTime))
+				return;
+		}
+	}
+
+	/**
+	 * Discards all packets and refuses further ones. May be called from any thread,
+	 * but the ring must not be used by the consumer afterwards.
+	 */
+	public void close() {
+		closed = true;
+		releaseAll();
+	}
+
+	/**
+	 * Reserves memory for a packet with the given index, evicting the packets
+	 * farthest in the future if necessary. Must only be called by the producer.
+	 * <p>
+	 * Only packets at least two packets ahead of the read cursor are evicted.
+	 * The cursor may have moved on since it was read, so that alone doesn't
+	 * protect the slot the consumer reads. {@link #evict(int, long, long)} does.
+	 *
+	 * @return false if the packet itself is the one farthest in the future,
+	 * or the consumer is reading the packet farthest in the future
+	 */
+	private boolean reserve(final long index, final long bytes) {
+		while (true) {
+			if (queuedBytes.get() + bytes <= maxQueuedBytes) {
+				if (memoryBudget.reserve(bytes)) {
+					queuedBytes.addAndGet(bytes);
+					return true;
+				}
+			}
+
+			/* Find the packet farthest in the future. No packet lies more than
+			 * the ring's capacity ahead of the read cursor
+			 */
+			final long headIndex = (head != Long.MIN_VALUE) ? head : index - capacity;
+			if (tail > headIndex + capacity)
+				tail = headIndex + capacity;
+			while ((tail != Long.MIN_VALUE) && (tail > index) && (tail > headIndex + 1)) {
+				final int slot = (int)(tail & mask);
+				final long frameTime = slotFrameTimes.get(slot);
+				if ((frameTime != EMPTY) && (packetIndex(frameTime) == tail))
+					break;
+				--tail;
+			}
+
+			evictions.incrementAndGet();
+			memoryBudget.evicted(1);
+			if ((tail == Long.MIN_VALUE) || (tail <= index) || (tail <= headIndex + 1))
+				return false;
+
+			final int slot = (int)(tail & mask);
+			if ( ! evict(slot, slotFrameTimes.get(slot), tail))
+				return false;
+		}
+	}
+
+	/**
+	 * Empties a slot on behalf of the producer, unless the consumer is reading it.
+	 * <p>
+	 * The producer claims the slot first and checks the consumer's pin afterwards,
+	 * while the consumer pins the slot first and checks for a claim afterwards. So
+	 * either the producer sees the pin and backs off, or the consumer sees the claim
+	 * and doesn't read the slot.
+	 *
+	 * @return false if the consumer is reading the slot
+	 */
+	private boolean evict(final int slot, final long frameTime, final long index) {
+		/* The length is read first, afterwards the slot may be re-used */
+		final long bytes = slotLengths[slot];
+		if ((frameTime == EMPTY) || (frameTime == EVICTING) || ! slotFrameTimes.compareAndSet(slot, frameTime, EVICTING))
+			return true;
+
+		if (reading.get() == index) {
+			slotFrameTimes.set(slot, frameTime);
+			return false;
+		}
+
+		size.decrementAndGet();
+		queuedBytes.addAndGet(-bytes);
+		memoryBudget.release(bytes);
+		slotFrameTimes.set(slot, EMPTY);
+		return true;
+	}
+
+	/**
+	 * Copies bytes from the buffer's position into a slot, without
+	 * altering the buffer's position. Samples in non-native byte order
+	 * are swapped
+	 */
+	private static void copy(final ByteBuffer samples, final ByteBuffer slot, final int length) {
+		final int position = samples.position();
+		slot.clear();
+		if (samples.order() == ByteOrder.nativeOrder()) {
+			/* Same byte order, copy the bytes */
+			final int limit = samples.limit();
+			samples.limit(position + length);
+			slot.put(samples);
+			samples.limit(limit).position(position);
+		}
+		else {
+			for(int i=0; i < length / 2; ++i)
+				slot.putShort(2 * i, samples.getShort(position + 2 * i));
+		}
+	}
+
+	/**
+	 * Moves the cursor past an empty slot. Re-checks the slot afterwards,
+	 * since the producer might have filled it concurrently
+	 */
+	private long advance(final long h) {
+		head = h + 1;
+
+		final int slot = (int)(h & mask);
+		final long frameTime = slotFrameTimes.get(slot);
+		if ((frameTime != EMPTY) && (packetIndex(frameTime) <= h))
+			revoke(slot, frameTime);
+
+		return h + 1;
+	}
+
+	/**
+	 * Releases all packets whose index is smaller than the given index
+	 */
+	private void releaseBefore(final long index) {
+		for(int slot=0; slot < capacity; ++slot) {
+			final long frameTime = slotFrameTimes.get(slot);
+			if ((frameTime != EMPTY) && (packetIndex(frameTime) < index))
+				revoke(slot, frameTime);
+		}
+	}
+
+	/**
+	 * Releases all packets whose frame time is smaller than the given frame time
+	 */
+	private void releaseBeforeFrameTime(final long frameTime) {
+		for(int slot=0; slot < capacity; ++slot) {
+			final long slotFrameTime = slotFrameTimes.get(slot);
+			if ((slotFrameTime != EMPTY) && (slotFrameTime < frameTime))
+				revoke(slot, slotFrameTime);
+		}
+	}
+
+	/**
+	 * Releases all packets
+	 */
+	private void releaseAll() {
+		for(int slot=0; slot < capacity; ++slot) {
+			final long frameTime = slotFrameTimes.get(slot);
+			if (frameTime != EMPTY)
+				revoke(slot, frameTime);
+		}
+	}
+
+	/**
+	 * Empties a slot if it still holds the given packet.
+	 */
+	private void revoke(final int slot, final long frameTime) {
+		/* The length is read first, afterwards the producer may re-use the slot */
+		final long bytes = slotLengths[slot];
+		if ((frameTime != EMPTY) && (frameTime != EVICTING) && slotFrameTimes.compareAndSet(slot, frameTime, EMPTY)) {
+			size.decrementAndGet();
+			queuedBytes.addAndGet(-bytes);
+			memoryBudget.release(bytes);
+		}
+	}
+
+	/**
+	 * Returns the index of the packet containing the given frame time
+	 */
+	private long packetIndex(final long frameTime) {
+		final long q = frameTime / packetSizeFrames;
+		return ((frameTime % packetSizeFrames) < 0) ? (q - 1) : q;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Ordered chain of {@link AudioProcessor}s.
+ * <p>
+ * Processors may be added and removed from any thread. The chain is
+ * copied on every change, so the playout thread iterates it without locking.
+ */
+public class AudioProcessingChain {
+	private static final AudioProcessor[] EMPTY = new AudioProcessor[0];
+
+	private volatile AudioProcessor[] processors = EMPTY;
+
+	/**
+	 * Appends a processor to the chain
+	 *
+	 * @param processor processor
+	 */
+	public synchronized void add(final AudioProcessor processor) {
+		final AudioProcessor[] updated = new AudioProcessor[processors.length + 1];
+		System.arraycopy(processors, 0, updated, 0, processors.length);
+		updated[processors.length] = processor;
+		processors = updated;
+	}
+
+	/**
+	 * Removes a processor from the chain
+	 *
+	 * @param processor processor
+	 * @return true if the processor was part of the chain
+	 */
+	public synchronized boolean remove(final AudioProcessor processor) {
+		for(int i=0; i < processors.length; ++i) {
+			if (processors[i] == processor) {
+				final AudioProcessor[] updated = new AudioProcessor[processors.length - 1];
+				System.arraycopy(processors, 0, updated, 0, i);
+				System.arraycopy(processors, i + 1, updated, i, processors.length - i - 1);
+				processors = updated;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if all processors are transparent
+	 */
+	public boolean isTransparent() {
+		for(final AudioProcessor processor: processors) {
+			if ( ! processor.isTransparent())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if all processors but the given one are transparent
+	 *
+	 * @param processor processor to disregard
+	 */
+	public boolean isTransparentExcept(final AudioProcessor processor) {
+		for(final AudioProcessor p: processors) {
+			if ((p != processor) && ! p.isTransparent())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the samples through all processors which aren't transparent
+	 *
+	 * @param samples block of samples, processed in place
+	 */
+	public void process(final ShortSampleBuffer samples) {
+		for(final AudioProcessor processor: processors) {
+			if ( ! processor.isTransparent())
+				processor.process(samples);
+		}
+	}
+}
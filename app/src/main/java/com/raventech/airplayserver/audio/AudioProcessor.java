@@ -0,0 +1,43 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Processes blocks of audio in the {@link AudioOutputQueue}'s playout stage,
+ * right before they're written to the sink.
+ * <p>
+ * Called by the playout thread only, once per block of at most a few packets,
+ * so implementations must neither block nor allocate.
+ */
+public interface AudioProcessor {
+	/**
+	 * Returns true if {@link #process(ShortSampleBuffer)} would currently leave
+	 * the samples unchanged. Transparent processors are skipped, and if all
+	 * processors are, the samples are written to the sink without being copied
+	 *
+	 * @return true if transparent
+	 */
+	boolean isTransparent();
+
+	/**
+	 * Processes a block of samples in place
+	 *
+	 * @param samples block of samples
+	 */
+	void process(ShortSampleBuffer samples);
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Audio output device used by the {@link AudioOutputQueue}.
+ * <p>
+ * Sinks accept signed 16-bit PCM samples, one {@code short} per sample
+ * and channel, interleaved. Writes block
+ * while the sink's buffer is full, which paces the audio output queue.
+ * The sink's playback position serves as the queue's clock.
+ */
+public interface AudioSink {
+	/**
+	 * Maximal volume, i.e. unity gain
+	 */
+	float MAX_VOLUME = 1.0f;
+
+	/**
+	 * Minimal volume, i.e. silence
+	 */
+	float MIN_VOLUME = 0.0f;
+
+	/**
+	 * Presentation latency of sinks which can't measure it
+	 */
+	long UNKNOWN_LATENCY = -1;
+
+	/**
+	 * Starts playback
+	 */
+	void start();
+
+	/**
+	 * Pauses playback. Samples written but not yet played are kept, and
+	 * the playback position stays put until {@link #start()} is called again
+	 */
+	void pause();
+
+	/**
+	 * Returns true once the sink has been started and
+	 * its playback position advances, i.e. if it isn't paused
+	 *
+	 * @return true if playing
+	 */
+	boolean isPlaying();
+
+	/**
+	 * Discards the samples written but not yet played. Only called while
+	 * paused. The playback position restarts at zero afterwards
+	 */
+	void flush();
+
+	/**
+	 * Writes the range [off, off+len) of the provided sample data
+	 * to the sink, blocking while the sink's buffer is full.
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset, in samples
+	 * @param len sample data length, in samples
+	 * @return number of samples written
+	 */
+	int write(short[] samples, int off, int len);
+
+	/**
+	 * Writes the buffer's remaining sample data to the sink, blocking
+	 * while the sink's buffer is full. The samples are read in native
+	 * byte order, regardless of the buffer's order, and the buffer's
+	 * position is advanced past the samples written.
+	 *
+	 * @param samples sample data, typically a direct buffer
+	 * @return number of samples written
+	 */
+	int write(ByteBuffer samples);
+
+	/**
+	 * Writes as much of the buffer's remaining sample data to the sink as
+	 * fits into the sink's buffer right away, i.e. never blocks. Otherwise
+	 * behaves like {@link #write(ByteBuffer)}.
+	 *
+	 * @param samples sample data, typically a direct buffer
+	 * @return number of samples written, possibly zero
+	 */
+	int writeNonBlocking(ByteBuffer samples);
+
+	/**
+	 * Returns the number of frames played so far
+	 *
+	 * @return playback position in frames
+	 */
+	long getPlaybackPosition();
+
+	/**
+	 * Returns the time between a frame passing the {@link #getPlaybackPosition()
+	 * playback position} and the frame leaving the device's output, i.e. the
+	 * latency of the platform's mixer and of the hardware. The value may change
+	 * while playing, and may be unknown until the sink has played for a while.
+	 * Only called by the playout thread, but not for every packet.
+	 *
+	 * @return presentation latency in nanoseconds, or {@link #UNKNOWN_LATENCY}
+	 */
+	long getPresentationLatencyNanos();
+
+	/**
+	 * Sets the output gain. Values outside of
+	 * [{@link #MIN_VOLUME}, {@link #MAX_VOLUME}] are clamped.
+	 *
+	 * @param volume linear gain
+	 */
+	void setVolume(float volume);
+
+	/**
+	 * Stops playback and releases the sink's resources
+	 */
+	void close();
+}
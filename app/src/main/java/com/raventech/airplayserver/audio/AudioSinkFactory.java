@@ -0,0 +1,35 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.io.IOException;
+
+/**
+ * Creates the {@link AudioSink} of an {@link AudioOutputQueue}
+ */
+public interface AudioSinkFactory {
+	/**
+	 * Creates an audio sink for a stream
+	 *
+	 * @param streamInfoProvider format of the stream
+	 * @param bufferSizeInBytes requested size of the sink's buffer
+	 * @return a new, not yet started audio sink
+	 * @throws IOException if the sink cannot be created
+	 */
+	AudioSink createAudioSink(AudioStreamInformationProvider streamInfoProvider, int bufferSizeInBytes) throws IOException;
+}
@@ -0,0 +1,359 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link AudioSinkFactory} which keeps the sinks of ended streams warm for a while.
+ * <p>
+ * Senders tear their stream down and announce a new one whenever the user switches
+ * tracks or apps, and creating the audio output device is the most expensive part of
+ * setting a stream up. Closing a sink created by the pool therefore only pauses and
+ * flushes it, and the pool hands it to the next stream with the same format and
+ * buffer size. Sinks not taken within the keep-warm time are closed for real.
+ */
+public class AudioSinkPool implements AudioSinkFactory {
+	private static final Logger LOG = Logger.getLogger(AudioSinkPool.class.getName());
+
+	/**
+	 * Default time a sink is kept warm after its stream ended
+	 */
+	public static final long DEFAULT_KEEP_WARM_MILLIS = 10000;
+
+	/**
+	 * Keep-warm time which disables the pool
+	 */
+	public static final long NO_KEEP_WARM = 0;
+
+	/**
+	 * Maximal number of warm sinks. Streams of one receiver rarely overlap
+	 */
+	private static final int MAX_WARM_SINKS = 2;
+
+	/**
+	 * Creates the actual sinks
+	 */
+	private final AudioSinkFactory audioSinkFactory;
+
+	/**
+	 * Closes the sinks which weren't taken in time
+	 */
+	private final ScheduledExecutorService executorService;
+
+	private long keepWarmMillis = DEFAULT_KEEP_WARM_MILLIS;
+
+	/**
+	 * Sinks kept warm, oldest first
+	 */
+	private final List<WarmSink> warmSinks = new java.util.LinkedList<WarmSink>();
+
+	private boolean closed = false;
+
+	/**
+	 * Number of sinks handed out warm, and number created
+	 */
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * A sink and the format it was created for
+	 */
+	private static final class WarmSink {
+		final AudioSink audioSink;
+		final int sampleRate;
+		final int channels;
+		final int sampleSizeInBits;
+		final int audioFormat;
+		final int bufferSizeInBytes;
+
+		/**
+		 * Closes the sink once the keep-warm time elapsed, while in the pool
+		 */
+		ScheduledFuture<?> expiry;
+
+		WarmSink(final AudioSink audioSink, final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+			this.audioSink = audioSink;
+			sampleRate = streamInfoProvider.getSampleRate();
+			channels = streamInfoProvider.getChannels();
+			sampleSizeInBits = streamInfoProvider.getSampleSizeInBits();
+			audioFormat = streamInfoProvider.getAudioFormat();
+			this.bufferSizeInBytes = bufferSizeInBytes;
+		}
+
+		boolean isCompatible(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+			return
+				(sampleRate == streamInfoProvider.getSampleRate()) &&
+				(channels == streamInfoProvider.getChannels()) &&
+				(sampleSizeInBits == streamInfoProvider.getSampleSizeInBits()) &&
+				(audioFormat == streamInfoProvider.getAudioFormat()) &&
+				(this.bufferSizeInBytes == bufferSizeInBytes);
+		}
+	}
+
+	/**
+	 * Sink handed to a stream. Closing it returns the actual sink to the pool
+	 */
+	private final class PooledAudioSink implements AudioSink {
+		private final WarmSink warmSink;
+		private final AudioSink audioSink;
+		private boolean sinkClosed = false;
+
+		PooledAudioSink(final WarmSink warmSink) {
+			this.warmSink = warmSink;
+			audioSink = warmSink.audioSink;
+		}
+
+		@Override
+		public void start() {
+			audioSink.start();
+		}
+
+		@Override
+		public void pause() {
+			audioSink.pause();
+		}
+
+		@Override
+		public boolean isPlaying() {
+			return audioSink.isPlaying();
+		}
+
+		@Override
+		public void flush() {
+			audioSink.flush();
+		}
+
+		@Override
+		public int write(final short[] samples, final int off, final int len) {
+			return audioSink.write(samples, off, len);
+		}
+
+		@Override
+		public int write(final ByteBuffer samples) {
+			return audioSink.write(samples);
+		}
+
+		@Override
+		public int writeNonBlocking(final ByteBuffer samples) {
+			return audioSink.writeNonBlocking(samples);
+		}
+
+		@Override
+		public long getPlaybackPosition() {
+			return audioSink.getPlaybackPosition();
+		}
+
+		@Override
+		public long getPresentationLatencyNanos() {
+			return audioSink.getPresentationLatencyNanos();
+		}
+
+		@Override
+		public void setVolume(final float volume) {
+			audioSink.setVolume(volume);
+		}
+
+		@Override
+		public void close() {
+			synchronized(this) {
+				if (sinkClosed)
+					return;
+				sinkClosed = true;
+			}
+
+			release(warmSink);
+		}
+	}
+
+	/**
+	 * Creates a pool
+	 *
+	 * @param audioSinkFactory creates the actual sinks
+	 * @param executorService closes the sinks not taken in time
+	 */
+	public AudioSinkPool(final AudioSinkFactory audioSinkFactory, final ScheduledExecutorService executorService) {
+		this.audioSinkFactory = audioSinkFactory;
+		this.executorService = executorService;
+	}
+
+	public synchronized long getKeepWarmMillis() {
+		return keepWarmMillis;
+	}
+
+	/**
+	 * Sets the time a sink is kept warm after its stream ended. Applies to
+	 * sinks released afterwards. {@link #NO_KEEP_WARM} closes them right away.
+	 *
+	 * @param keepWarmMillis keep-warm time in milliseconds
+	 */
+	public synchronized void setKeepWarmMillis(final long keepWarmMillis) {
+		if (keepWarmMillis < 0)
+			throw new IllegalArgumentException("keepWarmMillis must not be negative");
+		this.keepWarmMillis = keepWarmMillis;
+	}
+
+	@Override
+	public AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) throws IOException {
+		synchronized(this) {
+			final Iterator<WarmSink> i = warmSinks.iterator();
+			while (i.hasNext()) {
+				final WarmSink warmSink = i.next();
+				if ( ! warmSink.isCompatible(streamInfoProvider, bufferSizeInBytes) )
+					continue;
+
+				i.remove();
+				if (warmSink.expiry != null)
+					warmSink.expiry.cancel(false);
+				warmSink.expiry = null;
+
+				++hits;
+				LOG.info("Re-using warm audio sink " + warmSink.audioSink.getClass().getSimpleName() + ", hit rate " + hits + "/" + (hits + misses));
+				return new PooledAudioSink(warmSink);
+			}
+
+			++misses;
+		}
+
+		return new PooledAudioSink(new WarmSink(
+			audioSinkFactory.createAudioSink(streamInfoProvider, bufferSizeInBytes),
+			streamInfoProvider,
+			bufferSizeInBytes
+		));
+	}
+
+	/**
+	 * Returns the number of sinks handed out warm
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of sinks which had to be created
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the fraction of sinks handed out warm, or NaN if none was handed out yet
+	 */
+	public synchronized double getHitRate() {
+		return (hits + misses > 0) ? (double)hits / (hits + misses) : Double.NaN;
+	}
+
+	/**
+	 * Closes all warm sinks, and closes sinks released afterwards right away
+	 */
+	public void close() {
+		final List<WarmSink> expired;
+		synchronized(this) {
+			closed = true;
+			expired = new java.util.ArrayList<WarmSink>(warmSinks);
+			warmSinks.clear();
+		}
+
+		for(final WarmSink warmSink: expired)
+			closeSink(warmSink);
+	}
+
+	/**
+	 * Pauses and flushes a sink whose stream ended and keeps it warm
+	 */
+	private void release(final WarmSink warmSink) {
+		final long keepWarm;
+		synchronized(this) {
+			keepWarm = closed ? NO_KEEP_WARM : keepWarmMillis;
+		}
+		if (keepWarm == NO_KEEP_WARM) {
+			closeSink(warmSink);
+			return;
+		}
+
+		try {
+			warmSink.audioSink.pause();
+			warmSink.audioSink.flush();
+		}
+		catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Failed to reset audio sink, closing it instead of keeping it warm", e);
+			closeSink(warmSink);
+			return;
+		}
+
+		WarmSink evicted = null;
+		synchronized(this) {
+			if (closed) {
+				evicted = warmSink;
+			}
+			else {
+				try {
+					warmSink.expiry = executorService.schedule(new Runnable() {
+						@Override
+						public void run() {
+							expire(warmSink);
+						}
+					}, keepWarm, TimeUnit.MILLISECONDS);
+
+					warmSinks.add(warmSink);
+					if (warmSinks.size() > MAX_WARM_SINKS) {
+						evicted = warmSinks.remove(0);
+						evicted.expiry.cancel(false);
+					}
+				}
+				catch (final RejectedExecutionException e) {
+					evicted = warmSink;
+				}
+			}
+		}
+
+		if (evicted != null)
+			closeSink(evicted);
+	}
+
+	/**
+	 * Closes a sink which wasn't taken within the keep-warm time
+	 */
+	private void expire(final WarmSink warmSink) {
+		synchronized(this) {
+			if ( ! warmSinks.remove(warmSink) )
+				return;
+		}
+
+		LOG.info("Audio sink " + warmSink.audioSink.getClass().getSimpleName() + " not re-used in time, closing it");
+		closeSink(warmSink);
+	}
+
+	private static void closeSink(final WarmSink warmSink) {
+		try {
+			warmSink.audioSink.close();
+		}
+		catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Failed to close audio sink", e);
+		}
+	}
+}
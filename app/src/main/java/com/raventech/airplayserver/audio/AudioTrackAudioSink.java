@@ -0,0 +1,191 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+
+/**
+ * {@link AudioSink} writing to an Android {@link AudioTrack}
+ */
+public class AudioTrackAudioSink implements AudioSink {
+	private static Logger LOG = Logger.getLogger(AudioTrackAudioSink.class.getName());
+
+	/**
+	 * Creates {@link AudioTrackAudioSink}s
+	 */
+	public static final AudioSinkFactory FACTORY = new AudioSinkFactory() {
+		@Override
+		public AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+			return new AudioTrackAudioSink(streamInfoProvider, bufferSizeInBytes);
+		}
+	};
+
+	/**
+	 * Android audio track (replaces the SourceDataLine)
+	 */
+	private final AudioTrack audioTrack;
+
+	private final int sampleRate;
+
+	/**
+	 * Receives the track's time stamps. Used by the playout thread only
+	 */
+	private final AudioTimestamp timestamp = new AudioTimestamp();
+
+	public AudioTrackAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+		//create the AudioTrack
+		//audioTrack = new AudioTrack(streamType, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes, mode);
+		audioTrack = new AudioTrack(
+			AudioManager.STREAM_MUSIC,
+			streamInfoProvider.getSampleRate(),
+			AudioFormat.CHANNEL_CONFIGURATION_STEREO,//FIXME
+			streamInfoProvider.getAudioFormat(),
+			bufferSizeInBytes,
+			AudioTrack.MODE_STREAM
+		);
+		sampleRate = streamInfoProvider.getSampleRate();
+
+		LOG.info("AudioTrack created succesfully with a buffer of : " + bufferSizeInBytes + " bytes");
+	}
+
+	@Override
+	public void start() {
+		audioTrack.play();
+		LOG.info("Audio Track started !!!");
+	}
+
+	@Override
+	public void pause() {
+		audioTrack.pause();
+		LOG.info("Audio Track paused");
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+	}
+
+	/**
+	 * Flushing resets the track's playback head position to zero
+	 */
+	@Override
+	public void flush() {
+		audioTrack.flush();
+	}
+
+	@Override
+	public int write(final short[] samples, final int off, final int len) {
+		final int samplesWritten = audioTrack.write(samples, off, len);
+
+		if(samplesWritten == AudioTrack.ERROR_INVALID_OPERATION){
+			LOG.severe("Audio Track not initialized properly");
+			throw new RuntimeException("Audio Track not initialized properly: AudioTrack status: ERROR_INVALID_OPERATION");
+		}
+		else if(samplesWritten == AudioTrack.ERROR_BAD_VALUE){
+			LOG.severe("Wrong parameters sent to Audio Track!");
+			throw new RuntimeException("Wrong parameters sent to Audio Track! AudioTrack status: ERROR_BAD_VALUE");
+		}
+
+		return samplesWritten;
+	}
+
+	@Override
+	public int write(final ByteBuffer samples) {
+		return write(samples, AudioTrack.WRITE_BLOCKING);
+	}
+
+	@Override
+	public int writeNonBlocking(final ByteBuffer samples) {
+		return write(samples, AudioTrack.WRITE_NON_BLOCKING);
+	}
+
+	private int write(final ByteBuffer samples, final int writeMode) {
+		final int bytesWritten = audioTrack.write(samples, samples.remaining(), writeMode);
+
+		if(bytesWritten == AudioTrack.ERROR_INVALID_OPERATION){
+			LOG.severe("Audio Track not initialized properly");
+			throw new RuntimeException("Audio Track not initialized properly: AudioTrack status: ERROR_INVALID_OPERATION");
+		}
+		else if(bytesWritten == AudioTrack.ERROR_BAD_VALUE){
+			LOG.severe("Wrong parameters sent to Audio Track!");
+			throw new RuntimeException("Wrong parameters sent to Audio Track! AudioTrack status: ERROR_BAD_VALUE");
+		}
+
+		return bytesWritten / 2;
+	}
+
+	@Override
+	public long getPlaybackPosition() {
+		//getPlaybackHeadPosition()
+		//getNotificationMarkerPosition
+		//return audioTrack.getNotificationMarkerPosition();
+		//return m_line.getLongFramePosition();
+		if(audioTrack.getPlayState() != AudioTrack.PLAYSTATE_STOPPED){
+			/* The head position is an unsigned 32-bit value. It holds still while paused */
+			return audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+		}
+		else{
+			LOG.warning("getPlaybackPosition() called while audioTrack is stopped");
+			return 0;
+		}
+	}
+
+	/**
+	 * Derives the latency from the track's time stamp, which tells when a recent frame
+	 * left the device's output. Time stamps are only available while playing, and only
+	 * once the output has settled, so the latency is unknown until then.
+	 */
+	@Override
+	public long getPresentationLatencyNanos() {
+		if ((audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) || ! audioTrack.getTimestamp(timestamp))
+			return UNKNOWN_LATENCY;
+
+		final long nowNanos = System.nanoTime();
+		final long position = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+
+		/* Both positions are 32-bit counters which wrap around. The time stamp's
+		 * clock is the monotonic clock, like System.nanoTime()
+		 */
+		final int framesSinceTimestamp = (int)(position - timestamp.framePosition);
+		final long positionPresentedNanos = timestamp.nanoTime + framesSinceTimestamp * 1000000000L / sampleRate;
+		return Math.max(0, positionPresentedNanos - nowNanos);
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		/* Map the linear gain onto the AudioTrack's range */
+		volume = Math.max(MIN_VOLUME, Math.min(MAX_VOLUME, volume));
+		volume = AudioTrack.getMinVolume() + volume * (AudioTrack.getMaxVolume() - AudioTrack.getMinVolume());
+
+		LOG.info("setStereoVolume() volume: " + volume);
+
+		audioTrack.setStereoVolume(volume, volume);
+	}
+
+	@Override
+	public void close() {
+		audioTrack.stop();
+		audioTrack.release();
+	}
+}
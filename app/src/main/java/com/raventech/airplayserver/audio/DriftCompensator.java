@@ -0,0 +1,88 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Derives a playback rate correction from the timing errors observed
+ * at the line's end.
+ * <p>
+ * A slowly growing timing error means that the source's clock and the
+ * audio device's clock run at slightly different rates. A PI controller
+ * turns the error into a resampling ratio close to one, whose integral
+ * part converges to the rate mismatch itself.
+ */
+final class DriftCompensator {
+	/**
+	 * Proportional gain, per second. Corrects a 1ms error by 500ppm
+	 */
+	private static final double PROPORTIONAL_GAIN = 0.5;
+
+	/**
+	 * Integral gain, per second squared
+	 */
+	private static final double INTEGRAL_GAIN = 0.05;
+
+	/**
+	 * Largest rate correction applied, i.e. 1000ppm. Corresponds to
+	 * a pitch change of less than two cents, which is inaudible
+	 */
+	static final double MAX_CORRECTION = 1e-3;
+
+	/**
+	 * Integral part of the correction, i.e. the estimated rate mismatch
+	 */
+	private double integral = 0;
+
+	/**
+	 * Current resampling ratio
+	 */
+	private double ratio = 1.0;
+
+	/**
+	 * Feeds a timing error into the controller.
+	 *
+	 * @param errorSeconds playback time of the next samples minus the line's end time
+	 * @param intervalSeconds duration of the samples about to be played
+	 * @return ratio of output to input frames for the samples about to be played
+	 */
+	public double update(final double errorSeconds, final double intervalSeconds) {
+		/* Anti-windup: the integral alone must never exceed the maximal correction */
+		integral = clamp(integral + INTEGRAL_GAIN * errorSeconds * intervalSeconds);
+		ratio = 1.0 + clamp(PROPORTIONAL_GAIN * errorSeconds + integral);
+		return ratio;
+	}
+
+	/**
+	 * Returns the estimated relative rate mismatch between source and device.
+	 * Positive values mean that the device consumes frames too quickly
+	 */
+	public double getRateMismatch() {
+		return integral;
+	}
+
+	/**
+	 * Returns the current resampling ratio
+	 */
+	public double getRatio() {
+		return ratio;
+	}
+
+	private static double clamp(final double correction) {
+		return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Fixed-point time arithmetic.
+ * <p>
+ * Times are 64-bit NTP time stamps, i.e. seconds since 1900-01-01 in the
+ * upper 32 bits and the fraction of a second in the lower 32 bits. This is
+ * exactly the representation used on the wire, so packet times are carried
+ * through the clock, timing and retransmit code without rounding. Time
+ * differences use the same representation and may be negative.
+ * <p>
+ * Absolute times since 1968 have the top bit set, i.e. are negative as a
+ * signed long, and wrap around in 2036. Compare them only by the sign of
+ * their difference, e.g. {@code (a - b) > 0} rather than {@code a > b},
+ * which is correct as long as the times are less than 68 years apart.
+ */
+public final class FixedPointTime {
+	/**
+	 * One second
+	 */
+	public static final long ONE_SECOND = 1L << 32;
+
+	/**
+	 * Seconds between the NTP epoch (1900) and the Unix epoch (1970)
+	 */
+	public static final long NTP_EPOCH_OFFSET_SECONDS = 2208988800L;
+
+	private static final long FRACTION_MASK = ONE_SECOND - 1;
+
+	private FixedPointTime() {
+	}
+
+	/**
+	 * Converts a number of frames to a time. Exact up to rounding of the
+	 * last fractional bit, so that {@link #toFrames(long, long)} returns
+	 * the original number of frames.
+	 *
+	 * @param frames number of frames
+	 * @param sampleRate frames per second
+	 * @return time
+	 */
+	public static long fromFrames(final long frames, final long sampleRate) {
+		long seconds = frames / sampleRate;
+		long remainder = frames % sampleRate;
+		if (remainder < 0) {
+			seconds -= 1;
+			remainder += sampleRate;
+		}
+		return (seconds << 32) + ((remainder << 32) + sampleRate / 2) / sampleRate;
+	}
+
+	/**
+	 * Converts a time to the nearest number of frames
+	 *
+	 * @param time time
+	 * @param sampleRate frames per second
+	 * @return number of frames
+	 */
+	public static long toFrames(final long time, final long sampleRate) {
+		return (time >> 32) * sampleRate + (((time & FRACTION_MASK) * sampleRate + (ONE_SECOND / 2)) >>> 32);
+	}
+
+	/**
+	 * Converts milliseconds since the Unix epoch, e.g. {@link System#currentTimeMillis()},
+	 * to an NTP time
+	 *
+	 * @param millis milliseconds since 1970-01-01
+	 * @return NTP time
+	 */
+	public static long fromUnixMillis(final long millis) {
+		return ((millis / 1000L + NTP_EPOCH_OFFSET_SECONDS) << 32) + ((millis % 1000L) << 32) / 1000L;
+	}
+
+	/**
+	 * Converts an NTP time to milliseconds since the Unix epoch. Times are
+	 * taken to lie in the current NTP era, i.e. between 1900 and 2036
+	 *
+	 * @param time NTP time
+	 * @return milliseconds since 1970-01-01
+	 */
+	public static long toUnixMillis(final long time) {
+		return ((time >>> 32) - NTP_EPOCH_OFFSET_SECONDS) * 1000L + (((time & FRACTION_MASK) * 1000L + (ONE_SECOND / 2)) >>> 32);
+	}
+
+	/**
+	 * Converts a duration in nanoseconds to a time difference
+	 *
+	 * @param nanos nanoseconds
+	 * @return time difference
+	 */
+	public static long fromNanos(final long nanos) {
+		return ((nanos / 1000000000L) << 32) + ((nanos % 1000000000L) << 32) / 1000000000L;
+	}
+
+	/**
+	 * Converts a time difference to the nearest number of nanoseconds
+	 *
+	 * @param time time difference
+	 * @return nanoseconds
+	 */
+	public static long toNanos(final long time) {
+		return (time >> 32) * 1000000000L + (((time & FRACTION_MASK) * 1000000000L + (ONE_SECOND / 2)) >>> 32);
+	}
+
+	/**
+	 * Converts seconds to a time. Meant for durations and small
+	 * differences, large values lose precision as doubles
+	 *
+	 * @param seconds seconds
+	 * @return time
+	 */
+	public static long fromSeconds(final double seconds) {
+		return Math.round(seconds * ONE_SECOND);
+	}
+
+	/**
+	 * Converts a time to seconds. Meant for durations and small
+	 * differences, large values lose precision as doubles
+	 *
+	 * @param time time
+	 * @return seconds
+	 */
+	public static double toSeconds(final long time) {
+		return (double)time / ONE_SECOND;
+	}
+}
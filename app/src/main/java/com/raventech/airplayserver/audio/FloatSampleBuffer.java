@@ -0,0 +1,151 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * {@link SampleIndexedAccessor} backed by a {@code float[]}, either interleaved
+ * (all channels of a sample next to each other) or planar (all samples of a
+ * channel next to each other).
+ * <p>
+ * A buffer is a view on a region of its array. {@link #slice(SampleOffset, SampleDimensions)}
+ * creates a new view, {@link #view(FloatSampleBuffer, int, int, int, int)} re-points an existing
+ * one and thus never allocates. Processors needing raw access to the array use
+ * {@link #getArray()} and {@link #index(int, int)}.
+ */
+public final class FloatSampleBuffer implements SampleIndexedAccessor {
+	private float[] array;
+	private int base;
+	private int channels;
+	private int samples;
+	private int channelStride;
+	private int sampleStride;
+
+	private FloatSampleBuffer(final float[] array, final int base, final int channels, final int samples, final int channelStride, final int sampleStride) {
+		this.array = array;
+		this.base = base;
+		this.channels = channels;
+		this.samples = samples;
+		this.channelStride = channelStride;
+		this.sampleStride = sampleStride;
+	}
+
+	/**
+	 * Creates a buffer on an array of interleaved samples
+	 *
+	 * @param array sample data
+	 * @param channels number of channels
+	 * @return buffer spanning the whole array
+	 */
+	public static FloatSampleBuffer interleaved(final float[] array, final int channels) {
+		if (channels <= 0)
+			throw new IllegalArgumentException("channels must be greater than zero");
+		return new FloatSampleBuffer(array, 0, channels, array.length / channels, 1, channels);
+	}
+
+	/**
+	 * Creates a buffer on an array of planar samples, i.e. of one block per channel
+	 *
+	 * @param array sample data
+	 * @param channels number of channels
+	 * @return buffer spanning the whole array
+	 */
+	public static FloatSampleBuffer planar(final float[] array, final int channels) {
+		if (channels <= 0)
+			throw new IllegalArgumentException("channels must be greater than zero");
+		final int samples = array.length / channels;
+		return new FloatSampleBuffer(array, 0, channels, samples, samples, 1);
+	}
+
+	/**
+	 * Turns this buffer into a view on a region of the given buffer
+	 *
+	 * @param source buffer to view
+	 * @param channel first channel of the region
+	 * @param sample first sample of the region
+	 * @param channels number of channels of the region
+	 * @param samples number of samples of the region
+	 * @return this buffer
+	 */
+	public FloatSampleBuffer view(final FloatSampleBuffer source, final int channel, final int sample, final int channels, final int samples) {
+		if ((channel < 0) || (sample < 0) || (channels < 0) || (samples < 0) || (channel + channels > source.channels) || (sample + samples > source.samples))
+			throw new IllegalArgumentException("Region (" + channel + "," + sample + ")+(" + channels + "," + samples + ") exceeds dimensions [" + source.channels + ";" + source.samples + "]");
+
+		array = source.array;
+		base = source.index(channel, sample);
+		this.channels = channels;
+		this.samples = samples;
+		channelStride = source.channelStride;
+		sampleStride = source.sampleStride;
+		return this;
+	}
+
+	@Override
+	public SampleDimensions getDimensions() {
+		return new SampleDimensions(channels, samples);
+	}
+
+	@Override
+	public int getChannels() {
+		return channels;
+	}
+
+	@Override
+	public int getSamples() {
+		return samples;
+	}
+
+	@Override
+	public FloatSampleBuffer slice(final SampleOffset offset, SampleDimensions dimensions) {
+		if (dimensions == null)
+			dimensions = new SampleDimensions(channels - offset.channel, samples - offset.sample);
+		return new FloatSampleBuffer(array, 0, 0, 0, 0, 0).view(this, offset.channel, offset.sample, dimensions.channels, dimensions.samples);
+	}
+
+	@Override
+	public FloatSampleBuffer slice(final SampleRange range) {
+		return slice(range.offset, range.size);
+	}
+
+	/**
+	 * Returns the backing array
+	 */
+	public float[] getArray() {
+		return array;
+	}
+
+	/**
+	 * Returns the index of a sample in the backing array
+	 *
+	 * @param channel channel
+	 * @param sample sample
+	 * @return array index
+	 */
+	public int index(final int channel, final int sample) {
+		return base + channel * channelStride + sample * sampleStride;
+	}
+
+	@Override
+	public float getSample(final int channel, final int sample) {
+		return array[index(channel, sample)];
+	}
+
+	@Override
+	public void setSample(final int channel, final int sample, final float value) {
+		array[index(channel, sample)] = value;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Resamples interleaved 16-bit PCM by ratios close to one, using linear
+ * interpolation.
+ * <p>
+ * The read position is kept as a 32.32 fixed-point number of input frames,
+ * fine enough to represent rate corrections of a fraction of a ppm. The
+ * position and the last input frame carry over from one block to the next,
+ * so consecutive blocks are resampled as one continuous signal.
+ * <p>
+ * The input is read with absolute indices, so it may be a view on a direct buffer.
+ */
+final class FractionalResampler {
+	private static final int FRACTION_BITS = 32;
+
+	private static final long ONE = 1L << FRACTION_BITS;
+
+	private static final long FRACTION_MASK = ONE - 1;
+
+	/**
+	 * Samples per frame
+	 */
+	private final int channels;
+
+	/**
+	 * Last frame of the previous block, i.e. input frame -1
+	 */
+	private final short[] lastFrame;
+
+	/**
+	 * Position of the next output frame, in input frames counted from
+	 * {@link #lastFrame}. Thus, {@link #ONE} denotes the block's first frame
+	 */
+	private long position = ONE;
+
+	public FractionalResampler(final int channels) {
+		this.channels = channels;
+		lastFrame = new short[channels];
+	}
+
+	/**
+	 * Returns true if the output frames currently coincide with the input frames,
+	 * i.e. if a block can be passed through unchanged at ratio one
+	 */
+	public boolean isAligned() {
+		return position == ONE;
+	}
+
+	/**
+	 * Forgets the previous block. The next block's first frame is output as-is
+	 */
+	public void reset() {
+		position = ONE;
+	}
+
+	/**
+	 * Notes that a block was output unchanged, bypassing the resampler.
+	 * Must only be used while {@link #isAligned()}
+	 *
+	 * @param in input samples
+	 * @param off input offset, in samples
+	 * @param len input length, in samples
+	 */
+	public void bypass(final ShortBuffer in, final int off, final int len) {
+		if (len >= channels)
+			saveLastFrame(in, off + len - channels);
+	}
+
+	/**
+	 * Resamples a block.
+	 *
+	 * @param in input samples
+	 * @param off input offset, in samples
+	 * @param len input length, in samples
+	 * @param ratio ratio of output to input frames
+	 * @param out output buffer, must hold at least {@code len * ratio + 1} frames
+	 * @return number of output samples
+	 */
+	public int process(final ShortBuffer in, final int off, final int len, final double ratio, final short[] out) {
+		final int inFrames = len / channels;
+		if (inFrames <= 0)
+			return 0;
+
+		final long step = Math.round(ONE / ratio);
+		final int outFramesMax = out.length / channels;
+
+		long p = position;
+		int outFrames = 0;
+		while (outFrames < outFramesMax) {
+			/* Left neighbour's index, -1 referring to the previous block's last frame */
+			final int left = (int)(p >>> FRACTION_BITS) - 1;
+			if (left + 1 >= inFrames)
+				break;
+
+			final long fraction = p & FRACTION_MASK;
+			final int leftBase = off + left * channels;
+			final int rightBase = leftBase + channels;
+			final int outBase = outFrames * channels;
+			for(int c=0; c < channels; ++c) {
+				final int s0 = (left < 0) ? lastFrame[c] : in.get(leftBase + c);
+				final int s1 = in.get(rightBase + c);
+				out[outBase + c] = (short)(s0 + (((s1 - s0) * fraction) >> FRACTION_BITS));
+			}
+
+			++outFrames;
+			p += step;
+		}
+
+		/* Re-base the position onto this block's last frame */
+		position = p - ((long)inFrames << FRACTION_BITS);
+		saveLastFrame(in, off + (inFrames - 1) * channels);
+
+		return outFrames * channels;
+	}
+
+	private void saveLastFrame(final ShortBuffer in, final int index) {
+		for(int c=0; c < channels; ++c)
+			lastFrame[c] = in.get(index + c);
+	}
+}
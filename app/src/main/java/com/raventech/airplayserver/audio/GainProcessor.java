@@ -0,0 +1,171 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Applies a linear gain, ramping smoothly from one gain to the next.
+ * <p>
+ * Gain changes may be requested from any thread. They take effect at the
+ * first sample of the next block processed, and are spread linearly over
+ * the ramp's duration, sample by sample, so they never click.
+ */
+public class GainProcessor implements AudioProcessor {
+	/**
+	 * Default ramp duration, in seconds
+	 */
+	public static final double DEFAULT_RAMP_SECONDS = 0.02;
+
+	/**
+	 * Number of samples a ramp from zero to unity gain takes
+	 */
+	private final int rampSamples;
+
+	/**
+	 * Requested gain
+	 */
+	private volatile float targetGain;
+
+	/**
+	 * Gain applied to the next sample. Accessed by the playout thread only
+	 */
+	private float gain;
+
+	/**
+	 * Creates a gain processor
+	 *
+	 * @param sampleRate sample rate
+	 * @param rampSeconds duration of a ramp between zero and unity gain
+	 * @param gain initial gain
+	 */
+	public GainProcessor(final double sampleRate, final double rampSeconds, final float gain) {
+		rampSamples = Math.max(1, (int)Math.round(sampleRate * rampSeconds));
+		this.gain = gain;
+		targetGain = gain;
+	}
+
+	/**
+	 * Requests a new gain, reached gradually
+	 *
+	 * @param gain linear gain, at least zero
+	 */
+	public void setGain(final float gain) {
+		targetGain = Math.max(0.0f, gain);
+	}
+
+	/**
+	 * Sets the gain immediately, without ramping. Must only be
+	 * called by the playout thread, e.g. while the output is muted
+	 *
+	 * @param gain linear gain, at least zero
+	 */
+	public void jumpToGain(final float gain) {
+		targetGain = Math.max(0.0f, gain);
+		this.gain = targetGain;
+	}
+
+	/**
+	 * Returns the requested gain
+	 */
+	public float getGain() {
+		return targetGain;
+	}
+
+	@Override
+	public boolean isTransparent() {
+		return (gain == 1.0f) && (targetGain == 1.0f);
+	}
+
+	@Override
+	public void process(final ShortSampleBuffer samples) {
+		final short[] array = samples.getArray();
+		final int channels = samples.getChannels();
+		final int length = samples.getSamples();
+		final float target = targetGain;
+
+		/* Ramp part */
+		final float step = rampStep(target);
+		int s = 0;
+		for(; (s < length) && (gain != target); ++s) {
+			gain = rampGain(target, step);
+			for(int c=0; c < channels; ++c) {
+				final int i = samples.index(c, s);
+				array[i] = clip(array[i] * gain);
+			}
+		}
+
+		/* Constant part */
+		if (gain == 1.0f)
+			return;
+		for(; s < length; ++s) {
+			for(int c=0; c < channels; ++c) {
+				final int i = samples.index(c, s);
+				array[i] = clip(array[i] * gain);
+			}
+		}
+	}
+
+	/**
+	 * Processes interleaved samples in place, e.g. queued packets which need
+	 * no other processing and are thus handed to the sink without a copy
+	 *
+	 * @param samples samples
+	 * @param off offset of the first frame, in samples
+	 * @param len number of samples, a multiple of the channel count
+	 * @param channels number of channels
+	 */
+	public void process(final ShortBuffer samples, final int off, final int len, final int channels) {
+		final int end = off + len;
+		final float target = targetGain;
+
+		/* Ramp part */
+		final float step = rampStep(target);
+		int i = off;
+		for(; (i < end) && (gain != target); i += channels) {
+			gain = rampGain(target, step);
+			for(int c=0; c < channels; ++c)
+				samples.put(i + c, clip(samples.get(i + c) * gain));
+		}
+
+		/* Constant part */
+		if (gain == 1.0f)
+			return;
+		for(; i < end; ++i)
+			samples.put(i, clip(samples.get(i) * gain));
+	}
+
+	/**
+	 * Returns the per-sample gain step towards the target. It's sized so
+	 * that a full-scale change takes the ramp's duration
+	 */
+	private float rampStep(final float target) {
+		return (target > gain) ? 1.0f / rampSamples : -1.0f / rampSamples;
+	}
+
+	/**
+	 * Returns the gain of the next sample of a ramp
+	 */
+	private float rampGain(final float target, final float step) {
+		return (Math.abs(target - gain) <= Math.abs(step)) ? target : gain + step;
+	}
+
+	private static short clip(final float value) {
+		return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Measures the packets' arrival jitter and lateness, and derives the
+ * playout delay needed to absorb them.
+ * <p>
+ * The jitter is the interarrival jitter of RFC 3550, i.e. a running
+ * average of the differences between the packets' spacing in frame
+ * time and their spacing in arrival time. The slack is the time left
+ * between a packet's arrival and its playback. Once per window of packets,
+ * the delay grows until the smallest slack covers a multiple of the jitter,
+ * and shrinks by one packet if the slack was comfortably larger.
+ * <p>
+ * Updated by the enqueuing thread only, the results may be read by any thread.
+ */
+final class JitterEstimator {
+	/**
+	 * Packets per adaptation window, about three seconds of audio
+	 */
+	private static final int WINDOW_PACKETS = 384;
+
+	/**
+	 * Slack required in multiples of the jitter, in addition to one packet
+	 */
+	private static final double JITTER_MARGIN = 4.0;
+
+	/**
+	 * Excess slack, in packets, above which the delay shrinks
+	 */
+	private static final int SHRINK_HYSTERESIS_PACKETS = 2;
+
+	/**
+	 * Weight of a window's late packet rate in the average
+	 */
+	private static final double LATE_RATE_WEIGHT = 0.25;
+
+	private final double sampleRate;
+
+	private final int packetSizeFrames;
+
+	/**
+	 * Bounds of the delay, in frames
+	 */
+	private final long minDelayFrames;
+	private final long maxDelayFrames;
+
+	/**
+	 * Frame time and arrival time of the latest packet
+	 */
+	private long lastFrameTime = Long.MIN_VALUE;
+	private long lastArrivalNanos = 0;
+
+	/**
+	 * Interarrival jitter, in frames
+	 */
+	private double jitterFrames = 0;
+
+	/**
+	 * Statistics of the current window
+	 */
+	private int windowPackets = 0;
+	private int windowLatePackets = 0;
+	private long windowMinSlackFrames = Long.MAX_VALUE;
+
+	/**
+	 * Published results
+	 */
+	private volatile double jitterSeconds = 0;
+	private volatile double latePacketRate = 0;
+	private volatile long delayFrames;
+
+	/**
+	 * Creates an estimator
+	 *
+	 * @param sampleRate sample rate
+	 * @param packetSizeFrames frames per packet
+	 * @param minDelayFrames smallest delay
+	 * @param maxDelayFrames largest delay
+	 */
+	public JitterEstimator(final double sampleRate, final int packetSizeFrames, final long minDelayFrames, final long maxDelayFrames) {
+		this.sampleRate = sampleRate;
+		this.packetSizeFrames = packetSizeFrames;
+		this.minDelayFrames = minDelayFrames;
+		this.maxDelayFrames = maxDelayFrames;
+		delayFrames = clamp(0);
+	}
+
+	/**
+	 * Starts out from the results of an earlier estimator for the same sender,
+	 * instead of from zero. Must be called before the first packet arrives
+	 *
+	 * @param jitterSeconds interarrival jitter in seconds
+	 * @param latePacketRate average fraction of late packets
+	 * @param delayFrames playout delay in frames
+	 */
+	public void seed(final double jitterSeconds, final double latePacketRate, final long delayFrames) {
+		jitterFrames = jitterSeconds * sampleRate;
+		this.jitterSeconds = jitterSeconds;
+		this.latePacketRate = latePacketRate;
+		this.delayFrames = clamp(delayFrames);
+	}
+
+	/**
+	 * Feeds a packet's arrival into the estimator.
+	 *
+	 * @param frameTime frame time of the packet
+	 * @param arrivalNanos arrival time, from {@link System#nanoTime()}
+	 * @param slackFrames frames between the packet's arrival and its playback, negative if it's late
+	 */
+	public void update(final long frameTime, final long arrivalNanos, final long slackFrames) {
+		/* Only packets following the latest one in frame time contribute to the jitter.
+		 * Older packets are reordered or retransmitted, and thus late by design
+		 */
+		if (frameTime > lastFrameTime) {
+			if (lastFrameTime != Long.MIN_VALUE) {
+				final double arrivalFrames = (arrivalNanos - lastArrivalNanos) * 1e-9 * sampleRate;
+				final double transitDifference = arrivalFrames - (frameTime - lastFrameTime);
+				jitterFrames += (Math.abs(transitDifference) - jitterFrames) / 16.0;
+				jitterSeconds = jitterFrames / sampleRate;
+			}
+			lastFrameTime = frameTime;
+			lastArrivalNanos = arrivalNanos;
+		}
+
+		++windowPackets;
+		if (slackFrames < 0)
+			++windowLatePackets;
+		windowMinSlackFrames = Math.min(windowMinSlackFrames, slackFrames);
+
+		if (windowPackets >= WINDOW_PACKETS)
+			adapt();
+	}
+
+	/**
+	 * Adjusts the delay at the end of a window
+	 */
+	private void adapt() {
+		final long requiredSlackFrames = (long)Math.ceil(JITTER_MARGIN * jitterFrames) + packetSizeFrames;
+
+		long delay = delayFrames;
+		if ((windowLatePackets > 0) || (windowMinSlackFrames < requiredSlackFrames))
+			delay += Math.max(packetSizeFrames, requiredSlackFrames - windowMinSlackFrames);
+		else if (windowMinSlackFrames > requiredSlackFrames + SHRINK_HYSTERESIS_PACKETS * packetSizeFrames)
+			delay -= packetSizeFrames;
+		delayFrames = clamp(delay);
+
+		latePacketRate += LATE_RATE_WEIGHT * ((double)windowLatePackets / windowPackets - latePacketRate);
+
+		windowPackets = 0;
+		windowLatePackets = 0;
+		windowMinSlackFrames = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the interarrival jitter in seconds
+	 */
+	public double getJitter() {
+		return jitterSeconds;
+	}
+
+	/**
+	 * Returns the average fraction of packets which arrived after their playback time
+	 */
+	public double getLatePacketRate() {
+		return latePacketRate;
+	}
+
+	/**
+	 * Returns the playout delay in frames
+	 */
+	public long getDelayFrames() {
+		return delayFrames;
+	}
+
+	private long clamp(final long delay) {
+		return Math.max(minDelayFrames, Math.min(maxDelayFrames, delay));
+	}
+}
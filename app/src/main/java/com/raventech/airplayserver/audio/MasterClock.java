@@ -0,0 +1,70 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Timeline shared by all {@link AudioOutputQueue}s of the process.
+ * <p>
+ * Each queue maps its line time onto NTP time, and each session's
+ * timing handler relates the source's clock to that NTP time. If every
+ * queue derived its NTP time from its own sink, sessions playing the
+ * same content would drift apart with their sinks. The queues therefore
+ * discipline their NTP time to this clock, which follows the host's
+ * monotonic clock and is anchored to the wall clock once. Frames due at
+ * the same NTP time are then played at the same instant by all sinks.
+ */
+public final class MasterClock {
+	/**
+	 * The clock used by all queues
+	 */
+	public static final MasterClock SHARED = new MasterClock();
+
+	/**
+	 * Host time at which the clock was anchored, see {@link System#nanoTime()}
+	 */
+	private final long anchorNanos;
+
+	/**
+	 * NTP time corresponding to {@link #anchorNanos}
+	 */
+	private final long anchorNtpTime;
+
+	private MasterClock() {
+		anchorNanos = System.nanoTime();
+		anchorNtpTime = FixedPointTime.fromUnixMillis(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the current time
+	 *
+	 * @return NTP time, see {@link FixedPointTime}
+	 */
+	public long getNowNtpTime() {
+		return convertNanosToNtpTime(System.nanoTime());
+	}
+
+	/**
+	 * Converts a host time to NTP time
+	 *
+	 * @param nanos host time, see {@link System#nanoTime()}
+	 * @return NTP time, see {@link FixedPointTime}
+	 */
+	public long convertNanosToNtpTime(final long nanos) {
+		return anchorNtpTime + FixedPointTime.fromNanos(nanos - anchorNanos);
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.util.Arrays;
+
+/**
+ * {@link AudioSink} which captures all samples in memory.
+ * <p>
+ * Paced like a real-time audio device, and thus suitable to
+ * inspect the output of an {@link AudioOutputQueue} off-device.
+ */
+public class MemoryAudioSink extends SimulatedClockAudioSink {
+	/**
+	 * Captured samples
+	 */
+	private short[] samples = new short[0];
+
+	/**
+	 * Number of valid entries in {@link #samples}
+	 */
+	private int samplesLength = 0;
+
+	public MemoryAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+		super(streamInfoProvider, bufferSizeInBytes);
+	}
+
+	@Override
+	protected synchronized void consume(final short[] samples, final int off, final int len) {
+		if (samplesLength + len > this.samples.length)
+			this.samples = Arrays.copyOf(this.samples, Math.max(samplesLength + len, 2 * this.samples.length));
+
+		System.arraycopy(samples, off, this.samples, samplesLength, len);
+		samplesLength += len;
+	}
+
+	/**
+	 * Returns the number of frames captured so far
+	 *
+	 * @return captured frames
+	 */
+	public synchronized long getCapturedFrames() {
+		return samplesLength / channels;
+	}
+
+	/**
+	 * Returns a copy of the captured samples
+	 *
+	 * @return signed 16-bit PCM samples
+	 */
+	public synchronized short[] getCapturedSamples() {
+		return Arrays.copyOf(samples, samplesLength);
+	}
+
+	/**
+	 * Discards the captured samples
+	 */
+	public synchronized void clearCapturedSamples() {
+		samplesLength = 0;
+	}
+}
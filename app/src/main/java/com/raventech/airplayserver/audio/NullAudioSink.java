@@ -0,0 +1,52 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSink} which discards all samples, but otherwise
+ * behaves like a real-time audio device. Used to run the
+ * receiver headless.
+ */
+public class NullAudioSink extends SimulatedClockAudioSink {
+	/**
+	 * Creates {@link NullAudioSink}s
+	 */
+	public static final AudioSinkFactory FACTORY = new AudioSinkFactory() {
+		@Override
+		public AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+			return new NullAudioSink(streamInfoProvider, bufferSizeInBytes);
+		}
+	};
+
+	public NullAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+		super(streamInfoProvider, bufferSizeInBytes);
+	}
+
+	@Override
+	protected void consume(final short[] samples, final int off, final int len) {
+		/* Discard */
+	}
+
+	@Override
+	protected void consume(final ByteBuffer samples) {
+		/* Discard without converting */
+		samples.position(samples.limit());
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+/**
+ * Tunables of the {@link AudioOutputQueue}'s playout.
+ * <p>
+ * Each RTSP connection takes a copy of the server's settings, which
+ * applies to the streams announced on that connection. Each queue reads
+ * the settings once when it's created, so changes only affect streams
+ * set up afterwards.
+ */
+public class PlayoutSettings {
+	/**
+	 * Default time without audio data after which the output is paused
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Latency target which defers to the latency chosen by the source
+	 */
+	public static final long SOURCE_LATENCY = 0;
+
+	/**
+	 * Default bounds of the adaptive playout delay
+	 */
+	public static final long DEFAULT_MIN_PLAYOUT_DELAY_MILLIS = 0;
+	public static final long DEFAULT_MAX_PLAYOUT_DELAY_MILLIS = 500;
+
+	/**
+	 * Queue size limit which leaves the size to the maximal queue length
+	 */
+	public static final long UNLIMITED_QUEUED_BYTES = Long.MAX_VALUE;
+
+	/**
+	 * Batch duration which disables write batching
+	 */
+	public static final long NO_BATCHING = 0;
+
+	/**
+	 * Time without audio data after which the output is paused
+	 */
+	private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+	/**
+	 * Time between the source sending a frame and the frame being played,
+	 * or {@link #SOURCE_LATENCY}
+	 */
+	private long latencyMillis = SOURCE_LATENCY;
+
+	/**
+	 * Bounds of the delay added to the latency to absorb network jitter
+	 */
+	private long minPlayoutDelayMillis = DEFAULT_MIN_PLAYOUT_DELAY_MILLIS;
+	private long maxPlayoutDelayMillis = DEFAULT_MAX_PLAYOUT_DELAY_MILLIS;
+
+	/**
+	 * Limit of the sample data queued by a stream, in bytes
+	 */
+	private long maxQueuedBytes = UNLIMITED_QUEUED_BYTES;
+
+	/**
+	 * Duration of the audio written to the output device at once
+	 */
+	private long batchMillis = NO_BATCHING;
+
+	/**
+	 * Whether packets are queued encoded and decoded just before playback
+	 */
+	private boolean deferredDecoding = false;
+
+	/**
+	 * Output latency not reported by the sink
+	 */
+	private long outputLatencyMicros = 0;
+
+	public PlayoutSettings() {
+	}
+
+	/**
+	 * Creates a copy of the given settings
+	 *
+	 * @param settings settings to copy
+	 */
+	public PlayoutSettings(final PlayoutSettings settings) {
+		synchronized(settings) {
+			idleTimeoutMillis = settings.idleTimeoutMillis;
+			latencyMillis = settings.latencyMillis;
+			minPlayoutDelayMillis = settings.minPlayoutDelayMillis;
+			maxPlayoutDelayMillis = settings.maxPlayoutDelayMillis;
+			maxQueuedBytes = settings.maxQueuedBytes;
+			batchMillis = settings.batchMillis;
+			deferredDecoding = settings.deferredDecoding;
+			outputLatencyMicros = settings.outputLatencyMicros;
+		}
+	}
+
+	public synchronized long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * Sets the time without audio data after which the output is paused.
+	 * While paused, the playout thread sleeps until new data arrives.
+	 *
+	 * @param idleTimeoutMillis idle timeout in milliseconds
+	 */
+	public synchronized void setIdleTimeoutMillis(final long idleTimeoutMillis) {
+		if (idleTimeoutMillis < 0)
+			throw new IllegalArgumentException("idleTimeoutMillis must not be negative");
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public synchronized long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * Returns the latency target in frames at the given sample rate,
+	 * or {@link #SOURCE_LATENCY}
+	 *
+	 * @param sampleRate sample rate
+	 * @return latency target in frames
+	 */
+	public synchronized long getLatencyFrames(final double sampleRate) {
+		return Math.round(latencyMillis * sampleRate / 1000.0);
+	}
+
+	/**
+	 * Sets the time between the source sending a frame and the frame being played.
+	 * The target is advertised to the source, overrides the latency the source
+	 * announces in its sync packets, and bounds the queue and output buffer sizes.
+	 * Low targets thus trade robustness against network jitter for latency.
+	 * {@link #SOURCE_LATENCY} defers to the source's choice.
+	 *
+	 * @param latencyMillis latency target in milliseconds
+	 */
+	public synchronized void setLatencyMillis(final long latencyMillis) {
+		if (latencyMillis < 0)
+			throw new IllegalArgumentException("latencyMillis must not be negative");
+		this.latencyMillis = latencyMillis;
+	}
+
+	public synchronized long getMinPlayoutDelayMillis() {
+		return minPlayoutDelayMillis;
+	}
+
+	public synchronized long getMaxPlayoutDelayMillis() {
+		return maxPlayoutDelayMillis;
+	}
+
+	/**
+	 * Sets the bounds of the adaptive playout delay. The delay is added to the
+	 * latency, and follows the network jitter measured during playback: it grows
+	 * when packets arrive late and shrinks while they arrive well in time.
+	 * A negative minimum allows playback ahead of the latency on clean networks,
+	 * equal bounds fix the delay. With a latency target, the maximum is limited
+	 * to a fraction of the target, since the source only knows the target.
+	 *
+	 * @param minPlayoutDelayMillis smallest delay in milliseconds
+	 * @param maxPlayoutDelayMillis largest delay in milliseconds
+	 */
+	public synchronized void setPlayoutDelayBoundsMillis(final long minPlayoutDelayMillis, final long maxPlayoutDelayMillis) {
+		if (minPlayoutDelayMillis > maxPlayoutDelayMillis)
+			throw new IllegalArgumentException("minPlayoutDelayMillis must not exceed maxPlayoutDelayMillis");
+		this.minPlayoutDelayMillis = minPlayoutDelayMillis;
+		this.maxPlayoutDelayMillis = maxPlayoutDelayMillis;
+	}
+
+	public synchronized long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Sets the limit of the sample data a stream may queue. The queue's memory is
+	 * allocated up front and sized by this limit. Packets which would exceed it
+	 * evict the queued packets farthest in the future, or are refused if they're
+	 * the farthest themselves.
+	 *
+	 * @param maxQueuedBytes limit in bytes, or {@link #UNLIMITED_QUEUED_BYTES}
+	 */
+	public synchronized void setMaxQueuedBytes(final long maxQueuedBytes) {
+		if (maxQueuedBytes <= 0)
+			throw new IllegalArgumentException("maxQueuedBytes must be greater than zero");
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public synchronized long getBatchMillis() {
+		return batchMillis;
+	}
+
+	/**
+	 * Sets the duration of the audio written to the output device at once.
+	 * Instead of writing every packet as soon as it's due, the playout thread
+	 * collects packets into batches, writes them without blocking, and sleeps
+	 * until the device has room for the next batch. The device's buffer grows
+	 * to hold several batches, which adds up to that much latency but wakes the
+	 * device and the playout thread far less often. With a latency target, the
+	 * batches are limited to a fraction of it.
+	 *
+	 * @param batchMillis batch duration in milliseconds, or {@link #NO_BATCHING}
+	 */
+	public synchronized void setBatchMillis(final long batchMillis) {
+		if (batchMillis < 0)
+			throw new IllegalArgumentException("batchMillis must not be negative");
+		this.batchMillis = batchMillis;
+	}
+
+	public synchronized boolean isDeferredDecoding() {
+		return deferredDecoding;
+	}
+
+	/**
+	 * Sets whether packets are queued as they arrive, i.e. compressed and possibly
+	 * still encrypted, and decoded by the playout thread just before playback.
+	 * Packets which are flushed, evicted or dropped as late are then never decoded,
+	 * and the compressed packets take about half the memory of their PCM. The
+	 * {@link #setMaxQueuedBytes(long) queue size limit} then applies to the
+	 * compressed data. Uncompressed streams are always queued as PCM.
+	 *
+	 * @param deferredDecoding true to decode packets just before playback
+	 */
+	public synchronized void setDeferredDecoding(final boolean deferredDecoding) {
+		this.deferredDecoding = deferredDecoding;
+	}
+
+	public synchronized long getOutputLatencyMicros() {
+		return outputLatencyMicros;
+	}
+
+	/**
+	 * Sets the output latency the sink doesn't report, as calibrated for the
+	 * receiver's output (DAC, amplifier, speakers, ...). Sinks which can measure
+	 * their presentation latency report it themselves, and this is added on top.
+	 * For other sinks, this is the time between a frame passing the sink's playback
+	 * position and the frame being heard. Frames are played that much earlier, so
+	 * that receivers with different outputs playing the same content stay aligned.
+	 *
+	 * @param outputLatencyMicros calibrated output latency in microseconds
+	 */
+	public synchronized void setOutputLatencyMicros(final long outputLatencyMicros) {
+		if (outputLatencyMicros < 0)
+			throw new IllegalArgumentException("outputLatencyMicros must not be negative");
+		this.outputLatencyMicros = outputLatencyMicros;
+	}
+}
@@ -17,8 +17,22 @@
 
 package com.raventech.airplayserver.audio;
 
+/**
+ * Random access to the samples of a block of audio, indexed by channel
+ * and sample (i.e. frame) number. Sample values are floats in [-1, 1).
+ */
 public interface SampleIndexedAccessor {
 	SampleDimensions getDimensions();
+
+	/**
+	 * Returns the number of channels, like {@link #getDimensions()} but without allocating
+	 */
+	int getChannels();
+
+	/**
+	 * Returns the number of samples per channel, like {@link #getDimensions()} but without allocating
+	 */
+	int getSamples();
 	
 	SampleIndexedAccessor slice(SampleOffset offset, SampleDimensions dimensions);
 
@@ -0,0 +1,271 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Base class for sinks without an audio device.
+ * <p>
+ * Simulates a device which consumes frames at the stream's sample rate
+ * from a buffer of a fixed size. Writes block while that buffer is full,
+ * and the playback position stalls if the buffer runs empty, just like
+ * a real device would underrun.
+ */
+public abstract class SimulatedClockAudioSink implements AudioSink {
+	/**
+	 * Sample rate
+	 */
+	protected final int sampleRate;
+
+	/**
+	 * Bytes per frame
+	 */
+	protected final int bytesPerFrame;
+
+	/**
+	 * Samples per frame, i.e. the number of channels
+	 */
+	protected final int channels;
+
+	/**
+	 * Simulated device buffer size in frames
+	 */
+	private final long bufferSizeFrames;
+
+	/**
+	 * Frames written so far
+	 */
+	private long framesWritten = 0;
+
+	/**
+	 * Frames played before the last underrun
+	 */
+	private long framesPlayedBase = 0;
+
+	/**
+	 * Time at which the device started to play frames
+	 * {@link #framesPlayedBase} onward
+	 */
+	private long playingSinceNanos = 0;
+
+	private volatile boolean playing = false;
+
+	private volatile float volume = MAX_VOLUME;
+
+	/**
+	 * Samples of the direct buffer being written, re-used across writes
+	 */
+	private short[] conversionBuffer = new short[0];
+
+	protected SimulatedClockAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+		sampleRate = streamInfoProvider.getSampleRate();
+		bytesPerFrame = streamInfoProvider.getChannels() * streamInfoProvider.getSampleSizeInBits() / 8;
+		channels = streamInfoProvider.getChannels();
+		bufferSizeFrames = Math.max(1, bufferSizeInBytes / bytesPerFrame);
+	}
+
+	@Override
+	public synchronized void start() {
+		playingSinceNanos = System.nanoTime();
+		playing = true;
+	}
+
+	@Override
+	public synchronized void pause() {
+		framesPlayedBase = getPlaybackPosition();
+		playing = false;
+		notifyAll();
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	@Override
+	public synchronized void flush() {
+		framesWritten = 0;
+		framesPlayedBase = 0;
+	}
+
+	@Override
+	public int write(final short[] samples, final int off, final int len) {
+		if ( ! awaitRoom(len / channels))
+			return 0;
+
+		consume(samples, off, len);
+		return len;
+	}
+
+	@Override
+	public int write(final ByteBuffer samples) {
+		final int len = samples.remaining() / 2;
+		if ( ! awaitRoom(len / channels))
+			return 0;
+
+		consume(samples);
+		return len;
+	}
+
+	@Override
+	public int writeNonBlocking(final ByteBuffer samples) {
+		final long frames;
+		synchronized(this) {
+			final long roomFrames = playing ? bufferSizeFrames - (framesWritten - getPlaybackPosition()) : Long.MAX_VALUE;
+			frames = Math.max(0, Math.min(roomFrames, samples.remaining() / 2 / channels));
+			if (frames == 0)
+				return 0;
+			accountFrames(frames);
+		}
+
+		/* Consume only the part which fit into the buffer */
+		final int len = (int)frames * channels;
+		final int limit = samples.limit();
+		samples.limit(samples.position() + 2 * len);
+		consume(samples);
+		samples.limit(limit);
+		return len;
+	}
+
+	/**
+	 * Blocks until the simulated buffer has room for the given number of frames,
+	 * and accounts for them.
+	 *
+	 * @return false if interrupted
+	 */
+	private boolean awaitRoom(final long frames) {
+		synchronized(this) {
+			while (playing) {
+				final long bufferedFrames = framesWritten - getPlaybackPosition();
+				final long excessFrames = bufferedFrames + frames - bufferSizeFrames;
+				if (excessFrames <= 0)
+					break;
+
+				try {
+					final long waitNanos = excessFrames * 1000000000L / sampleRate;
+					wait(Math.max(1, waitNanos / 1000000L), (int)(waitNanos % 1000000L));
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+
+			accountFrames(frames);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds frames to the simulated buffer
+	 */
+	private synchronized void accountFrames(final long frames) {
+		/* Restart the clock if the buffer ran empty */
+		final long position = getPlaybackPosition();
+		if (position >= framesWritten) {
+			framesPlayedBase = framesWritten;
+			playingSinceNanos = System.nanoTime();
+		}
+
+		framesWritten += frames;
+	}
+
+	@Override
+	public synchronized long getPlaybackPosition() {
+		if ( ! playing)
+			return framesPlayedBase;
+
+		final long elapsedFrames = ((System.nanoTime() - playingSinceNanos) / 1000L) * sampleRate / 1000000L;
+		return Math.min(framesWritten, framesPlayedBase + elapsedFrames);
+	}
+
+	/**
+	 * Returns the time at which the given frame passes the playback position,
+	 * provided the device plays without underrun until then
+	 *
+	 * @param frame frame index, i.e. playback position
+	 * @return time as returned by {@link System#nanoTime()}
+	 */
+	public synchronized long getPlaybackNanos(final long frame) {
+		return playingSinceNanos + (frame - framesPlayedBase) * 1000000000L / sampleRate;
+	}
+
+	/**
+	 * Frames are presented as soon as they pass the playback position
+	 */
+	@Override
+	public long getPresentationLatencyNanos() {
+		return 0;
+	}
+
+	@Override
+	public void setVolume(final float volume) {
+		this.volume = Math.max(MIN_VOLUME, Math.min(MAX_VOLUME, volume));
+	}
+
+	/**
+	 * Returns the current output gain
+	 *
+	 * @return linear gain
+	 */
+	public float getVolume() {
+		return volume;
+	}
+
+	@Override
+	public synchronized void close() {
+		framesPlayedBase = getPlaybackPosition();
+		playing = false;
+		notifyAll();
+	}
+
+	/**
+	 * Called for every write, after the simulated buffer has accepted the samples.
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset, in samples
+	 * @param len sample data length, in samples
+	 */
+	protected abstract void consume(short[] samples, int off, int len);
+
+	/**
+	 * Called for every write of a buffer, after the simulated buffer has accepted
+	 * the samples. Consumes all remaining samples of the buffer. Converts the
+	 * samples and hands them to {@link #consume(short[], int, int)} by default.
+	 *
+	 * @param samples sample data in native byte order
+	 */
+	protected void consume(final ByteBuffer samples) {
+		final int len = samples.remaining() / 2;
+		if (conversionBuffer.length < len)
+			conversionBuffer = new short[len];
+
+		final int position = samples.position();
+		final boolean nativeOrder = (samples.order() == ByteOrder.nativeOrder());
+		for(int i=0; i < len; ++i) {
+			final short sample = samples.getShort(position + 2 * i);
+			conversionBuffer[i] = nativeOrder ? sample : Short.reverseBytes(sample);
+		}
+		samples.position(position + 2 * len);
+
+		consume(conversionBuffer, 0, len);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link AudioSink} which streams the samples into a WAV file.
+ * <p>
+ * Paced like a real-time audio device. The RIFF header's length
+ * fields are filled in when the sink is closed.
+ */
+public class WavFileAudioSink extends SimulatedClockAudioSink {
+	private static Logger LOG = Logger.getLogger(WavFileAudioSink.class.getName());
+
+	/**
+	 * Size of the RIFF/WAVE header
+	 */
+	private static final int HEADER_LENGTH = 44;
+
+	/**
+	 * Creates a factory which writes one file per stream into the given directory
+	 *
+	 * @param directory target directory
+	 * @return audio sink factory
+	 */
+	public static AudioSinkFactory factory(final File directory) {
+		return new AudioSinkFactory() {
+			@Override
+			public AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) throws IOException {
+				final File file = new File(directory, "airplay-" + System.currentTimeMillis() + ".wav");
+				return new WavFileAudioSink(file, streamInfoProvider, bufferSizeInBytes);
+			}
+		};
+	}
+
+	private final File file;
+
+	private final OutputStream output;
+
+	/**
+	 * Number of sample bytes written to the file
+	 */
+	private long dataLength = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Little endian representation of the samples being written, re-used across writes
+	 */
+	private byte[] conversionBuffer = new byte[0];
+
+	public WavFileAudioSink(final File file, final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) throws IOException {
+		super(streamInfoProvider, bufferSizeInBytes);
+
+		this.file = file;
+		output = new BufferedOutputStream(new FileOutputStream(file));
+
+		/* Write header with zero lengths, it's completed by close() */
+		final byte[] header = new byte[HEADER_LENGTH];
+		putAscii(header, 0, "RIFF");
+		putLeInt(header, 4, 0);
+		putAscii(header, 8, "WAVE");
+		putAscii(header, 12, "fmt ");
+		putLeInt(header, 16, 16);
+		putLeShort(header, 20, 1 /* PCM */);
+		putLeShort(header, 22, streamInfoProvider.getChannels());
+		putLeInt(header, 24, sampleRate);
+		putLeInt(header, 28, sampleRate * bytesPerFrame);
+		putLeShort(header, 32, bytesPerFrame);
+		putLeShort(header, 34, streamInfoProvider.getSampleSizeInBits());
+		putAscii(header, 36, "data");
+		putLeInt(header, 40, 0);
+		output.write(header);
+
+		LOG.info("Writing audio to " + file);
+	}
+
+	@Override
+	protected synchronized void consume(final short[] samples, final int off, final int len) {
+		if (closed)
+			return;
+
+		if (conversionBuffer.length < 2 * len)
+			conversionBuffer = new byte[2 * len];
+		for(int i=0; i < len; ++i)
+			putLeShort(conversionBuffer, 2 * i, samples[off + i]);
+
+		try {
+			output.write(conversionBuffer, 0, 2 * len);
+			dataLength += 2 * len;
+		}
+		catch (final IOException e) {
+			LOG.log(Level.SEVERE, "Failed to write to " + file, e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		super.close();
+
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			output.close();
+
+			/* Complete the header */
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				final byte[] length = new byte[4];
+
+				putLeInt(length, 0, (int)Math.min(0xffffffffL, HEADER_LENGTH - 8 + dataLength));
+				raf.seek(4);
+				raf.write(length);
+
+				putLeInt(length, 0, (int)Math.min(0xffffffffL, dataLength));
+				raf.seek(40);
+				raf.write(length);
+			}
+			finally {
+				raf.close();
+			}
+
+			LOG.info("Wrote " + dataLength + " bytes of audio to " + file);
+		}
+		catch (final IOException e) {
+			LOG.log(Level.SEVERE, "Failed to complete " + file, e);
+		}
+	}
+
+	private static void putAscii(final byte[] buffer, final int index, final String value) {
+		for(int i=0; i < value.length(); ++i)
+			buffer[index + i] = (byte)value.charAt(i);
+	}
+
+	private static void putLeShort(final byte[] buffer, final int index, final int value) {
+		buffer[index + 0] = (byte)(value & 0xff);
+		buffer[index + 1] = (byte)((value >> 8) & 0xff);
+	}
+
+	private static void putLeInt(final byte[] buffer, final int index, final int value) {
+		buffer[index + 0] = (byte)(value & 0xff);
+		buffer[index + 1] = (byte)((value >> 8) & 0xff);
+		buffer[index + 2] = (byte)((value >> 16) & 0xff);
+		buffer[index + 3] = (byte)((value >> 24) & 0xff);
+	}
+}
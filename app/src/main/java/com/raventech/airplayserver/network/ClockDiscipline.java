@@ -0,0 +1,368 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network;
+
+import com.raventech.airplayserver.audio.FixedPointTime;
+
+/**
+ * Estimates the offset and the relative frequency of a remote clock
+ * from a series of NTP-style time exchanges.
+ * <p>
+ * Each exchange yields an offset sample and the round-trip delay it was
+ * measured with. Samples are passed through a minimum-delay filter (the
+ * sample with the smallest delay among the most recent ones is the most
+ * symmetric and thus the most accurate), spikes are suppressed, and the
+ * survivors drive a combined phase and frequency locked loop.
+ * <p>
+ * Time stamps and offsets are 32.32 fixed-point NTP times (see {@link FixedPointTime}),
+ * so that no precision is lost on absolute times. Only small quantities like
+ * the loop's error, the jitter and the frequency are doubles. Offsets are
+ * remote time minus local time.
+ */
+public class ClockDiscipline {
+	/**
+	 * Number of recent samples the minimum-delay filter chooses from
+	 */
+	private static final int FILTER_LENGTH = 8;
+
+	/**
+	 * Number of loop updates before the clock is considered locked
+	 */
+	private static final int LOCK_UPDATES = 4;
+
+	/**
+	 * Jitter below which the clock is considered locked
+	 */
+	private static final double LOCK_JITTER = 1e-3;
+
+	/**
+	 * Smallest phase gain of the loop. The loop starts out averaging
+	 * all samples equally, and settles at this gain
+	 */
+	private static final double MIN_PHASE_GAIN = 0.125;
+
+	/**
+	 * Largest frequency offset we believe in, i.e. 500 ppm
+	 */
+	private static final double MAX_FREQUENCY = 500e-6;
+
+	/**
+	 * Samples whose error exceeds this multiple of the jitter are spikes
+	 */
+	private static final double SPIKE_THRESHOLD = 4.0;
+
+	/**
+	 * Jitter floor used by the spike detector
+	 */
+	private static final double SPIKE_MIN_JITTER = 0.5e-3;
+
+	/**
+	 * Consecutive spikes after which we accept that the offset really moved
+	 */
+	private static final int SPIKE_LIMIT = 3;
+
+	/**
+	 * Largest error of the first sample after seeding for which the seed is kept
+	 */
+	private static final double SEED_MAX_ERROR = 5e-3;
+
+	/**
+	 * Converged state of a discipline, used to seed a new discipline
+	 * for the same remote clock
+	 */
+	public static final class Snapshot {
+		final long offset;
+		final long offsetTime;
+		final double frequency;
+		final double jitter;
+		final double roundTripTime;
+
+		Snapshot(final long offset, final long offsetTime, final double frequency, final double jitter, final double roundTripTime) {
+			this.offset = offset;
+			this.offsetTime = offsetTime;
+			this.frequency = frequency;
+			this.jitter = jitter;
+			this.roundTripTime = roundTripTime;
+		}
+
+		@Override
+		public String toString() {
+			return "offset " + FixedPointTime.toSeconds(offset) + " frequency " + frequency + " jitter " + jitter + " rtt " + roundTripTime;
+		}
+	}
+
+	/**
+	 * Minimum-delay filter, a ring of the most recent samples
+	 */
+	private final long[] filterOffsets = new long[FILTER_LENGTH];
+	private final long[] filterDelays = new long[FILTER_LENGTH];
+	private final long[] filterTimes = new long[FILTER_LENGTH];
+	private int filterCount = 0;
+	private int filterNext = 0;
+
+	/**
+	 * Local time of the last sample fed to the loop, if {@link #lastUsedTimeValid}
+	 */
+	private long lastUsedTime = 0;
+	private boolean lastUsedTimeValid = false;
+
+	/**
+	 * Number of loop updates
+	 */
+	private int updates = 0;
+
+	/**
+	 * Offset estimate at {@link #offsetTime}
+	 */
+	private long offset = 0;
+
+	/**
+	 * Local time of the offset estimate
+	 */
+	private long offsetTime = 0;
+
+	/**
+	 * Relative frequency, i.e. the offset's drift per second
+	 */
+	private double frequency = 0;
+
+	/**
+	 * RMS of the loop's prediction error
+	 */
+	private double jitter = 0;
+
+	/**
+	 * Round-trip delay of the last sample fed to the loop, in seconds
+	 */
+	private double roundTripTime = Double.NaN;
+
+	/**
+	 * Number of consecutive spikes
+	 */
+	private int spikes = 0;
+
+	/**
+	 * True while the estimate stems from a seed not yet confirmed by a sample
+	 */
+	private boolean seeded = false;
+
+	/**
+	 * Feeds the time stamps of one exchange into the discipline
+	 *
+	 * @param localSendTime local time at which the request was sent
+	 * @param remoteReceiveTime remote time at which the request was received
+	 * @param remoteSendTime remote time at which the response was sent
+	 * @param localReceiveTime local time at which the response was received
+	 * @return true if the exchange updated the estimate
+	 */
+	public synchronized boolean update(final long localSendTime, final long remoteReceiveTime, final long remoteSendTime, final long localReceiveTime) {
+		final long sampleDelay = Math.max(0L, (localReceiveTime - localSendTime) - (remoteSendTime - remoteReceiveTime));
+		final long sampleOffset = (remoteReceiveTime - localSendTime) / 2 + (remoteSendTime - localReceiveTime) / 2;
+		final long sampleTime = localSendTime + (localReceiveTime - localSendTime) / 2;
+
+		/* Add sample to the filter */
+		filterOffsets[filterNext] = sampleOffset;
+		filterDelays[filterNext] = sampleDelay;
+		filterTimes[filterNext] = sampleTime;
+		filterNext = (filterNext + 1) % FILTER_LENGTH;
+		filterCount = Math.min(filterCount + 1, FILTER_LENGTH);
+
+		/* Pick the sample with the smallest delay. It's used only if it's newer
+		 * than the last sample we used, otherwise we'd feed it to the loop twice.
+		 * NTP times are compared by their difference, they're negative as signed longs
+		 */
+		int best = -1;
+		for(int i=0; i < filterCount; ++i) {
+			if ((best < 0) || (filterDelays[i] < filterDelays[best]))
+				best = i;
+		}
+		if (lastUsedTimeValid && (filterTimes[best] - lastUsedTime <= 0))
+			return false;
+		lastUsedTime = filterTimes[best];
+		lastUsedTimeValid = true;
+
+		return discipline(filterOffsets[best], filterDelays[best], filterTimes[best]);
+	}
+
+	/**
+	 * Runs one iteration of the phase and frequency locked loop
+	 */
+	private boolean discipline(final long sampleOffset, final long sampleDelay, final long sampleTime) {
+		if (updates == 0) {
+			/* First sample, step the clock */
+			offset = sampleOffset;
+			offsetTime = sampleTime;
+			roundTripTime = FixedPointTime.toSeconds(sampleDelay);
+			updates = 1;
+			return true;
+		}
+
+		final double interval = FixedPointTime.toSeconds(sampleTime - offsetTime);
+		final long predicted = offset + FixedPointTime.fromSeconds(frequency * interval);
+		final double error = FixedPointTime.toSeconds(sampleOffset - predicted);
+
+		/* The first sample confirms the seed, or shows that the remote clock
+		 * was reset in the meantime. Start from scratch then
+		 */
+		if (seeded) {
+			seeded = false;
+			if (Math.abs(error) > SEED_MAX_ERROR) {
+				updates = 0;
+				frequency = 0;
+				jitter = 0;
+				return discipline(sampleOffset, sampleDelay, sampleTime);
+			}
+		}
+
+		/* Suppress isolated spikes once the loop has settled */
+		if ((updates >= LOCK_UPDATES) && (Math.abs(error) > SPIKE_THRESHOLD * Math.max(jitter, SPIKE_MIN_JITTER)) && (spikes < SPIKE_LIMIT)) {
+			++spikes;
+			return false;
+		}
+		spikes = 0;
+
+		/* Phase gain starts at 1/2, i.e. plain averaging, and decays to its minimum.
+		 * The frequency gain keeps the loop critically damped
+		 */
+		final double phaseGain = Math.max(1.0 / (updates + 1), MIN_PHASE_GAIN);
+		final double frequencyGain = phaseGain * phaseGain / (2.0 - phaseGain);
+
+		offset = predicted + FixedPointTime.fromSeconds(phaseGain * error);
+		offsetTime = sampleTime;
+		if (interval > 0)
+			frequency = Math.max(-MAX_FREQUENCY, Math.min(MAX_FREQUENCY, frequency + frequencyGain * error / interval));
+
+		jitter = Math.sqrt(jitter * jitter + 0.25 * (error * error - jitter * jitter));
+		roundTripTime = FixedPointTime.toSeconds(sampleDelay);
+		++updates;
+
+		return true;
+	}
+
+	/**
+	 * Returns the estimate once it has settled, or null
+	 *
+	 * @return snapshot of the estimate, or null unless locked
+	 */
+	public synchronized Snapshot getSnapshot() {
+		if ( ! isLocked() || seeded )
+			return null;
+		return new Snapshot(offset, offsetTime, frequency, jitter, roundTripTime);
+	}
+
+	/**
+	 * Seeds the estimate with the converged state of an earlier discipline of the
+	 * same remote clock, so that it's locked right away. The offset is extrapolated
+	 * with the snapshot's frequency, which requires the local time to be continuous
+	 * between the two disciplines. The first sample either confirms the seed, or
+	 * discards it if it deviates too far. Ignored once samples were processed.
+	 *
+	 * @param snapshot state of the earlier discipline
+	 */
+	public synchronized void seed(final Snapshot snapshot) {
+		if (updates > 0)
+			return;
+
+		offset = snapshot.offset;
+		offsetTime = snapshot.offsetTime;
+		frequency = snapshot.frequency;
+		jitter = snapshot.jitter;
+		roundTripTime = snapshot.roundTripTime;
+		updates = LOCK_UPDATES;
+		seeded = true;
+	}
+
+	/**
+	 * Returns true until the first exchange was processed, or the discipline was seeded
+	 */
+	public synchronized boolean isEmpty() {
+		return updates == 0;
+	}
+
+	/**
+	 * Returns true once the estimate has settled
+	 */
+	public synchronized boolean isLocked() {
+		return (updates >= LOCK_UPDATES) && (jitter <= LOCK_JITTER);
+	}
+
+	/**
+	 * Returns a measure of the estimate's quality, between 0 (no estimate)
+	 * and 1 (settled, no jitter).
+	 *
+	 * @return confidence
+	 */
+	public synchronized double getConfidence() {
+		return Math.min(1.0, (double)updates / LOCK_UPDATES) * LOCK_JITTER / (LOCK_JITTER + jitter);
+	}
+
+	/**
+	 * Returns the offset (remote minus local time) at the given local time
+	 *
+	 * @param localTime local time
+	 * @return offset
+	 */
+	public synchronized long getOffset(final long localTime) {
+		return offset + FixedPointTime.fromSeconds(frequency * FixedPointTime.toSeconds(localTime - offsetTime));
+	}
+
+	/**
+	 * Converts remote time to local time
+	 *
+	 * @param remoteTime remote time
+	 * @return local time
+	 */
+	public synchronized long convertRemoteToLocal(final long remoteTime) {
+		return remoteTime - getOffset(remoteTime - offset);
+	}
+
+	/**
+	 * Returns the relative frequency of the remote clock, i.e.
+	 * the seconds the remote clock gains per local second
+	 */
+	public synchronized double getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * Returns the RMS error of the recent offset samples
+	 */
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Returns the round-trip time of the last sample used in seconds, or NaN
+	 */
+	public synchronized double getRoundTripTime() {
+		return roundTripTime;
+	}
+
+	/**
+	 * Returns an upper bound of the offset estimate's error in seconds. The
+	 * exchange's asymmetry may contribute up to half its round-trip time
+	 */
+	public synchronized double getErrorBound() {
+		return isEmpty() ? Double.POSITIVE_INFINITY : jitter + 0.5 * roundTripTime;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "offset " + FixedPointTime.toSeconds(offset) + " frequency " + frequency + " jitter " + jitter + " rtt " + roundTripTime + " updates " + updates + (isLocked() ? " locked" : "") + (seeded ? " seeded" : "");
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.raop;
+
+import java.net.InetAddress;
+import java.util.Map;
+
+import com.raventech.airplayserver.network.ClockDiscipline;
+
+/**
+ * Remembers the converged clock and network state of recent senders.
+ * <p>
+ * A new session otherwise starts without any knowledge of the sender's clock,
+ * and applies the first sync packets uncorrected until enough timing exchanges
+ * have accumulated. Since all sessions share the same local timeline, the clock
+ * offset and frequency of a sender remain valid across its sessions. Sessions
+ * of a returning sender are therefore seeded with the state its last session
+ * ended with, and lock right away.
+ * <p>
+ * Senders are identified by their address plus their DACP-ID header, or their
+ * Active-Remote header if they don't send a DACP-ID.
+ */
+public class RaopClientStateCache {
+	/**
+	 * Default age after which a state is no longer used
+	 */
+	public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000L;
+
+	/**
+	 * Number of senders remembered
+	 */
+	private static final int MAX_CLIENTS = 32;
+
+	/**
+	 * State of a sender at the end of its last session
+	 */
+	public static final class ClientState {
+		/**
+		 * Estimate of the sender's clock, which also provides the round-trip
+		 * time the retransmit requests are timed with
+		 */
+		public final ClockDiscipline.Snapshot clock;
+
+		/**
+		 * Network statistics of the audio packets, see
+		 * {@link com.raventech.airplayserver.audio.AudioOutputQueue#seedPlayoutStatistics(double, double, double)}
+		 */
+		public final double jitter;
+		public final double latePacketRate;
+		public final double playoutDelay;
+
+		/**
+		 * Time the state was stored, see {@link System#nanoTime()}
+		 */
+		final long storedNanos = System.nanoTime();
+
+		public ClientState(final ClockDiscipline.Snapshot clock, final double jitter, final double latePacketRate, final double playoutDelay) {
+			this.clock = clock;
+			this.jitter = jitter;
+			this.latePacketRate = latePacketRate;
+			this.playoutDelay = playoutDelay;
+		}
+
+		@Override
+		public String toString() {
+			return "clock " + clock + ", jitter " + jitter + " late packets " + latePacketRate + " playout delay " + playoutDelay;
+		}
+	}
+
+	/**
+	 * States by sender, least recently used first
+	 */
+	private final Map<String, ClientState> states = new java.util.LinkedHashMap<String, ClientState>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, ClientState> eldest) {
+			return size() > MAX_CLIENTS;
+		}
+	};
+
+	private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+	/**
+	 * Returns the key identifying a sender
+	 *
+	 * @param address sender's address
+	 * @param dacpId value of the DACP-ID header, or null
+	 * @param activeRemote value of the Active-Remote header, or null
+	 * @return key, or null if the sender can't be identified
+	 */
+	public static String getClientKey(final InetAddress address, final String dacpId, final String activeRemote) {
+		if (dacpId != null)
+			return address.getHostAddress() + "/" + dacpId;
+		else if (activeRemote != null)
+			return address.getHostAddress() + "/" + activeRemote;
+		else
+			return null;
+	}
+
+	public synchronized long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * Sets the age after which a sender's state is no longer used. The sender's
+	 * clock drifts from the extrapolated estimate over time, and the network
+	 * conditions change
+	 *
+	 * @param maxAgeMillis maximal age in milliseconds
+	 */
+	public synchronized void setMaxAgeMillis(final long maxAgeMillis) {
+		if (maxAgeMillis < 0)
+			throw new IllegalArgumentException("maxAgeMillis must not be negative");
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Stores the state of a sender's session
+	 *
+	 * @param clientKey sender's key, see {@link #getClientKey(InetAddress, String, String)}
+	 * @param state sender's state
+	 */
+	public synchronized void put(final String clientKey, final ClientState state) {
+		states.put(clientKey, state);
+	}
+
+	/**
+	 * Returns the state a sender's last session ended with
+	 *
+	 * @param clientKey sender's key, see {@link #getClientKey(InetAddress, String, String)}
+	 * @return sender's state, or null if unknown or too old
+	 */
+	public synchronized ClientState get(final String clientKey) {
+		final ClientState state = states.get(clientKey);
+		if (state == null)
+			return null;
+
+		if (System.nanoTime() - state.storedNanos > maxAgeMillis * 1000000L) {
+			states.remove(clientKey);
+			return null;
+		}
+
+		return state;
+	}
+}
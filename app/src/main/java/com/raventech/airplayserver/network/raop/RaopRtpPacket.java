@@ -117,6 +117,19 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			setBeUInt(buffer, 4, fraction);
 		}
 
+		/**
+		 * Returns the time stamp as a 32.32 fixed-point number,
+		 * see {@link com.raventech.airplayserver.audio.FixedPointTime}
+		 */
+		public long getFixedPoint() {
+			return (getSeconds() << 32) | getFraction();
+		}
+
+		public void setFixedPoint(final long v) {
+			setSeconds(v >>> 32);
+			setFraction(v & 0xffffffffL);
+		}
+
 		public double getDouble() {
 			return getSeconds() + (double)getFraction() / 0x100000000L;
 		}
@@ -17,10 +17,11 @@
 
 package com.raventech.airplayserver.network.raop;
 
+import com.raventech.airplayserver.AirPlayReceiver;
 import com.raventech.airplayserver.AirPlayServer;
+import com.raventech.airplayserver.audio.PlayoutSettings;
 import com.raventech.airplayserver.network.raop.handlers.RaopAudioHandler;
 import com.raventech.airplayserver.network.ExceptionLoggingHandler;
-import com.raventech.airplayserver.network.NetworkUtils;
 
 import com.raventech.airplayserver.network.raop.handlers.RaopRtspChallengeResponseHandler;
 import com.raventech.airplayserver.network.raop.handlers.RaopRtspHeaderHandler;
@@ -34,37 +35,51 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.rtsp.RtspRequestDecoder;
 import org.jboss.netty.handler.codec.rtsp.RtspResponseEncoder;
 import com.raventech.airplayserver.network.rtp.RtspErrorResponseHandler;
+import com.raventech.airplayserver.network.rtp.RtspInterleavedFrameDecoder;
 import com.raventech.airplayserver.network.rtp.RtspLoggingHandler;
 import com.raventech.airplayserver.network.rtp.RtspUnsupportedResponseHandler;
 
 /**
- * Factory for AirTunes/RAOP RTSP channels
+ * Factory for the AirTunes/RAOP RTSP channels of a receiver
  */
 public class RaopRtspPipelineFactory implements ChannelPipelineFactory {
+
+	private final AirPlayReceiver receiver;
+
+	public RaopRtspPipelineFactory(final AirPlayReceiver receiver) {
+		this.receiver = receiver;
+	}
 	
 	@Override
 	public ChannelPipeline getPipeline() throws Exception {
 		final ChannelPipeline pipeline = Channels.pipeline();
 
-		final AirPlayServer airPlayServer = AirPlayServer.getIstance();
+		final AirPlayServer airPlayServer = receiver.getServer();
+
+		/* Each connection gets its own copy of the settings, which may be adjusted per session */
+		final PlayoutSettings playoutSettings = new PlayoutSettings(receiver.getPlayoutSettings());
+		final RaopAudioHandler audioHandler = new RaopAudioHandler(receiver, playoutSettings);
 		
 		pipeline.addLast("executionHandler", airPlayServer.getChannelExecutionHandler());
 		pipeline.addLast("closeOnShutdownHandler", new SimpleChannelUpstreamHandler() {
 			@Override
 			public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
-				airPlayServer.getChannelGroup().add(e.getChannel());
+				receiver.getChannelGroup().add(e.getChannel());
 				super.channelOpen(ctx, e);
 			}
 		});
 		pipeline.addLast("exceptionLogger", new ExceptionLoggingHandler());
+		pipeline.addLast("framer", new RtspInterleavedFrameDecoder());
 		pipeline.addLast("decoder", new RtspRequestDecoder());
 		pipeline.addLast("encoder", new RtspResponseEncoder());
+		/* Interleaved RTP packets leave the pipeline here, before anything expects RTSP requests */
+		pipeline.addLast("interleaved", audioHandler.getInterleavedRouterHandler());
 		pipeline.addLast("logger", new RtspLoggingHandler());
 		pipeline.addLast("errorResponse", new RtspErrorResponseHandler());
-		pipeline.addLast("challengeResponse", new RaopRtspChallengeResponseHandler(NetworkUtils.getInstance().getHardwareAddress()));
-		pipeline.addLast("header", new RaopRtspHeaderHandler());
+		pipeline.addLast("challengeResponse", new RaopRtspChallengeResponseHandler(receiver.getHardwareAddress()));
+		pipeline.addLast("header", new RaopRtspHeaderHandler(playoutSettings));
 		pipeline.addLast("options", new RaopRtspOptionsHandler());
-		pipeline.addLast("audio", new RaopAudioHandler(airPlayServer.getExecutorService()));
+		pipeline.addLast("audio", audioHandler);
 		pipeline.addLast("unsupportedResponse", new RtspUnsupportedResponseHandler());
 
 		return pipeline;
@@ -19,6 +19,7 @@ package com.raventech.airplayserver.network.raop.handlers;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -36,18 +37,25 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import com.raventech.airplayserver.AirPlayReceiver;
 import com.raventech.airplayserver.AirPlayServer;
+import com.raventech.airplayserver.audio.AudioPacketDecoder;
 import com.raventech.airplayserver.audio.AudioOutputQueue;
 import com.raventech.airplayserver.audio.AudioStreamInformationProvider;
+import com.raventech.airplayserver.audio.PlayoutSettings;
 import com.raventech.airplayserver.crypto.AirTunesCryptography;
+import com.raventech.airplayserver.network.ClockDiscipline;
 import com.raventech.airplayserver.network.ExceptionLoggingHandler;
 import com.raventech.airplayserver.network.rtp.RtpEncodeHandler;
 import com.raventech.airplayserver.network.rtp.RtpLoggingHandler;
+import com.raventech.airplayserver.network.rtp.RtspInterleavedFrame;
+import com.raventech.airplayserver.network.raop.RaopClientStateCache;
 import com.raventech.airplayserver.network.raop.RaopRtpPacket;
 
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelException;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler;
@@ -87,6 +95,9 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 
 	private static final String HEADER_TRANSPORT = "Transport";
 	private static final String HEADER_SESSION = "Session";
+	private static final String HEADER_RTP_INFO = "RTP-Info";
+	private static final String HEADER_DACP_ID = "DACP-ID";
+	private static final String HEADER_ACTIVE_REMOTE = "Active-Remote";
 
 	/**
 	 * Routes incoming packets from the control and timing channel to
@@ -112,6 +123,41 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		}
 	}
 
+	/**
+	 * Routes RTP packets interleaved with the RTSP connection to the audio
+	 * channel, where they pass the same stages as packets received via UDP
+	 */
+	private class RaopRtspInterleavedToAudioRouterUpstreamHandler extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) throws Exception {
+			if ( ! (evt.getMessage() instanceof RtspInterleavedFrame) ) {
+				super.messageReceived(ctx, evt);
+				return;
+			}
+
+			final RtspInterleavedFrame frame = (RtspInterleavedFrame)evt.getMessage();
+
+			/* Get audio channel from the enclosing RaopAudioHandler */
+			Channel tempAudioChannel = null;
+			synchronized(RaopAudioHandler.this) {
+				if (interleavedTransport)
+					tempAudioChannel = audioChannel;
+			}
+
+			/* Audio (channel 0) and control packets (channel 1) are told apart by their payload type */
+			if ((tempAudioChannel != null) && tempAudioChannel.isOpen() && tempAudioChannel.isReadable()) {
+				tempAudioChannel.getPipeline().sendUpstream(new UpstreamMessageEvent(
+					tempAudioChannel,
+					frame.getData(),
+					evt.getRemoteAddress())
+				);
+			}
+			else {
+				LOG.fine("No interleaved transport set up, dropping " + frame);
+			}
+		}
+	}
+
 	/**
 	 * Routes outgoing packets on audio channel to the control or timing
 	 * channel if appropriate
@@ -163,20 +209,22 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 
 			/* Get audio output queue from the enclosing RaopAudioHandler */
 			AudioOutputQueue tempAudioOutputQueue;
+			ByteOrder tempAudioPayloadOrder;
 			synchronized(RaopAudioHandler.this) {
 				tempAudioOutputQueue = audioOutputQueue;
+				tempAudioPayloadOrder = audioPayloadOrder;
 			}
 
 			if (tempAudioOutputQueue != null) {
-				//buffer array the byte with the audio samples
-				final byte[] samples = new byte[audioPacket.getPayload().capacity()];
-				
-				//get the bytes
-				audioPacket.getPayload().getBytes(0, samples);
-				
-				//send the audio buffer to the autioOutputQueue
-				//audioOutputQueue.enqueue(audioPacket.getTimeStamp(), samples);
-				tempAudioOutputQueue.enqueue(audioPacket.getTimeStamp(), samples);
+				/* The decoder stores native byte order PCM in the payload, unless decoding
+				 * is deferred to the queue. L16 payloads are network byte order PCM. The
+				 * queue reads the payload through an NIO view, i.e. without an intermediate
+				 * copy, and swaps the bytes if necessary while queueing it
+				 */
+				tempAudioOutputQueue.enqueue(
+					audioPacket.getTimeStamp(),
+					audioPacket.getPayload().toByteBuffer().order(tempAudioPayloadOrder)
+				);
 				
 				if (LOG.isLoggable(Level.FINEST)){
 					LOG.finest("Packet with sequence " + audioPacket.getSequence() + " for playback at " + audioPacket.getTimeStamp() + " submitted to audio output queue");
@@ -194,14 +242,46 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 *  RSA cipher used to decrypt the AES session key
 	 */
 	//private final Cipher m_rsaPkCS1OaepCipher = AirTunesCrytography.getCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
-	private Cipher rsaPkCS1OaepCipher;
+	private static final ThreadLocal<Cipher> RSA_PKCS1_OAEP_CIPHERS = new ThreadLocal<Cipher>() {
+		/* Acquiring a cipher is expensive, so the ciphers outlive
+		 * the connections and stay warm for the next one
+		 */
+		@Override
+		protected Cipher initialValue() {
+			//TODO: MOve this to the AirTunesCryptography class
+			final String transformation = "RSA/None/OAEPWithSHA1AndMGF1Padding";
+			try {
+				final Cipher rsaPkCS1OaepCipher = Cipher.getInstance(transformation);
+
+				LOG.info("Cipher acquired sucessfully. transformation: " + transformation);
+				return rsaPkCS1OaepCipher;
+			}
+			catch (NoSuchAlgorithmException e) {
+				LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
+			}
+			catch (NoSuchPaddingException e) {
+				LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
+			}
+			return null;
+		}
+	};
 
 	
+	/**
+	 * The receiver this connection belongs to
+	 */
+	private final AirPlayReceiver receiver;
+
 	/**
 	 * Executor service used for the RTP channels
 	 */
 	private final ExecutorService rtpExecutorService;
 
+	/**
+	 * The session's playout settings
+	 */
+	private final PlayoutSettings playoutSettings;
+
 	private final ChannelHandler exceptionLoggingHandler = new ExceptionLoggingHandler();
 	private final ChannelHandler decodeHandler = new RaopRtpDecodeHandler();
 	private final ChannelHandler encodeHandler = new RtpEncodeHandler();
@@ -211,13 +291,29 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	
 	private ChannelHandler decryptionHandler;
 	private ChannelHandler audioDecodeHandler;
-	private ChannelHandler resendRequestHandler;
+	private RaopRtpRetransmitRequestHandler resendRequestHandler;
 	private RaopRtpTimingHandler timingHandler;
 	private final ChannelHandler audioEnqueueHandler = new RaopRtpAudioEnqueueHandler();
+	private final ChannelHandler interleavedRouterHandler = new RaopRtspInterleavedToAudioRouterUpstreamHandler();
+
+	/**
+	 * True if the RTP packets are interleaved with the RTSP connection instead of sent via UDP
+	 */
+	private boolean interleavedTransport = false;
 
 	private AudioStreamInformationProvider audioStreamInformationProvider;
 	private AudioOutputQueue audioOutputQueue;
 
+	/**
+	 * Identifies the sender in the server's client state cache, or null if unknown
+	 */
+	private String clientKey;
+
+	/**
+	 * Byte order of the PCM samples in the audio packets reaching the queue
+	 */
+	private ByteOrder audioPayloadOrder = ByteOrder.nativeOrder();
+
 	/**
 	 * All RTP channels belonging to this RTSP connection
 	 */
@@ -228,37 +324,64 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private Channel timingChannel;
 
 	/**
-	 * Creates an instance, using the ExecutorService for the RTP channel's datagram socket factory
-	 * @param rtpExecutorService
+	 * Creates an instance for a connection to the given receiver, using the server's
+	 * ExecutorService for the RTP channel's datagram socket factory
+	 * @param receiver the receiver the connection belongs to
+	 * @param playoutSettings the session's playout settings, read whenever a stream is announced
 	 */
-	public RaopAudioHandler(final ExecutorService rtpExecutorService) {
-		this.rtpExecutorService = rtpExecutorService;
-		
-		//TODO: MOve this to the AirTunesCryptography class
-		String transformation = "RSA/None/OAEPWithSHA1AndMGF1Padding";
-        try {
-        	rsaPkCS1OaepCipher = Cipher.getInstance(transformation);
-        	
-        	LOG.info("Cipher acquired sucessfully. transformation: " + transformation);
-		} 
-        catch (NoSuchAlgorithmException e) {
-			LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
-		} 
-        catch (NoSuchPaddingException e) {
-        	LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
-		}
-		
+	public RaopAudioHandler(final AirPlayReceiver receiver, final PlayoutSettings playoutSettings) {
+		this.receiver = receiver;
+		this.rtpExecutorService = receiver.getServer().getExecutorService();
+		this.playoutSettings = playoutSettings;
+
 		reset();
 	}
 
 	/**
-	 * Resets stream-related data (i.e. undoes the effect of ANNOUNCE, SETUP and RECORD
+	 * Returns the session's playout settings. Changes apply to the
+	 * next stream announced on this session
+	 *
+	 * @return playout settings
 	 */
-	private void reset() {
-		if (audioOutputQueue != null){
-			audioOutputQueue.close();
+	public PlayoutSettings getPlayoutSettings() {
+		return playoutSettings;
+	}
+
+	/**
+	 * Returns the handler which passes RTP packets interleaved with the RTSP
+	 * connection on to the audio channel. Belongs into the RTSP pipeline, right
+	 * after the RTSP decoder
+	 *
+	 * @return interleaved data handler
+	 */
+	public ChannelHandler getInterleavedRouterHandler() {
+		return interleavedRouterHandler;
+	}
+
+	/**
+	 * Resets stream-related data (i.e. undoes the effect of ANNOUNCE, SETUP and RECORD).
+	 * The audio output queue is detached but not closed, since closing it waits for
+	 * its playout thread. The caller closes it once it released the handler's lock,
+	 * which the RTP handlers take for every packet
+	 *
+	 * @return the detached audio output queue, or null
+	 */
+	private AudioOutputQueue reset() {
+		/* Remember the sender's converged state for its next session */
+		if ((clientKey != null) && (timingHandler != null) && (audioOutputQueue != null)) {
+			final ClockDiscipline.Snapshot clock = timingHandler.getClockDiscipline().getSnapshot();
+			if (clock != null) {
+				receiver.getServer().getClientStateCache().put(clientKey, new RaopClientStateCache.ClientState(
+					clock,
+					audioOutputQueue.getJitter(),
+					audioOutputQueue.getLatePacketRate(),
+					audioOutputQueue.getPlayoutDelay()
+				));
+			}
 		}
 
+		final AudioOutputQueue detachedAudioOutputQueue = audioOutputQueue;
+
 		rtpChannels.close();
 
 		decryptionHandler = null;
@@ -268,10 +391,30 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 
 		audioStreamInformationProvider = null;
 		audioOutputQueue = null;
+		clientKey = null;
+		audioPayloadOrder = ByteOrder.nativeOrder();
 
+		interleavedTransport = false;
 		audioChannel = null;
 		controlChannel = null;
 		timingChannel = null;
+
+		return detachedAudioOutputQueue;
+	}
+
+	/**
+	 * Resets stream-related data, and closes the audio output queue
+	 * without holding the handler's lock
+	 */
+	private void closeStream() {
+		final AudioOutputQueue detachedAudioOutputQueue;
+		synchronized(this) {
+			detachedAudioOutputQueue = reset();
+		}
+
+		if (detachedAudioOutputQueue != null){
+			detachedAudioOutputQueue.close();
+		}
 	}
 
 	@Override
@@ -279,9 +422,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		throws Exception {
 		LOG.info("RTSP connection was shut down, closing RTP channels and audio output queue");
 
-		synchronized(this) {
-			reset();
-		}
+		closeStream();
 
 		super.channelClosed(ctx, evt);
 	}
@@ -384,10 +525,14 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * <li>{@link RaopRtpTimingHandler}
 	 * <li>{@link RaopRtpRetransmitRequestHandler}
 	 * <li>{@link RaopRtpAudioDecryptionHandler}
-	 * <li>{@link RaopRtpAudioAlacDecodeHandler}
+	 * <li>{@link RaopRtpAudioAlacDecodeHandler}, for ALAC streams
 	 * </ul>
+	 * With deferred decoding, the last two are handed to the queue
+	 * in a {@link RaopRtpAudioPacketDecoder} instead. Uncompressed L16
+	 * streams are described by a {@link RaopRtpAudioL16StreamInformationProvider}
+	 * and need no decoder.
 	 */
-	public synchronized void announceReceived(final ChannelHandlerContext ctx, final HttpRequest req)
+	public void announceReceived(final ChannelHandlerContext ctx, final HttpRequest req)
 		throws Exception {
 		
 		/* ANNOUNCE must contain stream information in SDP format */
@@ -398,8 +543,14 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			throw new ProtocolException("Invalid Content-Type header, expected application/sdp but got " + req.getHeader("Content-Type"));
 		}
 		
-		reset();
+		closeStream();
+		announceStream(ctx, req);
+	}
 
+	/**
+	 * Sets up the stream described by an ANNOUNCE request's SDP content
+	 */
+	private synchronized void announceStream(final ChannelHandlerContext ctx, final HttpRequest req) throws Exception {
 		/* Get SDP stream information */
 		final String sdp = req.getContent().toString(Charset.forName("ASCII")).replace("\r", "");
 
@@ -422,6 +573,8 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		SecretKey aesKey = null;
 		IvParameterSpec aesIv = null;
 		int alacFormatIndex = -1;
+		int l16FormatIndex = -1;
+		String l16Encoding = null;
 		int audioFormatIndex = -1;
 		int descriptionFormatIndex = -1;
 		String[] formatOptions = null;
@@ -469,8 +622,13 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 
 						final int formatIdx = Integer.valueOf(a_rtpmap_matcher.group(1));
 						final String format = a_rtpmap_matcher.group(2);
-						if ("AppleLossless".equals(format))
+						if ("AppleLossless".equals(format)) {
 							alacFormatIndex = formatIdx;
+						}
+						else if (RaopRtpAudioL16StreamInformationProvider.isL16(format)) {
+							l16FormatIndex = formatIdx;
+							l16Encoding = format;
+						}
 					}
 					else if ("fmtp".equals(key)) {
 						/* Sets the decoding parameters for a audio format index */
@@ -486,6 +644,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 						 */
 						byte[] aesKeyRaw;
 
+						final Cipher rsaPkCS1OaepCipher = RSA_PKCS1_OAEP_CIPHERS.get();
 						rsaPkCS1OaepCipher.init(Cipher.DECRYPT_MODE, AirTunesCryptography.PrivateKey);
 						aesKeyRaw = rsaPkCS1OaepCipher.doFinal(Base64.decodeUnpadded(value));
 
@@ -505,39 +664,91 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		
 		/* Validate SDP information */
 
-		/* The format index of the stream must match the format index from the rtpmap attribute */
-		if (alacFormatIndex != audioFormatIndex){
+		/* The format index of the stream must match the format index from an rtpmap attribute */
+		final boolean alac = (alacFormatIndex == audioFormatIndex);
+		final boolean l16 = ! alac && (l16FormatIndex == audioFormatIndex);
+		if ( ! alac && ! l16){
 			throw new ProtocolException("Audio format " + audioFormatIndex + " not supported");
 		}
 
-		/* The format index from the rtpmap attribute must match the format index from the fmtp attribute */
-		if (audioFormatIndex != descriptionFormatIndex){
+		/* For ALAC, the format index from the rtpmap attribute must match the format index from the fmtp attribute */
+		if (alac && (audioFormatIndex != descriptionFormatIndex)){
 			throw new ProtocolException("Auido format " + audioFormatIndex + " lacks fmtp line");
 		}
 
-		/* The fmtp attribute must have contained format options */
-		if (formatOptions == null){
+		/* For ALAC, the fmtp attribute must have contained format options */
+		if (alac && (formatOptions == null)){
 			throw new ProtocolException("Auido format " + audioFormatIndex + " incomplete, format options not set");
 		}
 
 		/* Create decryption handler if an AES key and IV was specified */
+		RaopRtpAudioDecryptionHandler aesHandler = null;
 		if ((aesKey != null) && (aesIv != null)){
-			decryptionHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv);
+			aesHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv);
 		}
 
-		/* Create an ALAC decoder. The ALAC decoder is our stream information provider */
-		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions);
-		audioStreamInformationProvider = handler;
-		audioDecodeHandler = handler;
+		AudioPacketDecoder packetDecoder = null;
+		if (alac) {
+			/* Create an ALAC decoder. The ALAC decoder is our stream information provider */
+			final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions);
+			audioStreamInformationProvider = handler;
+
+			/* With deferred decoding, the packets are queued as they arrive and the
+			 * queue decrypts and decodes them just before playback. Otherwise, the
+			 * RTP pipeline does so on arrival
+			 */
+			if (playoutSettings.isDeferredDecoding()) {
+				packetDecoder = new RaopRtpAudioPacketDecoder(aesHandler, handler);
+			}
+			else {
+				decryptionHandler = aesHandler;
+				audioDecodeHandler = handler;
+			}
+		}
+		else {
+			/* L16 needs no decoding. The payload goes to the queue as it is,
+			 * which swaps the bytes while queueing it
+			 */
+			final RaopRtpAudioL16StreamInformationProvider provider = new RaopRtpAudioL16StreamInformationProvider(
+				l16Encoding,
+				(descriptionFormatIndex == audioFormatIndex) ? formatOptions : null
+			);
+			audioStreamInformationProvider = provider;
+			audioPayloadOrder = provider.getByteOrder();
+			decryptionHandler = aesHandler;
+		}
 
-		/* Create audio output queue with the format information provided by the ALAC decoder */
-		audioOutputQueue = new AudioOutputQueue(audioStreamInformationProvider);
+		/* Create audio output queue with the format information provided by the stream information provider */
+		audioOutputQueue = new AudioOutputQueue(
+			audioStreamInformationProvider,
+			receiver.getAudioSinkPool(),
+			playoutSettings,
+			receiver.getServer().getAudioMemoryBudget(),
+			packetDecoder
+		);
 
 		/* Create timing handle, using the AudioOutputQueue as time source */
-		timingHandler = new RaopRtpTimingHandler(audioOutputQueue);
+		timingHandler = new RaopRtpTimingHandler(audioOutputQueue, audioOutputQueue.getLatencyFrames(), receiver.getServer().getTimingExecutorService());
 
 		/* Create retransmit request handler using the audio output queue as time source */
-		resendRequestHandler = new RaopRtpRetransmitRequestHandler(audioStreamInformationProvider, audioOutputQueue);
+		resendRequestHandler = new RaopRtpRetransmitRequestHandler(audioStreamInformationProvider, audioOutputQueue, timingHandler.getClockDiscipline());
+
+		/* Seed the session with the state the sender's last session ended with. The clock
+		 * discipline verifies the seed against the first timing exchange
+		 */
+		clientKey = RaopClientStateCache.getClientKey(
+			((InetSocketAddress)ctx.getChannel().getRemoteAddress()).getAddress(),
+			req.getHeader(HEADER_DACP_ID),
+			req.getHeader(HEADER_ACTIVE_REMOTE)
+		);
+		if (clientKey != null) {
+			final RaopClientStateCache.ClientState state = receiver.getServer().getClientStateCache().get(clientKey);
+			if (state != null) {
+				timingHandler.getClockDiscipline().seed(state.clock);
+				audioOutputQueue.seedPlayoutStatistics(state.jitter, state.latePacketRate, state.playoutDelay);
+				LOG.info("Seeded session of returning sender " + clientKey + " with " + state);
+			}
+		}
 
 		//send response back to the client
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
@@ -553,12 +764,17 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 * <br>
 	 * {@code <protocol>;<name1>=<value1>;<name2>=<value2>;...}
 	 * <p>
-	 * For RAOP/AirTunes, {@code <protocol>} is always {@code RTP/AVP/UDP}.
+	 * For RAOP/AirTunes, {@code <protocol>} is {@code RTP/AVP/UDP}, or {@code RTP/AVP/TCP}
+	 * if the RTP packets are interleaved with the RTSP connection.
 	 */
 	private static Pattern PATTERN_TRANSPORT_OPTION = Pattern.compile("^([A-Za-z0-9_-]+)(=(.*))?$");
 	
 	/**
-	 * Handles SETUP requests and creates the audio, control and timing RTP channels
+	 * Handles SETUP requests and creates the audio, control and timing RTP channels.
+	 * <p>
+	 * With the TCP transport, the audio and control packets are interleaved with the
+	 * RTSP connection and re-routed to the audio channel. The audio channel is created
+	 * nevertheless, since its pipeline hosts the stages every packet passes
 	 */
 	public synchronized void setupReceived(final ChannelHandlerContext ctx, final HttpRequest req) throws ProtocolException {
 		/* Request must contain a Transport header */
@@ -570,13 +786,15 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		final Deque<String> requestOptions = new java.util.LinkedList<String>(Arrays.asList(req.getHeader(HEADER_TRANSPORT).split(";")));
 		final List<String> responseOptions = new java.util.LinkedList<String>();
 
-		/* Transport header. Protocol must be RTP/AVP/UDP */
+		/* Transport header. Protocol must be RTP/AVP/UDP or RTP/AVP/TCP */
 		final String requestProtocol = requestOptions.removeFirst();
-		if ( ! "RTP/AVP/UDP".equals(requestProtocol)){
-			throw new ProtocolException("Transport protocol must be RTP/AVP/UDP, but was " + requestProtocol);
+		final boolean tcp = "RTP/AVP/TCP".equals(requestProtocol);
+		if ( ! tcp && ! "RTP/AVP/UDP".equals(requestProtocol)){
+			throw new ProtocolException("Transport protocol must be RTP/AVP/UDP or RTP/AVP/TCP, but was " + requestProtocol);
 		}
 		
 		responseOptions.add(requestProtocol);
+		boolean interleavedOption = false;
 
 		/* Parse incoming transport options and build response options */
 		for(final String requestOption: requestOptions) {
@@ -589,11 +807,12 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			final String value = transportOption.group(3);
 
 			if ("interleaved".equals(key)) {
-				/* Probably means that two channels are interleaved in the stream. Included in the response options */
+				/* The RTSP channels carrying audio and control packets with the TCP transport. Included in the response options */
 				if ( ! "0-1".equals(value)){
 					throw new ProtocolException("Unsupported Transport option, interleaved must be 0-1 but was " + value);
 				}
 				responseOptions.add("interleaved=0-1");
+				interleavedOption = true;
 			}
 			else if ("mode".equals(key)) {
 				/* Means the we're supposed to receive audio data, not send it. Included in the response options */
@@ -645,7 +864,16 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		
 		LOG.info("Launched RTP audio service on " + audioChannel.getLocalAddress());
 		
-		responseOptions.add("server_port=" + ((InetSocketAddress)audioChannel.getLocalAddress()).getPort());
+		if (tcp) {
+			/* Audio arrives on the RTSP connection instead */
+			if ( ! interleavedOption)
+				responseOptions.add("interleaved=0-1");
+			interleavedTransport = true;
+			LOG.info("Receiving RTP packets interleaved with the RTSP connection");
+		}
+		else {
+			responseOptions.add("server_port=" + ((InetSocketAddress)audioChannel.getLocalAddress()).getPort());
+		}
 
 		/* Build response options string */
 		final StringBuilder transportResponseBuilder = new StringBuilder();
@@ -683,18 +911,61 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		ctx.getChannel().write(response);
 	}
 
+	private static Pattern PATTERN_RTP_INFO_OPTION = Pattern.compile("^ *([A-Za-z0-9_-]+)=([0-9]+) *$");
+
 	/**
 	 * Handle FLUSH requests.
 	 * 
-	 * iTunes reports the last RTP sequence and playback time here, which would actually be
-	 * helpful. But iOS doesn't, so we ignore it all together.
+	 * Senders report the RTP sequence and time at which the stream resumes in the RTP-Info
+	 * header, e.g. after a seek. Only the audio queued before that point is flushed then,
+	 * and packets before it which are still in flight are dropped on arrival. Without
+	 * RTP-Info, the whole queue is flushed.
 	 */
 	private synchronized void flushReceived(final ChannelHandlerContext ctx, final HttpRequest req) {
-		if (audioOutputQueue != null){
-			audioOutputQueue.flush();
+		/* Parse the RTP-Info header, if any */
+		Integer flushSequence = null;
+		Long flushFrameTime = null;
+		if (req.containsHeader(HEADER_RTP_INFO)) {
+			for(final String rtpInfoOption: req.getHeader(HEADER_RTP_INFO).split(";")) {
+				final Matcher matcher = PATTERN_RTP_INFO_OPTION.matcher(rtpInfoOption);
+				if ( ! matcher.matches() )
+					continue;
+
+				try {
+					if ("seq".equals(matcher.group(1)))
+						flushSequence = Integer.valueOf(matcher.group(2)) & 0xffff;
+					else if ("rtptime".equals(matcher.group(1)))
+						flushFrameTime = Long.valueOf(matcher.group(2)) & 0xffffffffL;
+				}
+				catch (final NumberFormatException e) {
+					LOG.warning("Cannot parse RTP-Info option " + rtpInfoOption + ", ignoring");
+				}
+			}
+		}
+
+		if (flushFrameTime != null) {
+			if (audioOutputQueue != null){
+				audioOutputQueue.flush(flushFrameTime);
+			}
+			if (resendRequestHandler != null){
+				if (flushSequence != null)
+					resendRequestHandler.flush(flushSequence, flushFrameTime);
+				else
+					resendRequestHandler.flush();
+			}
+
+			LOG.info("Client flushed streaming up to frame time " + flushFrameTime + ", flushed audio output queue up to there");
 		}
+		else {
+			if (audioOutputQueue != null){
+				audioOutputQueue.flush();
+			}
+			if (resendRequestHandler != null){
+				resendRequestHandler.flush();
+			}
 
-		LOG.info("Client paused streaming, flushed audio output queue");
+			LOG.info("Client paused streaming, flushed audio output queue");
+		}
 
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
 		ctx.getChannel().write(response);
@@ -807,7 +1078,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			public ChannelPipeline getPipeline() throws Exception {
 				final ChannelPipeline pipeline = Channels.pipeline();
 
-				final AirPlayServer airPlayServer = AirPlayServer.getIstance();
+				final AirPlayServer airPlayServer = receiver.getServer();
 				
 				pipeline.addLast("executionHandler", airPlayServer.getChannelExecutionHandler());
 				pipeline.addLast("exceptionLogger", exceptionLoggingHandler);
@@ -848,8 +1119,17 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		Channel channel = null;
 		boolean didThrow = true;
 		try {
-			/* Bind to local address */
-			channel = bootstrap.bind(local);
+			/* Bind to local address. The preferred port may be taken by another
+			 * session, e.g. of another receiver, in which case any port will do.
+			 * The SETUP response tells the client which one we got
+			 */
+			try {
+				channel = bootstrap.bind(local);
+			}
+			catch (final ChannelException e) {
+				LOG.info("Cannot bind RTP " + channelType + " channel to " + local + ", using any free port");
+				channel = bootstrap.bind(substitutePort((InetSocketAddress)local, 0));
+			}
 			
 			/* Add to group of RTP channels beloging to this RTSP connection */
 			rtpChannels.add(channel);
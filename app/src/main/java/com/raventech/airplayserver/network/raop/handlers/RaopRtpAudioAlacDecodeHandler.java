@@ -17,6 +17,8 @@
 
 package com.raventech.airplayserver.network.raop.handlers;
 
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,7 +37,7 @@ import alacdecoder.AlacDecodeUtils;
 import alacdecoder.AlacFile;
 
 /**
- * Decodes the ALAC audio data in incoming audio packets to big endian unsigned PCM.
+ * Decodes the ALAC audio data in incoming audio packets to native byte order signed PCM.
  * Also serves as an {@link AudioStreamInformationProvider}
  * 
  * This class assumes that ALAC requires no inter-packet state - it doesn't make
@@ -61,6 +63,16 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	public static final int FORMAT_OPTION_86 = 9;
 	public static final int FORMAT_OPTION_8a_RATE = 10;
 
+	/**
+	 * Spare bytes the ALAC decoder requires after a frame's data
+	 */
+	public static final int ALAC_SPARE_BYTES = 3;
+
+	/**
+	 * Upper bound of an ALAC frame's header
+	 */
+	private static final int ALAC_HEADER_MAX_BYTES = 16;
+
 	/**
 	 * Number of samples per ALAC frame (packet).
 	 * One sample here means *two* amplitues, one
@@ -122,6 +134,40 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 		LOG.info("Created ALAC decode for options " + Arrays.toString(formatOptions));
 	}
 
+	/**
+	 * Decodes an ALAC frame to PCM
+	 *
+	 * @param alacBytes ALAC data, followed by {@link #ALAC_SPARE_BYTES} spare bytes
+	 * @param pcmSamples receives the samples, must hold two per frame
+	 * @return number of frames decoded, i.e. {@link #getFramesPerPacket()}
+	 * @throws ProtocolException if the frame doesn't contain the announced number of frames
+	 */
+	public synchronized int decodeFrame(final byte[] alacBytes, final int[] pcmSamples) throws ProtocolException {
+		final int pcmSamplesBytes = AlacDecodeUtils.decode_frame(alacFile, alacBytes, pcmSamples, samplesPerFrame);
+
+		/* decode_frame() returns the number of *bytes*, not samples! */
+		final int pcmSamplesLength = pcmSamplesBytes / 4;
+		final Level level = Level.FINEST;
+		if (LOG.isLoggable(level)){
+			LOG.log(level, "Decoded " + alacBytes.length + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
+		}
+
+		/* Complain if the sender doesn't honour it's commitment */
+		if (pcmSamplesLength != samplesPerFrame){
+			throw new ProtocolException("Frame declared to contain " + samplesPerFrame + ", but contained " + pcmSamplesLength);
+		}
+
+		return pcmSamplesLength;
+	}
+
+	/**
+	 * Returns the largest size of an ALAC frame. Frames ALAC can't compress
+	 * are sent uncompressed, plus a few bytes of header
+	 */
+	public int getMaxFrameBytes() {
+		return samplesPerFrame * channels * sampleSizeInBits / 8 + ALAC_HEADER_MAX_BYTES;
+	}
+
 	@Override
 	protected synchronized Object decode(final ChannelHandlerContext ctx, final Channel channel, final Object msg)
 		throws Exception {
@@ -137,28 +183,17 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 		 * (but later discards the data). To alleviate, we allocate
 		 * 3 spare bytes at input buffer's end.
 		 */
-		final byte[] alacBytes = new byte[alacPacket.getPayload().capacity() + 3];
+		final byte[] alacBytes = new byte[alacPacket.getPayload().capacity() + ALAC_SPARE_BYTES];
 		alacPacket.getPayload().getBytes(0, alacBytes, 0, alacPacket.getPayload().capacity());
 
 		/* Decode ALAC to PCM */
 		final int[] pcmSamples = new int[samplesPerFrame * 2];
-		final int pcmSamplesBytes = AlacDecodeUtils.decode_frame(alacFile, alacBytes, pcmSamples, samplesPerFrame);
-
-		/* decode_frame() returns the number of *bytes*, not samples! */
-		final int pcmSamplesLength = pcmSamplesBytes / 4;
-		final Level level = Level.FINEST;
-		if (LOG.isLoggable(level)){
-			LOG.log(level, "Decoded " + alacBytes.length + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
-		}
-
-		/* Complain if the sender doesn't honour it's commitment */
-		if (pcmSamplesLength != samplesPerFrame){
-			throw new ProtocolException("Frame declared to contain " + samplesPerFrame + ", but contained " + pcmSamplesLength);
-		}
+		final int pcmSamplesLength = decodeFrame(alacBytes, pcmSamples);
 
 		/* Assemble PCM audio packet from original packet header and decoded data.
 		 * The ALAC decode emits signed PCM samples as integers. We store them as
-		 * as unsigned big endian integers in the packet.
+		 * signed 16-bit integers in native byte order, which is what the audio
+		 * output queue and the audio sinks expect.
 		 */
 		
 		RaopRtpPacket.Audio pcmPacket;
@@ -174,13 +209,12 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 			throw new ProtocolException("Packet type " + alacPacket.getClass() + " is not supported by the ALAC decoder");
 		}
 
+		/* The payload's NIO view shares the packet's memory */
+		final ShortBuffer pcmPayload = pcmPacket.getPayload().toByteBuffer().order(ByteOrder.nativeOrder()).asShortBuffer();
+
 		//for each PCM sample
 		for(int i=0; i < pcmSamples.length; ++i) {
-			/* Convert sample to big endian unsigned integer PCM */
-			final int pcmSampleUnsigned = pcmSamples[i] + 0x8000;
-
-			pcmPacket.getPayload().setByte(2*i, (pcmSampleUnsigned & 0xff00) >> 8);
-			pcmPacket.getPayload().setByte(2*i + 1, pcmSampleUnsigned & 0x00ff);
+			pcmPayload.put(i, (short)pcmSamples[i]);
 		}
 
 		return pcmPacket;
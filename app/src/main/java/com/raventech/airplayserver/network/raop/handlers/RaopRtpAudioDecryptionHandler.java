@@ -17,6 +17,7 @@
 
 package com.raventech.airplayserver.network.raop.handlers;
 
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,11 +42,31 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 	private static final Logger LOG = Logger.getLogger(RaopRtpAudioDecryptionHandler.class.getName());
 	
 	/**
-	 *  The AES cipher. We request no padding because RAOP/AirTunes only encrypts full
-	 * block anyway and leaves the trailing byte unencrypted
+	 *  The AES ciphers, one per thread. We request no padding because RAOP/AirTunes only
+	 * encrypts full block anyway and leaves the trailing byte unencrypted. Acquiring a cipher
+	 * is expensive, and it's re-initialized for every packet anyway, so the ciphers outlive
+	 * the streams and stay warm for the next one
 	 */
 	//private final Cipher m_aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
-	private Cipher aesCipher; 
+	private static final ThreadLocal<Cipher> AES_CIPHERS = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			final String transformation = "AES/CBC/NoPadding";
+			try {
+				final Cipher aesCipher = Cipher.getInstance(transformation);
+
+				LOG.info("Cipher acquired sucessfully. transformation: " + transformation);
+				return aesCipher;
+			}
+			catch (NoSuchAlgorithmException e) {
+				LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
+			}
+			catch (NoSuchPaddingException e) {
+				LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
+			}
+			return null;
+		}
+	};
 	
 	/**
 	 *  AES key */
@@ -59,22 +80,6 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv) {
 		m_aesKey = aesKey;
 		m_aesIv = aesIv;
-		
-		
-		String transformation = "AES/CBC/NoPadding";
-        try {
-        	aesCipher = Cipher.getInstance(transformation);
-        	
-        	LOG.info("Cipher acquired sucessfully. transformation: " + transformation);
-		} 
-        catch (NoSuchAlgorithmException e) {
-			LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
-		} 
-        catch (NoSuchPaddingException e) {
-        	LOG.log(Level.SEVERE, "Error getting the Cipher. transformation: " + transformation, e);
-		}
-        
-		
 	}
 
 	@Override
@@ -89,6 +94,7 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 			/* Cipher is restarted for every packet. We simply overwrite the
 			 * encrypted data with the corresponding plain text
 			 */
+			final Cipher aesCipher = AES_CIPHERS.get();
 			aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
 			
 			for(int i = 0; (i + 16) <= audioPayload.capacity(); i += 16) {
@@ -104,4 +110,21 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 
 		return msg;
 	}
+
+	/**
+	 * Decrypts audio data in place. Only full blocks are encrypted,
+	 * trailing bytes are left as they are
+	 *
+	 * @param data audio data
+	 * @param length number of bytes of audio data
+	 * @throws GeneralSecurityException if the data can't be decrypted
+	 */
+	public synchronized void decrypt(final byte[] data, final int length) throws GeneralSecurityException {
+		final Cipher aesCipher = AES_CIPHERS.get();
+		aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
+
+		final int encryptedLength = length - (length % 16);
+		if (encryptedLength > 0)
+			aesCipher.update(data, 0, encryptedLength, data, 0);
+	}
 }
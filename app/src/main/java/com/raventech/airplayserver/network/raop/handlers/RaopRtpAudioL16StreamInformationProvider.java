@@ -0,0 +1,145 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.raop.handlers;
+
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.raventech.airplayserver.audio.AudioStreamInformationProvider;
+import com.raventech.airplayserver.network.ProtocolException;
+
+import android.media.AudioFormat;
+
+/**
+ * Describes an uncompressed L16 stream, i.e. signed 16-bit PCM in network
+ * byte order (RFC 3551).
+ * <p>
+ * L16 payloads need no decoding. They're handed to the audio output queue
+ * as they arrive, in {@link #getByteOrder()}, and the queue swaps the bytes
+ * while copying the samples into its jitter buffer.
+ */
+public class RaopRtpAudioL16StreamInformationProvider implements AudioStreamInformationProvider {
+	private static Logger LOG = Logger.getLogger(RaopRtpAudioL16StreamInformationProvider.class.getName());
+
+	/**
+	 * Encoding name in the SDP rtpmap attribute
+	 */
+	public static final String ENCODING_NAME = "L16";
+
+	/**
+	 * Frames per packet unless the SDP fmtp attribute says otherwise
+	 */
+	public static final int DEFAULT_FRAMES_PER_PACKET = 352;
+
+	/**
+	 * Format of the rtpmap encoding, {@code L16/<rate>[/<channels>]}
+	 */
+	private static final Pattern PATTERN_ENCODING = Pattern.compile("^L16/([0-9]+)(/([0-9]+))?$");
+
+	private final int framesPerPacket;
+
+	/* We support only 44100 kHz */
+	private final int sampleRate = 44100;
+
+	private final int channels = 2;
+
+	private final int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+
+	private final int sampleSizeInBits = 16;
+
+	/**
+	 * Returns true if the rtpmap encoding describes an L16 stream
+	 *
+	 * @param encoding encoding from the rtpmap attribute, e.g. {@code L16/44100/2}
+	 */
+	public static boolean isL16(final String encoding) {
+		return encoding.startsWith(ENCODING_NAME + "/");
+	}
+
+	/**
+	 * Creates the information for an L16 stream announced with the given
+	 * rtpmap encoding and, optionally, fmtp format options.
+	 *
+	 * @param encoding encoding from the rtpmap attribute, e.g. {@code L16/44100/2}
+	 * @param formatOptions format options from the fmtp attribute, or null. The first is the number of frames per packet
+	 * @throws ProtocolException if the stream isn't 44100 Hz stereo
+	 */
+	public RaopRtpAudioL16StreamInformationProvider(final String encoding, final String[] formatOptions) throws ProtocolException {
+		final Matcher matcher = PATTERN_ENCODING.matcher(encoding);
+		if ( ! matcher.matches() )
+			throw new ProtocolException("Cannot parse L16 encoding " + encoding);
+
+		final int tempSampleRate = Integer.valueOf(matcher.group(1));
+		if (tempSampleRate != getSampleRate())
+			throw new ProtocolException("Sample rate must be " + getSampleRate() + ", but was " + tempSampleRate);
+
+		/* RFC 3551 defaults to one channel */
+		final int tempChannels = (matcher.group(3) != null) ? Integer.valueOf(matcher.group(3)) : 1;
+		if (tempChannels != getChannels())
+			throw new ProtocolException("Channel count must be " + getChannels() + ", but was " + tempChannels);
+
+		if ((formatOptions != null) && (formatOptions.length > 0))
+			framesPerPacket = Integer.valueOf(formatOptions[0]);
+		else
+			framesPerPacket = DEFAULT_FRAMES_PER_PACKET;
+
+		if (framesPerPacket <= 0)
+			throw new ProtocolException("Frames per packet must be greater than zero, but was " + framesPerPacket);
+
+		LOG.info("Created L16 stream with " + framesPerPacket + " frames per packet");
+	}
+
+	/**
+	 * Returns the byte order of the samples in the packets' payload
+	 */
+	public ByteOrder getByteOrder() {
+		return ByteOrder.BIG_ENDIAN;
+	}
+
+	@Override
+	public int getFramesPerPacket() {
+		return framesPerPacket;
+	}
+
+	@Override
+	public double getPacketsPerSecond() {
+		return getSampleRate() / (double)getFramesPerPacket();
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public int getChannels() {
+		return channels;
+	}
+
+	@Override
+	public int getAudioFormat() {
+		return audioFormat;
+	}
+
+	@Override
+	public int getSampleSizeInBits() {
+		return sampleSizeInBits;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.raop.handlers;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import com.raventech.airplayserver.audio.AudioPacketDecoder;
+import com.raventech.airplayserver.network.ProtocolException;
+
+/**
+ * Decrypts and decodes queued RAOP audio packets just before playback.
+ * <p>
+ * Takes the place of the {@link RaopRtpAudioDecryptionHandler} and
+ * {@link RaopRtpAudioAlacDecodeHandler} in the RTP pipeline if decoding is
+ * deferred, and uses them to do the work. The buffers are allocated once,
+ * since the decoder is only ever called by the playout thread.
+ */
+public class RaopRtpAudioPacketDecoder implements AudioPacketDecoder {
+	/**
+	 * Decrypts the packets, or null if the stream isn't encrypted
+	 */
+	private final RaopRtpAudioDecryptionHandler decryptionHandler;
+
+	private final RaopRtpAudioAlacDecodeHandler alacDecodeHandler;
+
+	/**
+	 * The packet's data, plus the spare bytes the ALAC decoder requires
+	 */
+	private final byte[] alacBytes;
+
+	/**
+	 * The decoded samples, as emitted by the ALAC decoder
+	 */
+	private final int[] pcmSamples;
+
+	/**
+	 * Creates a decoder
+	 *
+	 * @param decryptionHandler decrypts the packets, or null if they aren't encrypted
+	 * @param alacDecodeHandler decodes the packets
+	 */
+	public RaopRtpAudioPacketDecoder(final RaopRtpAudioDecryptionHandler decryptionHandler, final RaopRtpAudioAlacDecodeHandler alacDecodeHandler) {
+		this.decryptionHandler = decryptionHandler;
+		this.alacDecodeHandler = alacDecodeHandler;
+
+		alacBytes = new byte[alacDecodeHandler.getMaxFrameBytes() + RaopRtpAudioAlacDecodeHandler.ALAC_SPARE_BYTES];
+		pcmSamples = new int[alacDecodeHandler.getFramesPerPacket() * alacDecodeHandler.getChannels()];
+	}
+
+	@Override
+	public int getMaxPacketBytes() {
+		return alacDecodeHandler.getMaxFrameBytes();
+	}
+
+	@Override
+	public int decode(final ByteBuffer packet, final ShortBuffer samples) throws Exception {
+		final int length = packet.remaining();
+		if (length > alacDecodeHandler.getMaxFrameBytes())
+			throw new ProtocolException("Packet of " + length + " bytes exceeds the maximal ALAC frame size");
+
+		packet.get(alacBytes, 0, length);
+
+		if (decryptionHandler != null)
+			decryptionHandler.decrypt(alacBytes, length);
+
+		final int frames = alacDecodeHandler.decodeFrame(alacBytes, pcmSamples);
+
+		/* The ALAC decode emits signed PCM samples as integers */
+		final int samplesLength = frames * alacDecodeHandler.getChannels();
+		for(int i=0; i < samplesLength; ++i)
+			samples.put(i, (short)pcmSamples[i]);
+
+		return samplesLength;
+	}
+}
@@ -22,6 +22,8 @@ import java.util.logging.Logger;
 
 import com.raventech.airplayserver.audio.AudioStreamInformationProvider;
 import com.raventech.airplayserver.audio.AudioClock;
+import com.raventech.airplayserver.audio.FixedPointTime;
+import com.raventech.airplayserver.network.ClockDiscipline;
 
 import com.raventech.airplayserver.network.raop.RaopRtpPacket;
 import org.jboss.netty.channel.Channel;
@@ -52,6 +54,17 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 */
 	private static final int RetransmitAttempts = 2;
 
+	/**
+	 * Once the round-trip time is known, a packet is re-requested if it
+	 * didn't arrive within this multiple of the round-trip time...
+	 */
+	private static final double RetransmitRoundTripTimes = 2.0;
+
+	/**
+	 * ...but never sooner than this many seconds, to allow for reordering
+	 */
+	private static final double RetransmitMinimumWait = 0.01;
+
 	/**
 	 * Represents a missing packet
 	 */
@@ -67,9 +80,9 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 		public final long requiredUntilFrameTime;
 		
 		/**
-		 * Packet must be placed on the audio output queue no later than this seconds time
+		 * Packet must be placed on the audio output queue no later than this NTP time
 		 */
-		public final double requiredUntilSecondsTime;
+		public final long requiredUntilNtpTime;
 		
 		/**
 		 * Number of retransmit requests already sent for the packet
@@ -77,40 +90,49 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 		public int retransmitRequestCount = 0;
 		
 		/**
-		 * Packet expected to arrive until this seconds time. If not, a retransmit request
+		 * Packet expected to arrive until this NTP time. If not, a retransmit request
 		 * is sent.
 		 */
-		public double expectedUntilSecondsTime;
+		public long expectedUntilNtpTime;
 
 		/**
 		 * Creates a MissingPacket instance for a given sequence, using the provided
 		 * time to compute the times at which the packet is expected.
 		 * 
 		 * @param _sequence sequence number
-		 * @param nextSecondsTime next possible play back time
+		 * @param nextNtpTime next possible play back time
 		 */
-		public MissingPacket(final int _sequence, final double nextSecondsTime) {
+		public MissingPacket(final int _sequence, final long nextNtpTime) {
 			sequence = _sequence;
 			requiredUntilFrameTime = convertSequenceToFrameTime(_sequence);
-			requiredUntilSecondsTime = m_audioClock.convertFrameToSecondsTime(requiredUntilFrameTime);
-			computeExpectedUntil(nextSecondsTime);
+			requiredUntilNtpTime = m_audioClock.convertFrameToNtpTime(requiredUntilFrameTime);
+			computeExpectedUntil(nextNtpTime);
 		}
 
 		/**
 		 * Updates the state after a retransmit request has been sent.
-		 * @param nextSecondsTime next possible play back time
+		 * @param nextNtpTime next possible play back time
 		 */
-		public void sentRetransmitRequest(final double nextSecondsTime) {
+		public void sentRetransmitRequest(final long nextNtpTime) {
 			++retransmitRequestCount;
-			computeExpectedUntil(nextSecondsTime);
+			computeExpectedUntil(nextNtpTime);
 		}
 
 		/**
 		 * Updates the time until which we expect the packet to arrive.
-		 * @param nextSecondsTime next possible play back time
+		 * @param nextNtpTime next possible play back time
 		 */
-		private void computeExpectedUntil(final double nextSecondsTimee) {
-			expectedUntilSecondsTime = 0.5 * nextSecondsTimee + 0.5 * m_audioClock.convertFrameToSecondsTime(requiredUntilFrameTime);
+		private void computeExpectedUntil(final long nextNtpTime) {
+			/* Without further information, wait for half the time left */
+			long wait = (m_audioClock.convertFrameToNtpTime(requiredUntilFrameTime) - nextNtpTime) / 2;
+
+			/* If the source's clock is locked, its round-trip time tells how long a
+			 * response takes, which leaves time for further attempts
+			 */
+			if (m_clockDiscipline.isLocked())
+				wait = Math.min(wait, FixedPointTime.fromSeconds(Math.max(RetransmitMinimumWait, RetransmitRoundTripTimes * m_clockDiscipline.getRoundTripTime())));
+
+			expectedUntilNtpTime = nextNtpTime + wait;
 		}
 	}
 
@@ -118,6 +140,11 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * Time source
 	 */
 	private final AudioClock m_audioClock;
+
+	/**
+	 * Estimate of the source's clock, provides the round-trip time
+	 */
+	private final ClockDiscipline m_clockDiscipline;
 	
 	/**
 	 * Frames per packet. Used to interpolate the
@@ -139,16 +166,43 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	/**
 	 * List of in-flight retransmit requests
 	 */
-	private static final List<MissingPacket> m_missingPackets = new java.util.LinkedList<MissingPacket>();
+	private final List<MissingPacket> m_missingPackets = new java.util.LinkedList<MissingPacket>();
 
 	/**
 	 * Header sequence number for retransmit requests
 	 */
 	private int m_retransmitRequestSequence = 0;
 
-	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock) {
+	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock, final ClockDiscipline clockDiscipline) {
 		m_framesPerPacket = streamInfoProvider.getFramesPerPacket();
 		m_audioClock = audioClock;
+		m_clockDiscipline = clockDiscipline;
+	}
+
+	/**
+	 * Forgets all in-flight retransmit requests, e.g. after the source
+	 * flushed its stream without telling where it resumes
+	 */
+	public synchronized void flush() {
+		s_logger.info("Stream flushed, forgetting " + m_missingPackets.size() + " in-flight retransmit requests");
+
+		m_missingPackets.clear();
+	}
+
+	/**
+	 * Forgets all in-flight retransmit requests and expects the stream to resume
+	 * with the given packet. Packets before it are neither requested again nor
+	 * considered missing if they arrive late.
+	 *
+	 * @param sequence sequence number of the first packet after the flush
+	 * @param frameTime RTP frame time of the first packet after the flush
+	 */
+	public synchronized void flush(final int sequence, final long frameTime) {
+		s_logger.info("Stream flushed up to packet " + sequence + ", forgetting " + m_missingPackets.size() + " in-flight retransmit requests");
+
+		m_missingPackets.clear();
+		m_latestReceivedSequence = sequencePredecessor(sequence);
+		m_latestReceivedSequenceFrameTime = frameTime - m_framesPerPacket;
 	}
 
 	/**
@@ -156,14 +210,14 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * in-flight retransmit requests.
 	 * 
 	 * @param sequence sequence number of packet
-	 * @param nextSecondsTime next possible play back time
+	 * @param nextNtpTime next possible play back time
 	 */
-	private void markRetransmitted(final int sequence, final double nextSecondsTimee) {
+	private void markRetransmitted(final int sequence, final long nextNtpTime) {
 		final Iterator<MissingPacket> i = m_missingPackets.iterator();
 		while (i.hasNext()) {
 			final MissingPacket missingPacket = i.next();
 			if (missingPacket.sequence == sequence) {
-				s_logger.fine("Packet " + sequence + " arrived " + (missingPacket.expectedUntilSecondsTime - nextSecondsTimee) + " seconds before it was due");
+				s_logger.fine("Packet " + sequence + " arrived " + FixedPointTime.toSeconds(missingPacket.expectedUntilNtpTime - nextNtpTime) + " seconds before it was due");
 				i.remove();
 			}
 		}
@@ -174,18 +228,18 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * in-flight retransmit requests.
 	 * 
 	 * @param sequence sequence number of packet
-	 * @param nextSecondsTime next possible play back time
+	 * @param nextNtpTime next possible play back time
 	 */
-	private void markMissing(final int sequence, final double nextSecondsTime) {
+	private void markMissing(final int sequence, final long nextNtpTime) {
 		/* Add packet to list of in-flight retransmit requests */
-		final MissingPacket missingPacket = new MissingPacket(sequence, nextSecondsTime);
-		if (missingPacket.requiredUntilSecondsTime > nextSecondsTime) {
-			s_logger.fine("Packet " + sequence + " expected to arive in " + (missingPacket.expectedUntilSecondsTime - nextSecondsTime) + " seconds");
+		final MissingPacket missingPacket = new MissingPacket(sequence, nextNtpTime);
+		if (missingPacket.requiredUntilNtpTime - nextNtpTime > 0) {
+			s_logger.fine("Packet " + sequence + " expected to arive in " + FixedPointTime.toSeconds(missingPacket.expectedUntilNtpTime - nextNtpTime) + " seconds");
 
 			m_missingPackets.add(missingPacket);
 		}
 		else {
-			s_logger.warning("Packet " + sequence + " was required " + (nextSecondsTime - missingPacket.expectedUntilSecondsTime ) + " seconds ago, not requesting retransmit");
+			s_logger.warning("Packet " + sequence + " was required " + FixedPointTime.toSeconds(nextNtpTime - missingPacket.expectedUntilNtpTime) + " seconds ago, not requesting retransmit");
 		}
 
 		/* Forget about old missing packets if we exceeded the number
@@ -205,9 +259,9 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * at which we expected the packet to arrive
 	 * 
 	 * @param channel channel used to send retransmit requests
-	 * @param nextSecondsTime
+	 * @param nextNtpTime
 	 */
-	private synchronized void requestRetransmits(final Channel channel, final double nextSecondsTime) {
+	private synchronized void requestRetransmits(final Channel channel, final long nextNtpTime) {
 		/* The retransmit request we're currently building */
 		RaopRtpPacket.RetransmitRequest retransmitRequest = null;
 
@@ -219,8 +273,8 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			/* If it's past the time at which the packet would have needed to be queued,
 			 * warn and forget about it
 			 */
-			if (missingPacket.requiredUntilSecondsTime <= nextSecondsTime) {
-				s_logger.warning("Packet " + missingPacket.sequence + " was required " + (nextSecondsTime - missingPacket.requiredUntilSecondsTime) + " secons ago, giving up");
+			if (missingPacket.requiredUntilNtpTime - nextNtpTime <= 0) {
+				s_logger.warning("Packet " + missingPacket.sequence + " was required " + FixedPointTime.toSeconds(nextNtpTime - missingPacket.requiredUntilNtpTime) + " secons ago, giving up");
 
 				missingPacketIterator.remove();
 				continue;
@@ -228,7 +282,7 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 
 			/* If the packet isn't expected until later,
 			 * skip it for now */
-			if (missingPacket.expectedUntilSecondsTime > nextSecondsTime)
+			if (missingPacket.expectedUntilNtpTime - nextNtpTime > 0)
 				continue;
 
 			/* Ok, the packet is overdue */
@@ -236,7 +290,7 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			if (missingPacket.retransmitRequestCount >= RetransmitAttempts) {
 				/* If the packet was already requests too often,
 				 * warn and forget about it */
-				s_logger.warning("Packet " + missingPacket.sequence + " overdue " + (nextSecondsTime - missingPacket.expectedUntilSecondsTime) + " seconds after " + missingPacket.retransmitRequestCount + " retransmit requests, giving up");
+				s_logger.warning("Packet " + missingPacket.sequence + " overdue " + FixedPointTime.toSeconds(nextNtpTime - missingPacket.expectedUntilNtpTime) + " seconds after " + missingPacket.retransmitRequestCount + " retransmit requests, giving up");
 
 				missingPacketIterator.remove();
 				continue;
@@ -244,10 +298,10 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			else {
 				/* Log that we're about to request retransmission */
 				final int retransmitRequestCountPrevious = missingPacket.retransmitRequestCount;
-				final double expectedUntilSecondsTimePrevious = missingPacket.expectedUntilSecondsTime;
-				missingPacket.sentRetransmitRequest(nextSecondsTime);
+				final long expectedUntilNtpTimePrevious = missingPacket.expectedUntilNtpTime;
+				missingPacket.sentRetransmitRequest(nextNtpTime);
 
-				s_logger.fine("Packet " + missingPacket.sequence + " overdue " + (nextSecondsTime - expectedUntilSecondsTimePrevious) + " seconds after " + retransmitRequestCountPrevious + " retransmit requests, requesting again expecting response in " + (missingPacket.expectedUntilSecondsTime - nextSecondsTime) + " seconds");
+				s_logger.fine("Packet " + missingPacket.sequence + " overdue " + FixedPointTime.toSeconds(nextNtpTime - expectedUntilNtpTimePrevious) + " seconds after " + retransmitRequestCountPrevious + " retransmit requests, requesting again expecting response in " + FixedPointTime.toSeconds(missingPacket.expectedUntilNtpTime - nextNtpTime) + " seconds");
 			}
 
 			/* Ok, really request re-transmission */
@@ -298,24 +352,24 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 		super.messageReceived(ctx, evt);
 
 		/* Request retransmits if necessary */
-		requestRetransmits(ctx.getChannel(), m_audioClock.getNextSecondsTime());
+		requestRetransmits(ctx.getChannel(), m_audioClock.getNextNtpTime());
 	}
 
 	private synchronized void audioRetransmitReceived(final ChannelHandlerContext ctx, final RaopRtpPacket.AudioRetransmit audioPacket) {
-		final double nextSecondsTime = m_audioClock.getNextSecondsTime();
+		final long nextNtpTime = m_audioClock.getNextNtpTime();
 
 		/* Mark packet as retransmitted */
-		markRetransmitted(audioPacket.getOriginalSequence(), nextSecondsTime);
+		markRetransmitted(audioPacket.getOriginalSequence(), nextNtpTime);
 	}
 
 	private synchronized void audioTransmitReceived(final ChannelHandlerContext ctx, final RaopRtpPacket.AudioTransmit audioPacket) {
-		final double nextSecondsTime = m_audioClock.getNextSecondsTime();
+		final long nextNtpTime = m_audioClock.getNextNtpTime();
 
 		/* Mark packet as retransmitted.
 		 * Doing this here prevents sending out further retransmit requests for packets
 		 * which simply were delayed
 		 */
-		markRetransmitted(audioPacket.getSequence(), nextSecondsTime);
+		markRetransmitted(audioPacket.getSequence(), nextNtpTime);
 
 		/* Compute delta between the last and the current Sequence */
 		final long delta;
@@ -341,7 +395,7 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			s_logger.fine("Packet sequence number increased by " + delta + ", " + (delta-1) + " packet(s) missing,");
 
 			for(int s = expectedSequence; s != audioPacket.getSequence(); s = sequenceSuccessor(s))
-				markMissing(s, nextSecondsTime);
+				markMissing(s, nextNtpTime);
 		}
 		else if (delta < 0) {
 			/* Delayed packet */
@@ -423,7 +477,6 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * @param seq sequence
 	 * @return predecessor of sequence
 	 */
-	@SuppressWarnings("unused")
 	private static int sequencePredecessor(final int seq) {
 		return sequenceAdd(seq, -1);
 	}
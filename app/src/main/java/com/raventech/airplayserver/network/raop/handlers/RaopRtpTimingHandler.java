@@ -17,6 +17,10 @@
 
 package com.raventech.airplayserver.network.raop.handlers;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.raventech.airplayserver.network.raop.RaopRtpPacket;
@@ -28,25 +32,49 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import com.raventech.airplayserver.audio.AudioClock;
-import com.raventech.airplayserver.network.RunningExponentialAverage;
+import com.raventech.airplayserver.audio.FixedPointTime;
+import com.raventech.airplayserver.audio.PlayoutSettings;
+import com.raventech.airplayserver.network.ClockDiscipline;
 
 /**
  * Handles RTP timing.
  * <p>
- * Keeps track of the offset between the local audio clock and the remote clock,
- * and uses the information to re-sync the audio output queue upon receiving a
- * sync packet.
+ * Keeps track of the offset between the local audio clock and the remote clock
+ * using a {@link ClockDiscipline}, and uses the information to re-sync the audio
+ * output queue upon receiving a sync packet.
  */
 public class RaopRtpTimingHandler extends SimpleChannelHandler {
 	private static Logger LOG = Logger.getLogger(RaopRtpTimingHandler.class.getName());
 
 	/**
-	 * Number of seconds between {@link TimingRequest}s.
+	 * Number of seconds between {@link TimingRequest}s until the clock is locked...
+	 */
+	public static final double TIME_REQUEST_INTERVAL_BURST = 0.25;
+
+	/**
+	 * ...but at most this many in a row. A source which never lets the clock
+	 * lock gets the slower schedule below, and a new burst once it did lock
+	 */
+	public static final int TIME_REQUEST_BURST_COUNT = 16;
+
+	/**
+	 * Number of seconds between {@link TimingRequest}s after the burst.
+	 * The interval doubles with every request...
 	 */
 	public static final double TIME_REQUEST_INTERVAL = 3;
 
 	/**
-	 * Thread which sends out {@link TimingRequests}s.
+	 * ...up to this number of seconds
+	 */
+	public static final double TIME_REQUEST_INTERVAL_MAX = 24;
+
+	/**
+	 * Number of seconds after which a {@link TimingRequest} is considered lost
+	 */
+	public static final double TIME_RESPONSE_ROUND_TRIP_MAX = 1;
+
+	/**
+	 * Sends out a {@link TimingRequest} and schedules itself again.
 	 */
 	private class TimingRequester implements Runnable {
 		private final Channel channel;
@@ -57,23 +85,20 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 
 		@Override
 		public void run() {
-			while ( ! Thread.currentThread().isInterrupted() ) {
-				final TimingRequest timingRequestPacket = new TimingRequest();
-				
-				timingRequestPacket.getReceivedTime().setDouble(0); /* Set by the source */
-				timingRequestPacket.getReferenceTime().setDouble(0); /* Set by the source */
-				timingRequestPacket.getSendTime().setDouble(audioClock.getNowSecondsTime());
-
-				LOG.info("sending timingRequestPacket: " + timingRequestPacket);
-				
-				channel.write(timingRequestPacket);
-				try {
-					Thread.sleep(Math.round(TIME_REQUEST_INTERVAL * 1000));
-				}
-				catch (final InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
-			}
+			if ( ! channel.isOpen() )
+				return;
+
+			final TimingRequest timingRequestPacket = new TimingRequest();
+			
+			timingRequestPacket.getReceivedTime().setFixedPoint(0); /* Set by the source */
+			timingRequestPacket.getReferenceTime().setFixedPoint(0); /* Set by the source */
+			timingRequestPacket.getSendTime().setFixedPoint(audioClock.getNowNtpTime());
+
+			LOG.fine("sending timingRequestPacket: " + timingRequestPacket);
+			
+			channel.write(timingRequestPacket);
+
+			scheduleTimingRequest(this, nextTimeRequestInterval());
 		}
 	}
 
@@ -81,44 +106,74 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 	 * Audio time source
 	 */
 	private final AudioClock audioClock;
-	
+
 	/**
-	 * Exponential averager used to smooth the remote seconds offset
+	 * Latency target in frames, or {@link PlayoutSettings#SOURCE_LATENCY} to use the source's latency
 	 */
-	private final RunningExponentialAverage averageRemoteSecondsOffset = new RunningExponentialAverage();
+	private final long latencyFrames;
 	
 	/**
-	 * The {@link TimingRequester} thread.
+	 * Estimates the source's clock offset and frequency
 	 */
-	private Thread synchronizationThread;
+	private final ClockDiscipline clockDiscipline = new ClockDiscipline();
+
+	/**
+	 * Executor shared by the timing handlers of all sessions
+	 */
+	private final ScheduledExecutorService timingExecutorService;
+
+	/**
+	 * The timing channel, set once the channel is open
+	 */
+	private Channel channel;
+
+	/**
+	 * The next scheduled {@link TimingRequester} run
+	 */
+	private ScheduledFuture<?> timingRequestFuture;
+
+	/**
+	 * Current interval between timing requests after the burst
+	 */
+	private double timeRequestInterval = TIME_REQUEST_INTERVAL;
+
+	/**
+	 * Timing requests left in the current burst
+	 */
+	private int burstTimeRequestsLeft = TIME_REQUEST_BURST_COUNT;
 
 	private boolean started = false;
+
+	private boolean closed = false;
 	
-	public RaopRtpTimingHandler(final AudioClock audioClock) {
+	/**
+	 * Creates a timing handler
+	 *
+	 * @param audioClock audio time source
+	 * @param latencyFrames latency target in frames, or {@link PlayoutSettings#SOURCE_LATENCY} to use the latency announced in the sync packets
+	 * @param timingExecutorService executor which sends the timing requests
+	 */
+	public RaopRtpTimingHandler(final AudioClock audioClock, final long latencyFrames, final ScheduledExecutorService timingExecutorService) {
 		this.audioClock = audioClock;
+		this.latencyFrames = latencyFrames;
+		this.timingExecutorService = timingExecutorService;
 	}
 
 	@Override
 	public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent evt) throws Exception {
-		
-		channelClosed(ctx, evt);
-
-		/* create synchronization thread if it isn't already running */
-		if (synchronizationThread == null) {
-			synchronizationThread = new Thread(new TimingRequester(ctx.getChannel()));
-			synchronizationThread.setDaemon(true);
-			synchronizationThread.setName("Time Synchronizer");
+		synchronized(this) {
+			channel = ctx.getChannel();
 		}
 		
 		super.channelOpen(ctx, evt);
 	}
 	
 	public synchronized void startTimeSync(){
-		/* Start synchronization thread if it isn't already running */
-		if (synchronizationThread != null && ! started) {
-			synchronizationThread.start();
-			LOG.info("Time synchronizer started");
+		/* Start sending timing requests if we aren't already */
+		if ((channel != null) && ! started && ! closed) {
 			started = true;
+			scheduleTimingRequest(new TimingRequester(channel), 0);
+			LOG.info("Time synchronizer started");
 		}
 	}
 
@@ -127,8 +182,42 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 		throws Exception
 	{
 		synchronized(this) {
-			if (synchronizationThread != null)
-				synchronizationThread.interrupt();
+			closed = true;
+			if (timingRequestFuture != null)
+				timingRequestFuture.cancel(false);
+		}
+
+		super.channelClosed(ctx, evt);
+	}
+
+	/**
+	 * Returns the number of seconds until the next timing request. Requests are
+	 * sent in a short burst until the clock is locked, and then ever more slowly
+	 */
+	private synchronized double nextTimeRequestInterval() {
+		if (clockDiscipline.isLocked()) {
+			burstTimeRequestsLeft = TIME_REQUEST_BURST_COUNT;
+		}
+		else if (burstTimeRequestsLeft > 0) {
+			--burstTimeRequestsLeft;
+			timeRequestInterval = TIME_REQUEST_INTERVAL;
+			return TIME_REQUEST_INTERVAL_BURST;
+		}
+
+		final double interval = timeRequestInterval;
+		timeRequestInterval = Math.min(2.0 * timeRequestInterval, TIME_REQUEST_INTERVAL_MAX);
+		return interval;
+	}
+
+	private synchronized void scheduleTimingRequest(final TimingRequester timingRequester, final double delaySeconds) {
+		if (closed)
+			return;
+
+		try {
+			timingRequestFuture = timingExecutorService.schedule(timingRequester, Math.round(delaySeconds * 1e6), TimeUnit.MICROSECONDS);
+		}
+		catch (final RejectedExecutionException e) {
+			LOG.warning("Timing executor shut down, no longer sending timing requests");
 		}
 	}
 
@@ -146,80 +235,79 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 		super.messageReceived(ctx, evt);
 	}
 
-	private synchronized void timingResponseReceived(final RaopRtpPacket.TimingResponse timingResponsePacket) {
-		final double localReceiveSecondsTime = audioClock.getNowSecondsTime();
+	private void timingResponseReceived(final RaopRtpPacket.TimingResponse timingResponsePacket) {
+		final long localReceiveNtpTime = audioClock.getNowNtpTime();
 
-		/* Compute remove seconds offset, assuming that the transmission times of
-		 * the timing requests and the timing response are equal
+		/* The reference time is our send time, echoed by the source. Responses
+		 * claiming to answer requests we didn't send lately are ignored. NTP times
+		 * are compared by their difference, they're negative as signed longs
 		 */
-		final double localSecondsTime = localReceiveSecondsTime * 0.5 + timingResponsePacket.getReferenceTime().getDouble() * 0.5;
-		
-		final double remoteSecondsTime = timingResponsePacket.getReceivedTime().getDouble() * 0.5 + timingResponsePacket.getSendTime().getDouble() * 0.5;
-		
-		final double remoteSecondsOffset = remoteSecondsTime - localSecondsTime;
-
-		/*
-		 * Compute the overall transmission time, and use that to compute
-		 * a weight of the remoteSecondsOffset we just computed. The idea
-		 * here is that the quality of the estimate depends on the difference
-		 * between the transmission times of request and response. We cannot
-		 * measure those independently, but since they're obviously bound
-		 * by the total transmission time (request + response), which we
-		 * <b>can</b> measure, we can use that to judge the quality.
-		 * 
-		 * The constants are picked such that the weight is never larger than
-		 * 1e-3, and starts to decrease rapidly for transmission times significantly
-		 * larger than 1ms.
-		 */
-		final double localInterval = localReceiveSecondsTime - timingResponsePacket.getReferenceTime().getDouble();
-		
-		final double remoteInterval = timingResponsePacket.getSendTime().getDouble() - timingResponsePacket.getReceivedTime().getDouble();
-		
-		final double transmissionTime = Math.max(localInterval - remoteInterval, 0);
-		
-		final double weight = 1e-6 / (transmissionTime + 1e-3);
+		final long localSendNtpTime = timingResponsePacket.getReferenceTime().getFixedPoint();
+		final long roundTripTime = localReceiveNtpTime - localSendNtpTime;
+		if ((roundTripTime < 0) || (roundTripTime > FixedPointTime.fromSeconds(TIME_RESPONSE_ROUND_TRIP_MAX))) {
+			LOG.warning("Timing response with a round-trip time of " + FixedPointTime.toSeconds(roundTripTime) + " seconds ignored");
+			return;
+		}
 
-		/* Update exponential average */
-		final double remoteSecondsOffsetPrevious = ( ! averageRemoteSecondsOffset.isEmpty() ? averageRemoteSecondsOffset.get() : 0.0);
-		averageRemoteSecondsOffset.add(remoteSecondsOffset, weight);
-		
-		final double secondsTimeAdjustment = averageRemoteSecondsOffset.get() - remoteSecondsOffsetPrevious;
+		final boolean updated = clockDiscipline.update(
+			localSendNtpTime,
+			timingResponsePacket.getReceivedTime().getFixedPoint(),
+			timingResponsePacket.getSendTime().getFixedPoint(),
+			localReceiveNtpTime
+		);
 
-		LOG.info("Timing response with weight " + weight + " indicated offset " + remoteSecondsOffset + " thereby adjusting the averaged offset by " + secondsTimeAdjustment + " leading to the new averaged offset " + averageRemoteSecondsOffset.get());
+		LOG.info("Timing response " + (updated ? "updated" : "did not update") + " the clock discipline, now at " + clockDiscipline);
 	}
 
-	private synchronized void syncReceived(final RaopRtpPacket.Sync syncPacket) {
+	private void syncReceived(final RaopRtpPacket.Sync syncPacket) {
 		LOG.info("sync received : " + syncPacket);
-		if ( ! averageRemoteSecondsOffset.isEmpty() ) {
+
+		final long syncNtpTime;
+		if ( ! clockDiscipline.isEmpty() ) {
 			/* If the times are synchronized, we can correct for the transmission
 			 * time of the sync packet since it contains the time it was sent as
 			 * a source's NTP time.
 			 */
-			audioClock.setFrameTime(
-				syncPacket.getTimeStampMinusLatency(),
-				convertRemoteToLocalSecondsTime(syncPacket.getTime().getDouble())
-			);
+			syncNtpTime = convertRemoteToLocalNtpTime(syncPacket.getTime().getFixedPoint());
 		}
 		else {
 			/* If the times aren't yet synchronized, we simply assume the sync
 			 * packet's transmission time is zero.
 			 */
-			audioClock.setFrameTime(
-				syncPacket.getTimeStampMinusLatency(),
-				0.0
-			);
-			LOG.warning("Times synchronized, cannot correct latency of sync packet");
+			syncNtpTime = audioClock.getNowNtpTime();
+			LOG.warning("Times not yet synchronized, cannot correct latency of sync packet");
 		}
+
+		/* The frame due now is the frame the source sends now, minus the latency.
+		 * A latency target replaces the source's latency
+		 */
+		final long frameTime =
+			(latencyFrames != PlayoutSettings.SOURCE_LATENCY) ?
+			syncPacket.getTimeStamp() - latencyFrames :
+			syncPacket.getTimeStampMinusLatency();
+
+		audioClock.setFrameTime(frameTime, syncNtpTime);
+		audioClock.setSourceFrameTime(syncPacket.getTimeStamp(), syncNtpTime);
+	}
+
+	/**
+	 * Returns the estimate of the source's clock. Its confidence tells how
+	 * far the playback times derived from it can be trusted
+	 *
+	 * @return clock discipline
+	 */
+	public ClockDiscipline getClockDiscipline() {
+		return clockDiscipline;
 	}
 
 	/**
-	 * Convert remote NTP time (in seconds) to local NTP time (in seconds),
-	 * using the offset obtain from the TimingRequest/TimingResponse packets.
+	 * Convert remote NTP time to local NTP time, using the offset
+	 * obtained from the TimingRequest/TimingResponse packets.
 	 * 
-	 * @param remoteSecondsTime remote NTP time
+	 * @param remoteNtpTime remote NTP time
 	 * @return local NTP time
 	 */
-	private double convertRemoteToLocalSecondsTime(final double remoteSecondsTime) {
-		return remoteSecondsTime - averageRemoteSecondsOffset.get();
+	private long convertRemoteToLocalNtpTime(final long remoteNtpTime) {
+		return clockDiscipline.convertRemoteToLocal(remoteNtpTime);
 	}
 }
@@ -17,6 +17,7 @@
 
 package com.raventech.airplayserver.network.raop.handlers;
 
+import com.raventech.airplayserver.audio.PlayoutSettings;
 import com.raventech.airplayserver.network.ProtocolException;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
@@ -31,13 +32,24 @@ public class RaopRtspHeaderHandler extends SimpleChannelHandler
 	private static final String HeaderAudioJackStatus = "Audio-Jack-Status";
 	private static final String HeaderAudioJackStatusDefault = "connected; type=analog";
 
-	/*
 	private static final String HeaderAudioLatency = "Audio-Latency";
-	private static final long   HeaderAudioLatencyFrames = 88400;
-	*/
+
+	/**
+	 * Sample rate the latency is advertised in, i.e. the one announced via mDNS
+	 */
+	private static final double HeaderAudioLatencySampleRate = 44100;
+
+	/**
+	 * The session's playout settings, which determine the advertised latency
+	 */
+	private final PlayoutSettings m_playoutSettings;
 
 	private String m_cseq;
 
+	public RaopRtspHeaderHandler(final PlayoutSettings playoutSettings) {
+		m_playoutSettings = playoutSettings;
+	}
+
 	@Override
 	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
 		throws Exception
@@ -67,7 +79,11 @@ public class RaopRtspHeaderHandler extends SimpleChannelHandler
 				resp.setHeader(HeaderCSeq, m_cseq);
 
 			resp.setHeader(HeaderAudioJackStatus, HeaderAudioJackStatusDefault);
-			//resp.setHeader(HeaderAudioLatency, Long.toString(HeaderAudioLatencyFrames));
+
+			/* Without a latency target we play at the source's latency and have nothing to add */
+			final long latencyFrames = m_playoutSettings.getLatencyFrames(HeaderAudioLatencySampleRate);
+			if (latencyFrames != PlayoutSettings.SOURCE_LATENCY)
+				resp.setHeader(HeaderAudioLatency, Long.toString(latencyFrames));
 		}
 
 		super.writeRequested(ctx, evt);
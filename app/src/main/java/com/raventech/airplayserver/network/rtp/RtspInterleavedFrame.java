@@ -0,0 +1,55 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.rtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Binary data interleaved with the RTSP messages on an RTSP connection
+ * (RFC 2326, section 10.12), usually an RTP packet.
+ */
+public class RtspInterleavedFrame {
+	private final int channel;
+
+	private final ChannelBuffer data;
+
+	public RtspInterleavedFrame(final int channel, final ChannelBuffer data) {
+		this.channel = channel;
+		this.data = data;
+	}
+
+	/**
+	 * Returns the interleaved channel the data belongs to, as negotiated
+	 * by the {@code interleaved} option of the {@code Transport} header
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the frame's data
+	 */
+	public ChannelBuffer getData() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return "interleaved frame on channel " + channel + " with " + data.readableBytes() + " bytes";
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.rtp;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+import com.raventech.airplayserver.network.ProtocolException;
+
+/**
+ * Splits an RTSP connection's byte stream into RTSP messages and
+ * interleaved binary data (RFC 2326, section 10.12).
+ * <p>
+ * Interleaved data starts with a '$', followed by the channel and the
+ * data's length as a 16-bit big-endian integer. It's emitted as an
+ * {@link RtspInterleavedFrame}. Everything else is an RTSP message,
+ * which is emitted as a {@link ChannelBuffer} holding exactly one message
+ * for the RTSP decoder further upstream. Since the decoder only ever sees
+ * whole messages, a '$' within a message's body is never mistaken for
+ * interleaved data.
+ */
+public class RtspInterleavedFrameDecoder extends FrameDecoder {
+	private static final byte INTERLEAVED_MAGIC = '$';
+
+	private static final int INTERLEAVED_HEADER_BYTES = 4;
+
+	/**
+	 * Limits of an RTSP message's initial line and headers, and of its content,
+	 * as enforced by the RTSP decoder
+	 */
+	private static final int MESSAGE_HEADERS_MAX_BYTES = 4096 + 8192;
+	private static final int MESSAGE_CONTENT_MAX_BYTES = 8192;
+
+	private static final String HEADER_CONTENT_LENGTH = "content-length:";
+
+	private static final Charset ASCII = Charset.forName("ASCII");
+
+	/**
+	 * Progress on the RTSP message at the start of the buffer, kept between
+	 * calls so that a message arriving in pieces isn't scanned and parsed
+	 * over and over. Offsets are relative to the message's start
+	 */
+	private int headersScanned = 0;
+	private int headersLength = -1;
+	private int contentLength = 0;
+
+	@Override
+	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer buffer) throws Exception {
+		final int start = buffer.readerIndex();
+		if (buffer.readableBytes() < 1)
+			return null;
+
+		if (buffer.getByte(start) == INTERLEAVED_MAGIC) {
+			if (buffer.readableBytes() < INTERLEAVED_HEADER_BYTES)
+				return null;
+
+			final int interleavedChannel = buffer.getUnsignedByte(start + 1);
+			final int length = buffer.getUnsignedShort(start + 2);
+			if (buffer.readableBytes() < INTERLEAVED_HEADER_BYTES + length)
+				return null;
+
+			buffer.skipBytes(INTERLEAVED_HEADER_BYTES);
+			return new RtspInterleavedFrame(interleavedChannel, buffer.readBytes(length));
+		}
+
+		/* An RTSP message. Wait for the blank line ending its headers */
+		if (headersLength < 0) {
+			headersLength = findHeadersEnd(buffer, start);
+			if (headersLength < 0) {
+				if (buffer.readableBytes() > MESSAGE_HEADERS_MAX_BYTES)
+					throw new TooLongFrameException("RTSP message headers are larger than " + MESSAGE_HEADERS_MAX_BYTES + " bytes");
+				return null;
+			}
+
+			contentLength = getContentLength(buffer.toString(start, headersLength, ASCII));
+			if (contentLength > MESSAGE_CONTENT_MAX_BYTES)
+				throw new TooLongFrameException("RTSP message content is larger than " + MESSAGE_CONTENT_MAX_BYTES + " bytes");
+		}
+
+		/* ...and for its content */
+		if (buffer.readableBytes() < headersLength + contentLength)
+			return null;
+
+		final ChannelBuffer message = buffer.readBytes(headersLength + contentLength);
+		headersScanned = 0;
+		headersLength = -1;
+		contentLength = 0;
+		return message;
+	}
+
+	/**
+	 * Returns the length of the initial line and headers including the
+	 * terminating blank line, or -1 if they're incomplete. Resumes the
+	 * scan where the previous call for the same message stopped
+	 */
+	private int findHeadersEnd(final ChannelBuffer buffer, final int start) {
+		final int end = buffer.writerIndex();
+		for(int i = start + headersScanned; i < end; ++i) {
+			if (buffer.getByte(i) != '\n')
+				continue;
+
+			/* A line feed followed by an optional carriage return and another line feed */
+			if ((i + 1 < end) && (buffer.getByte(i + 1) == '\n'))
+				return i + 2 - start;
+			if ((i + 2 < end) && (buffer.getByte(i + 1) == '\r') && (buffer.getByte(i + 2) == '\n'))
+				return i + 3 - start;
+		}
+
+		/* The blank line may start within the last two bytes, so they're scanned again */
+		headersScanned = Math.max(0, end - start - 2);
+		return -1;
+	}
+
+	/**
+	 * Returns the value of the Content-Length header, or zero if there's none
+	 */
+	private static int getContentLength(final String headers) throws ProtocolException {
+		for(final String line: headers.split("\n")) {
+			if (line.regionMatches(true, 0, HEADER_CONTENT_LENGTH, 0, HEADER_CONTENT_LENGTH.length())) {
+				try {
+					return Math.max(0, Integer.parseInt(line.substring(HEADER_CONTENT_LENGTH.length()).trim()));
+				}
+				catch (final NumberFormatException e) {
+					throw new ProtocolException("Invalid Content-Length header " + line.trim());
+				}
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import static com.raventech.airplayserver.audio.AudioTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Plays streams through an {@link AudioOutputQueue} into a {@link MemoryAudioSink},
+ * and checks what reaches the sink and when it's played
+ */
+public class AudioOutputQueueTest {
+	/**
+	 * Packets of the test stream, about half a second
+	 */
+	private static final int PACKETS = 64;
+
+	/**
+	 * Time between the first packet's arrival and its playback
+	 */
+	private static final double LEAD_SECONDS = 0.3;
+
+	/**
+	 * Largest deviation of the playback time from the due time. The queue corrects
+	 * errors below one packet by resampling gradually, so the initial error may be that large
+	 */
+	private static final double TIMING_TOLERANCE_SECONDS = 0.015;
+
+	/**
+	 * Largest difference between the times different queues' packets are heard.
+	 * The queues align the first packet to their estimate of the sink's playback
+	 * position, which is off by up to about a millisecond on a busy host
+	 */
+	private static final double ALIGNMENT_TOLERANCE_SECONDS = 0.002;
+
+	/**
+	 * Time between the starts of queues which play in unison
+	 */
+	private static final double QUEUE_START_INTERVAL_SECONDS = 0.037;
+
+	/**
+	 * Runs shorter than this are ramps or packet boundaries
+	 */
+	private static final int MIN_RUN_FRAMES = FRAMES_PER_PACKET / 2;
+
+	/**
+	 * First packet which isn't affected by the gain ramp at the start of playback
+	 */
+	private static final int FIRST_UNRAMPED_PACKET = (int)Math.ceil(GainProcessor.DEFAULT_RAMP_SECONDS * SAMPLE_RATE / FRAMES_PER_PACKET) + 1;
+
+	@Test
+	public void playsPacketsInOrderWhenDue() throws Exception {
+		final MemorySinkFactory sinkFactory = new MemorySinkFactory();
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, sinkFactory, fixedDelaySettings(), new AudioMemoryBudget());
+		final MemoryAudioSink sink = sinkFactory.getSink(0);
+
+		final List<long[]> positions = new ArrayList<long[]>();
+		/* Frame zero is due shortly, the packets arrive out of order */
+		final long dueNanos = System.nanoTime() + Math.round(LEAD_SECONDS * 1e9);
+		try {
+			queue.setFrameTime(0, queue.getNowNtpTime() + FixedPointTime.fromSeconds(LEAD_SECONDS));
+			queue.startAudioProcessing();
+			for(int p=0; p < PACKETS; p += 2)
+				assertTrue(queue.enqueue((long)(p + 1) * FRAMES_PER_PACKET, constantPacket(packetValue(p + 1))));
+			for(int p=0; p < PACKETS; p += 2)
+				assertTrue(queue.enqueue((long)p * FRAMES_PER_PACKET, constantPacket(packetValue(p))));
+
+			/* Record the sink's playback position until the stream was played */
+			final long endNanos = dueNanos + Math.round((PACKETS * FRAMES_PER_PACKET / (double)SAMPLE_RATE + 0.1) * 1e9);
+			while (System.nanoTime() < endNanos) {
+				positions.add(new long[] { System.nanoTime(), sink.getPlaybackPosition() });
+				Thread.sleep(1);
+			}
+		}
+		finally {
+			queue.close();
+		}
+
+		/* Every packet reached the sink exactly once, unaltered and in order. Ramps and
+		 * resampling round each channel separately, so they may differ by one LSB */
+		final short[] samples = sink.getCapturedSamples();
+		final List<Short> expected = new ArrayList<Short>();
+		for(int p=FIRST_UNRAMPED_PACKET; p < PACKETS; ++p)
+			expected.add(packetValue(p));
+		final List<Short> played = runs(samples, MIN_RUN_FRAMES);
+		assertEquals(expected, played.subList(played.size() - expected.size(), played.size()));
+		for(int i=0; i < samples.length; i += CHANNELS)
+			assertEquals(-samples[i], samples[i + 1], 1);
+
+		/* The first unramped packet was played when it was due */
+		final int packetFrame = findRun(samples, packetValue(FIRST_UNRAMPED_PACKET), MIN_RUN_FRAMES);
+		assertTrue(packetFrame > 0);
+		final long packetDueNanos = dueNanos + Math.round(FIRST_UNRAMPED_PACKET * FRAMES_PER_PACKET * 1e9 / SAMPLE_RATE);
+		long packetPlayedNanos = -1;
+		for(final long[] position: positions) {
+			if (position[1] >= packetFrame) {
+				packetPlayedNanos = position[0];
+				break;
+			}
+		}
+		assertTrue("packet was never played", packetPlayedNanos >= 0);
+		assertEquals(0.0, (packetPlayedNanos - packetDueNanos) * 1e-9, TIMING_TOLERANCE_SECONDS);
+	}
+
+	@Test
+	public void queuesOnTheMasterClockPlayInUnison() throws Exception {
+		final long[] presentationLatenciesNanos = { 0, 20000000L, 45000000L };
+		final int queueCount = presentationLatenciesNanos.length;
+		final int packets = PACKETS / 2;
+		final MemorySinkFactory sinkFactory = new MemorySinkFactory(presentationLatenciesNanos);
+		final AudioOutputQueue[] queues = new AudioOutputQueue[queueCount];
+		final long[][] heardNanos = new long[queueCount][packets];
+		try {
+			/* The queues start at different times, but are told the same master clock time */
+			final long startNtpTime = MasterClock.SHARED.getNowNtpTime() + FixedPointTime.fromSeconds(LEAD_SECONDS + queueCount * QUEUE_START_INTERVAL_SECONDS);
+			for(int q=0; q < queueCount; ++q) {
+				queues[q] = new AudioOutputQueue(STREAM, sinkFactory, fixedDelaySettings(), new AudioMemoryBudget());
+				queues[q].setFrameTime(0, startNtpTime);
+				queues[q].startAudioProcessing();
+				Thread.sleep(Math.round(QUEUE_START_INTERVAL_SECONDS * 1000.0));
+			}
+			for(final AudioOutputQueue queue: queues) {
+				for(int p=0; p < packets; ++p)
+					assertTrue(queue.enqueue((long)p * FRAMES_PER_PACKET, constantPacket(packetValue(p))));
+			}
+
+			/* A packet is heard once its first frame passed the sink's playback position, plus the
+			 * sink's presentation latency. A sink's clock restarts whenever it runs empty, so the
+			 * time a frame passes the position is computed from the clock while the frame is played
+			 */
+			final int[][] packetFrames = new int[queueCount][packets];
+			final long endNanos = System.nanoTime() + Math.round((LEAD_SECONDS + packets * FRAMES_PER_PACKET / (double)SAMPLE_RATE + 0.1) * 1e9);
+			while (System.nanoTime() < endNanos) {
+				for(int q=0; q < queueCount; ++q) {
+					final MemoryAudioSink sink = sinkFactory.getSink(q);
+					final long position = sink.getPlaybackPosition();
+					short[] samples = null;
+					for(int p=FIRST_UNRAMPED_PACKET; p < packets; ++p) {
+						if (heardNanos[q][p] != 0)
+							continue;
+						if (packetFrames[q][p] <= 0) {
+							if (samples == null)
+								samples = sink.getCapturedSamples();
+							packetFrames[q][p] = findRun(samples, packetValue(p), MIN_RUN_FRAMES);
+						}
+						if ((packetFrames[q][p] > 0) && (position >= packetFrames[q][p]))
+							heardNanos[q][p] = sink.getPlaybackNanos(packetFrames[q][p]) + sink.getPresentationLatencyNanos();
+					}
+				}
+				Thread.sleep(10);
+			}
+		}
+		finally {
+			for(final AudioOutputQueue queue: queues) {
+				if (queue != null)
+					queue.close();
+			}
+		}
+
+		/* Every packet is heard at the same time from all sinks */
+		for(int p=FIRST_UNRAMPED_PACKET; p < packets; ++p) {
+			long earliestNanos = Long.MAX_VALUE;
+			long latestNanos = Long.MIN_VALUE;
+			for(int q=0; q < queueCount; ++q) {
+				assertTrue("queue " + q + " packet " + p + " was never played", heardNanos[q][p] != 0);
+				earliestNanos = Math.min(earliestNanos, heardNanos[q][p]);
+				latestNanos = Math.max(latestNanos, heardNanos[q][p]);
+			}
+			assertEquals("packet " + p, 0.0, (latestNanos - earliestNanos) * 1e-9, ALIGNMENT_TOLERANCE_SECONDS);
+		}
+	}
+
+	@Test
+	public void clockAdvancesWhileTheLineIsPaused() throws Exception {
+		final int packets = 16;
+		final long idleTimeoutMillis = 100;
+		final long pauseMillis = 400;
+		final PlayoutSettings settings = fixedDelaySettings();
+		settings.setIdleTimeoutMillis(idleTimeoutMillis);
+		final MemorySinkFactory sinkFactory = new MemorySinkFactory();
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, sinkFactory, settings, new AudioMemoryBudget());
+		final MemoryAudioSink sink = sinkFactory.getSink(0);
+		try {
+			queue.setFrameTime(0, queue.getNowNtpTime() + FixedPointTime.fromSeconds(LEAD_SECONDS));
+			queue.startAudioProcessing();
+			for(int p=0; p < packets; ++p)
+				assertTrue(queue.enqueue((long)p * FRAMES_PER_PACKET, constantPacket(packetValue(p))));
+
+			/* Play the packets, then let the line pause */
+			Thread.sleep(Math.round((LEAD_SECONDS + packets * FRAMES_PER_PACKET / (double)SAMPLE_RATE) * 1000.0) + 2 * idleTimeoutMillis);
+			assertFalse("line was never paused", sink.isPlaying());
+
+			/* The queue's clock keeps following the master clock */
+			final long pausedNanos = System.nanoTime();
+			final long pausedNtpTime = queue.getNowNtpTime();
+			Thread.sleep(pauseMillis);
+			final double elapsedSeconds = (System.nanoTime() - pausedNanos) * 1e-9;
+			assertEquals(elapsedSeconds, FixedPointTime.toSeconds(queue.getNowNtpTime() - pausedNtpTime), TIMING_TOLERANCE_SECONDS);
+			assertFalse(sink.isPlaying());
+
+			/* Packets sent after the pause are accepted and played */
+			sink.clearCapturedSamples();
+			final long resumeFrameTime = (long)(2 * packets) * FRAMES_PER_PACKET;
+			queue.setFrameTime(resumeFrameTime, queue.getNowNtpTime() + FixedPointTime.fromSeconds(LEAD_SECONDS));
+			for(int p=0; p < packets; ++p)
+				assertTrue(queue.enqueue(resumeFrameTime + (long)p * FRAMES_PER_PACKET, constantPacket(packetValue(packets + p))));
+			Thread.sleep(Math.round((LEAD_SECONDS + packets * FRAMES_PER_PACKET / (double)SAMPLE_RATE + 0.1) * 1000.0));
+		}
+		finally {
+			queue.close();
+		}
+
+		final List<Short> expected = new ArrayList<Short>();
+		for(int p=FIRST_UNRAMPED_PACKET; p < packets; ++p)
+			expected.add(packetValue(packets + p));
+		final List<Short> played = runs(sink.getCapturedSamples(), MIN_RUN_FRAMES);
+		assertEquals(expected, played.subList(Math.max(0, played.size() - expected.size()), played.size()));
+	}
+
+	@Test
+	public void appliesTheRequestedVolume() throws Exception {
+		final int packets = PACKETS / 2;
+		final MemorySinkFactory sinkFactory = new MemorySinkFactory();
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, sinkFactory, fixedDelaySettings(), new AudioMemoryBudget());
+		queue.setRequestedVolume(0.5f);
+		final MemoryAudioSink sink = sinkFactory.getSink(0);
+		try {
+			queue.setFrameTime(0, queue.getNowNtpTime() + FixedPointTime.fromSeconds(LEAD_SECONDS));
+			queue.startAudioProcessing();
+			for(int p=0; p < packets; ++p)
+				assertTrue(queue.enqueue((long)p * FRAMES_PER_PACKET, constantPacket(packetValue(p))));
+			Thread.sleep(Math.round((LEAD_SECONDS + packets * FRAMES_PER_PACKET / (double)SAMPLE_RATE + 0.1) * 1000.0));
+		}
+		finally {
+			queue.close();
+		}
+
+		/* Past the fade-in, every packet is played at half its amplitude */
+		final List<Short> expected = new ArrayList<Short>();
+		for(int p=FIRST_UNRAMPED_PACKET; p < packets; ++p)
+			expected.add((short)(packetValue(p) / 2));
+		final List<Short> played = runs(sink.getCapturedSamples(), MIN_RUN_FRAMES);
+		assertEquals(expected, played.subList(played.size() - expected.size(), played.size()));
+	}
+
+	@Test
+	public void defaultSettingsQueueTheMaximalQueueLength() throws Exception {
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, new MemorySinkFactory(), new PlayoutSettings(), new AudioMemoryBudget());
+		try {
+			/* Ten seconds of packets plus two late ones, rounded up to a power of two */
+			final long queuePackets = (long)Math.ceil(10.0 * SAMPLE_RATE / FRAMES_PER_PACKET) + 2;
+			final long packetBytes = 2L * CHANNELS * FRAMES_PER_PACKET;
+			assertTrue(queue.getAllocatedBytes() >= queuePackets * packetBytes);
+			assertTrue(queue.getAllocatedBytes() < 2 * queuePackets * packetBytes);
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void latencyTargetLimitsThePlayoutDelay() throws Exception {
+		final PlayoutSettings settings = new PlayoutSettings();
+		settings.setLatencyMillis(200);
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, new MemorySinkFactory(), settings, new AudioMemoryBudget());
+		try {
+			/* The default maximum of 500 ms would more than triple the advertised latency */
+			queue.seedPlayoutStatistics(0.1, 0.5, 0.5);
+			assertTrue(queue.getPlayoutDelay() > 0);
+			assertTrue(queue.getPlayoutDelay() <= 0.05);
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	@Test
+	public void byteLimitCapsTheQueueLength() throws Exception {
+		final long packetBytes = 2L * CHANNELS * FRAMES_PER_PACKET;
+		final PlayoutSettings settings = new PlayoutSettings();
+		settings.setMaxQueuedBytes(100 * packetBytes);
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, new MemorySinkFactory(), settings, new AudioMemoryBudget());
+		try {
+			assertEquals(128 * packetBytes, queue.getAllocatedBytes());
+		}
+		finally {
+			queue.close();
+		}
+	}
+}
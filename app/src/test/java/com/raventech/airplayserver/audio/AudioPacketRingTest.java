@@ -0,0 +1,126 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+
+public class AudioPacketRingTest {
+	private static final int FRAMES_PER_PACKET = 352;
+
+	private static final int PACKET_BYTES = 4 * FRAMES_PER_PACKET;
+
+	private static AudioPacketRing ring() {
+		return new AudioPacketRing(16, FRAMES_PER_PACKET, PACKET_BYTES, PlayoutSettings.UNLIMITED_QUEUED_BYTES, new AudioMemoryBudget());
+	}
+
+	private static int offer(final AudioPacketRing ring, final long packet) {
+		return ring.offer(packet * FRAMES_PER_PACKET, ByteBuffer.allocate(PACKET_BYTES).order(ByteOrder.nativeOrder()));
+	}
+
+	@Test
+	public void swapsBigEndianSamplesIntoNativeOrder() {
+		final AudioPacketRing ring = ring();
+		final ByteBuffer packet = ByteBuffer.allocate(PACKET_BYTES).order(ByteOrder.BIG_ENDIAN);
+		for(int i=0; i < PACKET_BYTES / 2; ++i)
+			packet.putShort(2 * i, (short)(0x0102 * (i + 1)));
+
+		assertEquals(AudioPacketRing.OFFER_OK, ring.offer(0, packet));
+		assertEquals(0, packet.position());
+		assertEquals(0, ring.peek(0));
+		assertEquals(PACKET_BYTES / 2, ring.headLength());
+		final ShortBuffer samples = ring.headSamples();
+		for(int i=0; i < PACKET_BYTES / 2; ++i)
+			assertEquals((short)(0x0102 * (i + 1)), samples.get(i));
+		ring.release();
+	}
+
+	@Test
+	public void flushRefusesPacketsBeforeTheBoundary() {
+		final AudioPacketRing ring = ring();
+		for(long p=100; p < 104; ++p)
+			assertEquals(AudioPacketRing.OFFER_OK, offer(ring, p));
+
+		ring.flush(104 * FRAMES_PER_PACKET);
+		assertEquals(AudioPacketRing.OFFER_FLUSHED, offer(ring, 104 - 1));
+		assertEquals(AudioPacketRing.OFFER_FLUSHED, offer(ring, 90));
+
+		/* The consumer discards the packets before the boundary */
+		assertEquals(AudioPacketRing.NONE, ring.peek(100 * FRAMES_PER_PACKET));
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void streamRestartsBeforeTheBoundaryOnceTheFlushWasExecuted() {
+		final AudioPacketRing ring = ring();
+		for(long p=100; p < 104; ++p)
+			assertEquals(AudioPacketRing.OFFER_OK, offer(ring, p));
+
+		ring.flush(104 * FRAMES_PER_PACKET);
+		assertEquals(AudioPacketRing.OFFER_FLUSHED, offer(ring, 10));
+
+		/* Once the consumer executed the flush, the stream may restart at a lower frame time */
+		ring.executeFlush();
+		assertTrue(ring.isEmpty());
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 10));
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 11));
+		assertEquals(10 * FRAMES_PER_PACKET, ring.peek(10 * FRAMES_PER_PACKET));
+		ring.release();
+		assertEquals(11 * FRAMES_PER_PACKET, ring.peek(11 * FRAMES_PER_PACKET));
+	}
+
+	@Test
+	public void packetAtTheBoundaryCompletesTheFlush() {
+		final AudioPacketRing ring = ring();
+		ring.flush(104 * FRAMES_PER_PACKET);
+		assertEquals(AudioPacketRing.OFFER_FLUSHED, offer(ring, 103));
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 104));
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 103));
+	}
+
+	@Test
+	public void flushingEverythingClearsTheBoundary() {
+		final AudioPacketRing ring = ring();
+		ring.flush(104 * FRAMES_PER_PACKET);
+		ring.flush();
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 10));
+		assertEquals(10 * FRAMES_PER_PACKET, ring.peek(10 * FRAMES_PER_PACKET));
+	}
+
+	@Test
+	public void flushingEverythingKeepsPacketsOfferedAfterwards() {
+		final AudioPacketRing ring = ring();
+		for(long p=100; p < 104; ++p)
+			assertEquals(AudioPacketRing.OFFER_OK, offer(ring, p));
+
+		/* The stream continues before the consumer executed the flush */
+		ring.flush();
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 104));
+		assertEquals(AudioPacketRing.OFFER_OK, offer(ring, 105));
+		assertEquals(AudioPacketRing.NONE, ring.peek(100 * FRAMES_PER_PACKET));
+		assertEquals(2, ring.size());
+		assertEquals(104 * FRAMES_PER_PACKET, ring.peek(104 * FRAMES_PER_PACKET));
+		ring.release();
+		assertEquals(105 * FRAMES_PER_PACKET, ring.peek(105 * FRAMES_PER_PACKET));
+	}
+}
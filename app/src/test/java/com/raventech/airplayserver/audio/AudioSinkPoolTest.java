@@ -0,0 +1,118 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import static com.raventech.airplayserver.audio.AudioTestSupport.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AudioSinkPoolTest {
+	private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+
+	@After
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	/**
+	 * Plays a few packets, as a stream between ANNOUNCE and TEARDOWN would
+	 */
+	private static void playStream(final AudioSinkFactory sinkFactory) throws Exception {
+		final AudioOutputQueue queue = new AudioOutputQueue(STREAM, sinkFactory, fixedDelaySettings(), new AudioMemoryBudget());
+		try {
+			queue.setFrameTime(0, queue.getNowNtpTime());
+			queue.startAudioProcessing();
+			for(int p=0; p < 4; ++p)
+				queue.enqueue((long)p * FRAMES_PER_PACKET, constantPacket(packetValue(p)));
+			Thread.sleep(20);
+		}
+		finally {
+			queue.close();
+		}
+	}
+
+	/**
+	 * Creates sinks which take a while to flush, as devices do. The pool flushes a
+	 * sink when its stream closes it, on the stream's enqueuer thread
+	 */
+	private static final class SlowFlushSinkFactory implements AudioSinkFactory {
+		private int createdSinks = 0;
+
+		@Override
+		public synchronized AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+			++createdSinks;
+			return new MemoryAudioSink(streamInfoProvider, bufferSizeInBytes) {
+				@Override
+				public void flush() {
+					/* Like a device call, this ignores the closing queue's interrupt */
+					final long doneNanos = System.nanoTime() + 20000000L;
+					while (System.nanoTime() < doneNanos)
+						Thread.yield();
+					super.flush();
+				}
+			};
+		}
+
+		synchronized int getCreatedSinks() {
+			return createdSinks;
+		}
+	}
+
+	@Test
+	public void backToBackStreamsReuseTheWarmSink() throws Exception {
+		final int streams = 8;
+		final SlowFlushSinkFactory sinkFactory = new SlowFlushSinkFactory();
+		final AudioSinkPool pool = new AudioSinkPool(sinkFactory, executorService);
+		try {
+			/* The next stream is set up as soon as the previous one is closed */
+			for(int s=0; s < streams; ++s)
+				playStream(pool);
+		}
+		finally {
+			pool.close();
+		}
+
+		assertEquals(1, sinkFactory.getCreatedSinks());
+		assertEquals(1, pool.getMisses());
+		assertEquals(streams - 1, pool.getHits());
+		assertEquals((streams - 1.0) / streams, pool.getHitRate(), 1e-9);
+	}
+
+	@Test
+	public void disabledPoolCreatesASinkPerStream() throws Exception {
+		final int streams = 3;
+		final MemorySinkFactory sinkFactory = new MemorySinkFactory();
+		final AudioSinkPool pool = new AudioSinkPool(sinkFactory, executorService);
+		pool.setKeepWarmMillis(AudioSinkPool.NO_KEEP_WARM);
+		try {
+			for(int s=0; s < streams; ++s)
+				playStream(pool);
+		}
+		finally {
+			pool.close();
+		}
+
+		assertEquals(streams, sinkFactory.getCreatedSinks());
+		assertEquals(0.0, pool.getHitRate(), 0.0);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Streams and sinks shared by the tests of the playout path
+ */
+final class AudioTestSupport {
+	/**
+	 * Frames per packet, as sent by iTunes
+	 */
+	static final int FRAMES_PER_PACKET = 352;
+
+	static final int SAMPLE_RATE = 44100;
+
+	static final int CHANNELS = 2;
+
+	/**
+	 * 16-bit stereo at 44100 Hz
+	 */
+	static final AudioStreamInformationProvider STREAM = new AudioStreamInformationProvider() {
+		@Override
+		public int getFramesPerPacket() {
+			return FRAMES_PER_PACKET;
+		}
+
+		@Override
+		public double getPacketsPerSecond() {
+			return (double)SAMPLE_RATE / FRAMES_PER_PACKET;
+		}
+
+		@Override
+		public int getSampleRate() {
+			return SAMPLE_RATE;
+		}
+
+		@Override
+		public int getSampleSizeInBits() {
+			return 16;
+		}
+
+		@Override
+		public int getChannels() {
+			return CHANNELS;
+		}
+
+		@Override
+		public int getAudioFormat() {
+			return 2; /* AudioFormat.ENCODING_PCM_16BIT */
+		}
+	};
+
+	/**
+	 * Creates {@link MemoryAudioSink}s and remembers them
+	 */
+	static final class MemorySinkFactory implements AudioSinkFactory {
+		private final List<MemoryAudioSink> sinks = new java.util.ArrayList<MemoryAudioSink>();
+
+		/**
+		 * Presentation latencies reported by the sinks, in order of creation
+		 */
+		private final long[] presentationLatenciesNanos;
+
+		MemorySinkFactory() {
+			this(new long[0]);
+		}
+
+		/**
+		 * Creates sinks which report the given presentation latencies, and
+		 * zero once they're used up
+		 */
+		MemorySinkFactory(final long[] presentationLatenciesNanos) {
+			this.presentationLatenciesNanos = presentationLatenciesNanos;
+		}
+
+		@Override
+		public synchronized AudioSink createAudioSink(final AudioStreamInformationProvider streamInfoProvider, final int bufferSizeInBytes) {
+			final long presentationLatencyNanos = (sinks.size() < presentationLatenciesNanos.length) ? presentationLatenciesNanos[sinks.size()] : 0;
+			final MemoryAudioSink sink = new MemoryAudioSink(streamInfoProvider, bufferSizeInBytes) {
+				@Override
+				public long getPresentationLatencyNanos() {
+					return presentationLatencyNanos;
+				}
+			};
+			sinks.add(sink);
+			return sink;
+		}
+
+		synchronized int getCreatedSinks() {
+			return sinks.size();
+		}
+
+		synchronized MemoryAudioSink getSink(final int i) {
+			return sinks.get(i);
+		}
+	}
+
+	private AudioTestSupport() {
+	}
+
+	/**
+	 * Returns settings which keep the playout delay at zero, so that
+	 * frames are played exactly when they're due
+	 */
+	static PlayoutSettings fixedDelaySettings() {
+		final PlayoutSettings settings = new PlayoutSettings();
+		settings.setPlayoutDelayBoundsMillis(0, 0);
+		return settings;
+	}
+
+	/**
+	 * Returns a packet whose left samples all are the given value,
+	 * and whose right samples are its negation
+	 */
+	static ByteBuffer constantPacket(final short value) {
+		final ByteBuffer packet = ByteBuffer.allocate(FRAMES_PER_PACKET * CHANNELS * 2).order(ByteOrder.nativeOrder());
+		for(int f=0; f < FRAMES_PER_PACKET; ++f) {
+			packet.putShort(2 * CHANNELS * f, value);
+			packet.putShort(2 * CHANNELS * f + 2, (short)-value);
+		}
+		return packet;
+	}
+
+	/**
+	 * Returns the value of the n-th packet of a test stream
+	 */
+	static short packetValue(final int n) {
+		return (short)(500 * (n + 1));
+	}
+
+	/**
+	 * Returns the left samples of all runs of at least the given number of equal
+	 * frames, one per run. Resampling at the boundaries between two packets of
+	 * constant value touches a frame or two, runs thus identify the packets played
+	 *
+	 * @param samples interleaved stereo samples
+	 * @param minFrames minimal run length in frames
+	 * @return values of the runs, in order
+	 */
+	static List<Short> runs(final short[] samples, final int minFrames) {
+		final List<Short> runs = new java.util.ArrayList<Short>();
+		int start = 0;
+		for(int f=1; f <= samples.length / CHANNELS; ++f) {
+			if ((f < samples.length / CHANNELS) && (samples[CHANNELS * f] == samples[CHANNELS * start]))
+				continue;
+			if ((f - start >= minFrames) && (samples[CHANNELS * start] != 0))
+				runs.add(samples[CHANNELS * start]);
+			start = f;
+		}
+		return runs;
+	}
+
+	/**
+	 * Returns the index of the first frame of the first run of the given value, or -1
+	 */
+	static int findRun(final short[] samples, final short value, final int minFrames) {
+		int start = 0;
+		for(int f=1; f <= samples.length / CHANNELS; ++f) {
+			if ((f < samples.length / CHANNELS) && (samples[CHANNELS * f] == samples[CHANNELS * start]))
+				continue;
+			if ((f - start >= minFrames) && (samples[CHANNELS * start] == value))
+				return start;
+			start = f;
+		}
+		return -1;
+	}
+}
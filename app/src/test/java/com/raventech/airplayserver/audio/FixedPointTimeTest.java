@@ -0,0 +1,111 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import static com.raventech.airplayserver.audio.FixedPointTime.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FixedPointTimeTest {
+	private static final long SAMPLE_RATE = 44100;
+
+	/**
+	 * 2036-02-07T06:28:16Z, where the NTP seconds wrap around
+	 */
+	private static final long NTP_ERA_END_UNIX_MILLIS = ((1L << 32) - NTP_EPOCH_OFFSET_SECONDS) * 1000L;
+
+	@Test
+	public void framesRoundTrip() {
+		for(long frames = -3 * SAMPLE_RATE; frames <= 3 * SAMPLE_RATE; frames += 7)
+			assertEquals(frames, toFrames(fromFrames(frames, SAMPLE_RATE), SAMPLE_RATE));
+		for(final long frames: new long[] { 1L << 40, (1L << 40) + SAMPLE_RATE - 1, -(1L << 40) - 1 })
+			assertEquals(frames, toFrames(fromFrames(frames, SAMPLE_RATE), SAMPLE_RATE));
+	}
+
+	@Test
+	public void framesAtSecondBoundaries() {
+		assertEquals(ONE_SECOND, fromFrames(SAMPLE_RATE, SAMPLE_RATE));
+		assertEquals(-ONE_SECOND, fromFrames(-SAMPLE_RATE, SAMPLE_RATE));
+		assertTrue(fromFrames(SAMPLE_RATE - 1, SAMPLE_RATE) < ONE_SECOND);
+		assertEquals(-fromFrames(1, SAMPLE_RATE), fromFrames(-1, SAMPLE_RATE), 1);
+
+		/* Times round to the nearest frame, also across second boundaries */
+		assertEquals(SAMPLE_RATE, toFrames(ONE_SECOND - 1, SAMPLE_RATE));
+		assertEquals(0, toFrames(-1, SAMPLE_RATE));
+		assertEquals(-SAMPLE_RATE, toFrames(-ONE_SECOND - 1, SAMPLE_RATE));
+	}
+
+	@Test
+	public void nanosRoundTrip() {
+		for(long nanos = -2000000000L; nanos <= 2000000000L; nanos += 999983L)
+			assertEquals(nanos, toNanos(fromNanos(nanos)));
+		for(final long nanos: new long[] { 0, 1, -1, 999999999L, -999999999L, 1000000000L, 86400L * 1000000000L + 1 })
+			assertEquals(nanos, toNanos(fromNanos(nanos)));
+	}
+
+	@Test
+	public void nanosTruncateWithinTheSecond() {
+		assertEquals(ONE_SECOND, fromNanos(1000000000L));
+		assertEquals(ONE_SECOND - 5, fromNanos(999999999L));
+		assertEquals(4, fromNanos(1));
+		assertEquals(-4, fromNanos(-1));
+		assertEquals(1000000000L, toNanos(ONE_SECOND - 1));
+		assertEquals(0, toNanos(1));
+	}
+
+	@Test
+	public void unixMillisRoundTrip() {
+		final long now = 1792281600000L;
+		for(long millis = now - 5000; millis <= now + 5000; ++millis)
+			assertEquals(millis, toUnixMillis(fromUnixMillis(millis)));
+		for(final long millis: new long[] { 0, 999, NTP_ERA_END_UNIX_MILLIS - 1 })
+			assertEquals(millis, toUnixMillis(fromUnixMillis(millis)));
+	}
+
+	@Test
+	public void unixMillisAtBoundaries() {
+		assertEquals(NTP_EPOCH_OFFSET_SECONDS << 32, fromUnixMillis(0));
+		assertEquals((NTP_EPOCH_OFFSET_SECONDS << 32) + 4290672328L, fromUnixMillis(999));
+		assertEquals((NTP_EPOCH_OFFSET_SECONDS + 1) << 32, fromUnixMillis(1000));
+
+		/* Present-day times are negative as signed longs, and the era ends at -1 */
+		assertTrue(fromUnixMillis(1792281600000L) < 0);
+		assertEquals(-1, fromUnixMillis(NTP_ERA_END_UNIX_MILLIS) - 1);
+		assertEquals(0, fromUnixMillis(NTP_ERA_END_UNIX_MILLIS));
+	}
+
+	@Test
+	public void differencesAreWrapSafe() {
+		final long beforeEraEnd = fromUnixMillis(NTP_ERA_END_UNIX_MILLIS - 500);
+		final long afterEraEnd = fromUnixMillis(NTP_ERA_END_UNIX_MILLIS + 500);
+		assertEquals(1.0, toSeconds(afterEraEnd - beforeEraEnd), 1e-9);
+
+		final long beforeSignFlip = Long.MAX_VALUE - ONE_SECOND / 2;
+		final long afterSignFlip = beforeSignFlip + ONE_SECOND;
+		assertTrue(afterSignFlip < beforeSignFlip);
+		assertTrue(afterSignFlip - beforeSignFlip > 0);
+		assertEquals(1000000000L, toNanos(afterSignFlip - beforeSignFlip));
+	}
+
+	@Test
+	public void secondsRoundTrip() {
+		for(final double seconds: new double[] { 0, 0.5, -0.5, 1e-6, -2.25, 3600 })
+			assertEquals(seconds, toSeconds(fromSeconds(seconds)), 1e-9);
+	}
+}
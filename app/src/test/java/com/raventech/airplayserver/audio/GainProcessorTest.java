@@ -0,0 +1,81 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.audio;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+
+public class GainProcessorTest {
+	private static final int CHANNELS = 2;
+
+	private static final int FRAMES = 352;
+
+	private static short[] block(final int seed) {
+		final short[] samples = new short[FRAMES * CHANNELS];
+		for(int i=0; i < samples.length; ++i)
+			samples[i] = (short)(((i * 7919 + seed * 104729) % 40000) - 20000);
+		return samples;
+	}
+
+	private static ShortBuffer direct(final short[] samples, final int offset) {
+		final ShortBuffer buffer = ByteBuffer.allocateDirect(2 * (offset + samples.length)).order(ByteOrder.nativeOrder()).asShortBuffer();
+		buffer.position(offset);
+		buffer.put(samples);
+		return buffer;
+	}
+
+	@Test
+	public void inPlaceGainMatchesTheArrayPath() {
+		final GainProcessor arrayGain = new GainProcessor(44100, GainProcessor.DEFAULT_RAMP_SECONDS, 1.0f);
+		final GainProcessor inPlaceGain = new GainProcessor(44100, GainProcessor.DEFAULT_RAMP_SECONDS, 1.0f);
+		final float[] gains = { 1.0f, 0.5f, 0.5f, 0.5f, 0.5f, 0.0f, 0.0f, 0.0f, 0.8f, 0.8f, 0.8f, 0.8f, 1.0f, 1.0f, 1.0f };
+
+		for(int b=0; b < gains.length; ++b) {
+			arrayGain.setGain(gains[b]);
+			inPlaceGain.setGain(gains[b]);
+
+			final short[] expected = block(b);
+			final ShortBuffer actual = direct(expected, 6);
+			arrayGain.process(ShortSampleBuffer.interleaved(expected, CHANNELS));
+			inPlaceGain.process(actual, 6, expected.length, CHANNELS);
+
+			for(int i=0; i < expected.length; ++i)
+				assertEquals("block " + b + " sample " + i, expected[i], actual.get(6 + i));
+			assertEquals(arrayGain.isTransparent(), inPlaceGain.isTransparent());
+		}
+		assertTrue(inPlaceGain.isTransparent());
+	}
+
+	@Test
+	public void inPlaceGainLeavesTheRestOfTheBufferAlone() {
+		final GainProcessor gain = new GainProcessor(44100, GainProcessor.DEFAULT_RAMP_SECONDS, 0.5f);
+		final short[] samples = block(0);
+		final ShortBuffer buffer = direct(samples, 0);
+		gain.process(buffer, 2 * CHANNELS, 4 * CHANNELS, CHANNELS);
+
+		for(int i=0; i < samples.length; ++i) {
+			final boolean processed = (i >= 2 * CHANNELS) && (i < 6 * CHANNELS);
+			assertEquals(processed ? (short)Math.round(samples[i] * 0.5f) : samples[i], buffer.get(i));
+		}
+	}
+}
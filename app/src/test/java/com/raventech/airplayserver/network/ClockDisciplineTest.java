@@ -0,0 +1,115 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.raventech.airplayserver.audio.FixedPointTime;
+
+public class ClockDisciplineTest {
+	private static final long OFFSET = FixedPointTime.fromSeconds(10.0);
+
+	/**
+	 * Feeds exchanges every quarter second with a constant offset. The round-trip
+	 * delay shrinks with every exchange, so the newest one always passes the filter
+	 */
+	private static boolean[] exchange(final ClockDiscipline discipline, final long startLocalTime, final int count) {
+		final boolean[] updated = new boolean[count];
+		for(int i=0; i < count; ++i) {
+			final long localSendTime = startLocalTime + i * FixedPointTime.fromSeconds(0.25);
+			updated[i] = exchange(discipline, localSendTime, OFFSET, FixedPointTime.fromSeconds(0.010 - i * 1e-4));
+		}
+		return updated;
+	}
+
+	/**
+	 * Feeds a single exchange with the given offset and one-way delay
+	 */
+	private static boolean exchange(final ClockDiscipline discipline, final long localSendTime, final long offset, final long halfDelay) {
+		final long remoteReceiveTime = localSendTime + offset + halfDelay;
+		final long remoteSendTime = remoteReceiveTime + FixedPointTime.fromSeconds(0.001);
+		final long localReceiveTime = remoteSendTime - offset + halfDelay;
+		return discipline.update(localSendTime, remoteReceiveTime, remoteSendTime, localReceiveTime);
+	}
+
+	/**
+	 * Returns a discipline seeded with the state of one locked onto {@link #OFFSET}
+	 */
+	private static ClockDiscipline seededDiscipline(final long start) {
+		final ClockDiscipline previous = new ClockDiscipline();
+		exchange(previous, start, 40);
+		final ClockDiscipline.Snapshot snapshot = previous.getSnapshot();
+		assertNotNull(snapshot);
+
+		final ClockDiscipline discipline = new ClockDiscipline();
+		discipline.seed(snapshot);
+		assertFalse(discipline.isEmpty());
+		assertTrue(discipline.isLocked());
+		return discipline;
+	}
+
+	@Test
+	public void locksOntoConstantOffset() {
+		final ClockDiscipline discipline = new ClockDiscipline();
+		final long start = FixedPointTime.fromUnixMillis(1792281600000L);
+		for(final boolean updated: exchange(discipline, start, 40))
+			assertTrue(updated);
+		assertTrue(discipline.isLocked());
+		assertEquals(10.0, FixedPointTime.toSeconds(discipline.getOffset(start)), 1e-6);
+	}
+
+	@Test
+	public void keepsUpdatingAcrossTheSignFlip() {
+		final ClockDiscipline discipline = new ClockDiscipline();
+		final long start = Long.MAX_VALUE - FixedPointTime.fromSeconds(5.0);
+		for(final boolean updated: exchange(discipline, start, 40))
+			assertTrue(updated);
+		assertTrue(discipline.isLocked());
+		assertEquals(10.0, FixedPointTime.toSeconds(discipline.getOffset(start + FixedPointTime.fromSeconds(10.0))), 1e-6);
+	}
+
+	@Test
+	public void firstExchangeConfirmsTheSeed() {
+		final long start = FixedPointTime.fromUnixMillis(1792281600000L);
+		final ClockDiscipline discipline = seededDiscipline(start);
+
+		/* The seed isn't handed on until an exchange confirmed it */
+		assertNull(discipline.getSnapshot());
+		final long later = start + FixedPointTime.fromSeconds(60.0);
+		assertTrue(exchange(discipline, later, OFFSET, FixedPointTime.fromSeconds(0.005)));
+		assertTrue(discipline.isLocked());
+		assertNotNull(discipline.getSnapshot());
+		assertEquals(10.0, FixedPointTime.toSeconds(discipline.getOffset(later)), 1e-6);
+	}
+
+	@Test
+	public void firstExchangeDiscardsASeedTooFarOff() {
+		final long start = FixedPointTime.fromUnixMillis(1792281600000L);
+		final ClockDiscipline discipline = seededDiscipline(start);
+
+		/* The remote clock was reset since, the loop steps to the new offset and locks anew */
+		final long later = start + FixedPointTime.fromSeconds(60.0);
+		final long offset = OFFSET + FixedPointTime.fromSeconds(0.020);
+		assertTrue(exchange(discipline, later, offset, FixedPointTime.fromSeconds(0.005)));
+		assertFalse(discipline.isLocked());
+		assertNull(discipline.getSnapshot());
+		assertEquals(10.020, FixedPointTime.toSeconds(discipline.getOffset(later)), 1e-6);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.raop.handlers;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.raventech.airplayserver.network.ProtocolException;
+
+public class RaopRtpAudioL16StreamInformationProviderTest {
+	@Test
+	public void framesPerPacketDefaultTo352() throws Exception {
+		final RaopRtpAudioL16StreamInformationProvider stream = new RaopRtpAudioL16StreamInformationProvider("L16/44100/2", null);
+		assertEquals(RaopRtpAudioL16StreamInformationProvider.DEFAULT_FRAMES_PER_PACKET, stream.getFramesPerPacket());
+		assertEquals(352, stream.getFramesPerPacket());
+		assertEquals(44100, stream.getSampleRate());
+		assertEquals(2, stream.getChannels());
+		assertEquals(16, stream.getSampleSizeInBits());
+		assertEquals(ByteOrder.BIG_ENDIAN, stream.getByteOrder());
+	}
+
+	@Test
+	public void framesPerPacketFollowTheFormatOptions() throws Exception {
+		final RaopRtpAudioL16StreamInformationProvider stream = new RaopRtpAudioL16StreamInformationProvider("L16/44100/2", new String[] { "4096" });
+		assertEquals(4096, stream.getFramesPerPacket());
+		assertEquals(44100 / 4096.0, stream.getPacketsPerSecond(), 1e-9);
+	}
+
+	@Test(expected=ProtocolException.class)
+	public void rejectsOtherSampleRates() throws Exception {
+		new RaopRtpAudioL16StreamInformationProvider("L16/48000/2", null);
+	}
+
+	@Test(expected=ProtocolException.class)
+	public void rejectsMonoStreams() throws Exception {
+		new RaopRtpAudioL16StreamInformationProvider("L16/44100/1", null);
+	}
+
+	@Test(expected=ProtocolException.class)
+	public void rejectsStreamsWithoutChannelCount() throws Exception {
+		/* RFC 3551 defaults to one channel */
+		new RaopRtpAudioL16StreamInformationProvider("L16/44100", null);
+	}
+}
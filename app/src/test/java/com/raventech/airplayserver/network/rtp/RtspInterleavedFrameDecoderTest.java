@@ -0,0 +1,91 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.raventech.airplayserver.network.rtp;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+public class RtspInterleavedFrameDecoderTest {
+	private static final Charset ASCII = Charset.forName("ASCII");
+
+	private static final String SETUP =
+		"SETUP rtsp://10.0.0.1/1 RTSP/1.0\r\n" +
+		"CSeq: 3\r\n" +
+		"Transport: RTP/AVP/UDP;unicast;mode=record\r\n" +
+		"\r\n";
+
+	private static final String SET_PARAMETER =
+		"SET_PARAMETER rtsp://10.0.0.1/1 RTSP/1.0\r\n" +
+		"CSeq: 4\r\n" +
+		"Content-Type: text/parameters\r\n" +
+		"Content-Length: 18\r\n" +
+		"\r\n" +
+		"volume: -11.123$\r\n";
+
+	private static final byte[] INTERLEAVED = { '$', 1, 0, 3, 7, 8, 9 };
+
+	private static byte[] stream() {
+		final ChannelBuffer stream = ChannelBuffers.dynamicBuffer();
+		stream.writeBytes(SETUP.getBytes(ASCII));
+		stream.writeBytes(INTERLEAVED);
+		stream.writeBytes(SET_PARAMETER.getBytes(ASCII));
+		stream.writeBytes(SETUP.replace("\r\n", "\n").getBytes(ASCII));
+		final byte[] bytes = new byte[stream.readableBytes()];
+		stream.readBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Feeds the stream in chunks of the given size and checks the decoded messages
+	 */
+	private static void decodeInChunks(final int chunkBytes) {
+		final DecoderEmbedder<Object> decoder = new DecoderEmbedder<Object>(new RtspInterleavedFrameDecoder());
+		final byte[] stream = stream();
+		for(int off=0; off < stream.length; off += chunkBytes)
+			decoder.offer(ChannelBuffers.wrappedBuffer(stream, off, Math.min(chunkBytes, stream.length - off)));
+		decoder.finish();
+
+		assertEquals("chunks of " + chunkBytes, SETUP, ((ChannelBuffer)decoder.poll()).toString(ASCII));
+
+		final RtspInterleavedFrame frame = (RtspInterleavedFrame)decoder.poll();
+		assertEquals(1, frame.getChannel());
+		assertEquals(ChannelBuffers.wrappedBuffer(INTERLEAVED, 4, 3), frame.getData());
+
+		assertEquals("chunks of " + chunkBytes, SET_PARAMETER, ((ChannelBuffer)decoder.poll()).toString(ASCII));
+		assertEquals("chunks of " + chunkBytes, SETUP.replace("\r\n", "\n"), ((ChannelBuffer)decoder.poll()).toString(ASCII));
+		assertNull(decoder.poll());
+	}
+
+	@Test
+	public void decodesWholeStream() {
+		decodeInChunks(Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void decodesStreamArrivingInPieces() {
+		for(int chunkBytes = 1; chunkBytes <= 8; ++chunkBytes)
+			decodeInChunks(chunkBytes);
+		decodeInChunks(61);
+	}
+}